@@ -12,6 +12,7 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
@@ -19,6 +20,7 @@ import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -26,6 +28,8 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
 
     private static final int DEFAULT_RETENTION_TIME_IN_MILLIS = 120000;
     private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
 
     private final static Logger LOG = LoggerFactory.getLogger(EZappClient.class);
 
@@ -57,7 +61,13 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
 
     @Override
     public void removeRule(String ruleTable) {
-        throw new UnsupportedOperationException();
+        Response response =  _client
+                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path("_rule/_table").path(ruleTable))
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .delete();
+
+        checkResponseForError(response);
     }
 
     @Override
@@ -143,11 +153,16 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
 
     @Override
     public String create(String table, Map<String, Object> doc) {
+        return create(table, doc, WritePriority.INTERACTIVE);
+    }
+
+    @Override
+    public String create(String table, Map<String, Object> doc, WritePriority priority) {
 
         checkArgument(Names.isLegalTableName(table), "Invalid Table Name");
 
         Response response = _client
-                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table))
+                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table).queryParam("priority", priority))
                 .request(MediaType.APPLICATION_JSON)
                 .post(Entity.entity(doc, MediaType.APPLICATION_JSON));
 
@@ -160,12 +175,17 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
 
     @Override
     public String create(String table, String key, Map<String, Object> doc) {
+        return create(table, key, doc, WritePriority.INTERACTIVE);
+    }
+
+    @Override
+    public String create(String table, String key, Map<String, Object> doc, WritePriority priority) {
 
         checkArgument(Names.isLegalTableName(table), "Invalid Table Name");
         checkArgument(Names.isLegalKey(table), "Invalid Key");
 
         Response response = _client
-                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table).path(key))
+                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table).path(key).queryParam("priority", priority))
                 .request(MediaType.APPLICATION_JSON)
                 .post(Entity.entity(doc, MediaType.APPLICATION_JSON));
 
@@ -175,8 +195,12 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
     }
 
     public String update(String table, String key, Map<String, Object> doc) {
+        return update(table, key, doc, WritePriority.INTERACTIVE);
+    }
+
+    public String update(String table, String key, Map<String, Object> doc, WritePriority priority) {
         Response response = _client
-                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table).path(key))
+                .target(UriBuilder.fromUri(_uri).path(SOR_PATH).path(table).path(key).queryParam("priority", priority))
                 .request(MediaType.APPLICATION_JSON)
                 .put(Entity.entity(doc, MediaType.APPLICATION_JSON));
 
@@ -248,6 +272,9 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
             } else if (JsonProcessingException.class.getName().equals(exceptionType)) {
                 return new RuntimeException(new JsonProcessingException(response.readEntity(String.class)) {});
             }
+        } else if (response.getStatus() == TOO_MANY_REQUESTS &&
+                WriteRejectedException.class.getName().equals(exceptionType)) {
+            return new WriteRejectedException(response.readEntity(String.class), getRetryAfterMillis(response));
         } else if (response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode() &&
                 ServiceUnavailableException.class.getName().equals(exceptionType)) {
             if (response.hasEntity()) {
@@ -260,4 +287,18 @@ public class EZappClient implements DataWriter, DataReader, RulesManager {
         return new RuntimeException(response.readEntity(String.class));
     }
 
+    // falls back to a default when the header is missing or is an HTTP date rather than a number of seconds
+    private static long getRetryAfterMillis(Response response) {
+        String retryAfter = response.getHeaderString(HttpHeaders.RETRY_AFTER);
+        long retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+        if (retryAfter != null) {
+            try {
+                retryAfterSeconds = Long.parseLong(retryAfter.trim());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return TimeUnit.SECONDS.toMillis(retryAfterSeconds);
+    }
+
 }
@@ -10,15 +10,33 @@ public interface DataWriter {
      */
     String create(String table, String key, Map<String, Object> document);
 
+    /**
+     * create document for given table and key on the given lane
+     * @return document key
+     */
+    String create(String table, String key, Map<String, Object> document, WritePriority priority);
+
     /**
      * create document for given table with random key
      * @return document key
      */
     String create(String table, Map<String, Object> document);
 
+    /**
+     * create document for given table with random key on the given lane
+     * @return document key
+     */
+    String create(String table, Map<String, Object> document, WritePriority priority);
+
     /**
      * update for given table and key
      * @return document key
      */
     String update(String table, String key, Map<String, Object> update);
+
+    /**
+     * update for given table and key on the given lane
+     * @return document key
+     */
+    String update(String table, String key, Map<String, Object> update, WritePriority priority);
 }
@@ -1,8 +1,9 @@
 package org.ezstack.ezapp.datastore.api;
 
 import com.fasterxml.jackson.annotation.*;
-import com.fasterxml.jackson.databind.util.ISO8601Utils;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import java.util.*;
 
@@ -20,14 +21,26 @@ public class Document {
     private static final String VERSION = "~version";
     private static final Set<String> INTRINSIC_ATTRIBUTES = ImmutableSet.of(TABLE, KEY, FIRST_UPDATE_AT, LAST_UPDATE_AT, VERSION);
 
+    // attribute names are already shared by Jackson's symbol tables, but table names are values, read anew each time
+    private static final Interner<String> TABLE_NAMES = Interners.newWeakInterner();
+
     private String _table;
     private final String _key;
-    private final String _firstUpdateAt;
-    private String _lastUpdateAt;
+    // update times are kept as epoch millis, and as text only once they have been read, or if they are not in the
+    // form they are written in. A document that is written is serialized several times per update, to its store, to
+    // the partition stream of each rule and to Elasticsearch, so its times are formatted once rather than for each of
+    // them. The text gives back most of what the millis save, but only on documents that are written, not on those
+    // that are only held, such as the documents in caches and in reader results.
+    private final long _firstUpdateAtMillis;
+    private String _firstUpdateAtText;
+    private long _lastUpdateAtMillis;
+    private String _lastUpdateAtText;
     private Map<String, Object> _data;
     private int _version;
 
     private boolean _hasMutated;
+    // set once the data is shared with a snapshot, so that it is copied before it is changed in place
+    private boolean _dataShared;
 
     @JsonCreator
     public Document(@JsonProperty(TABLE) String table, @JsonProperty(KEY) String key,
@@ -41,10 +54,12 @@ public class Document {
         checkArgument(Names.isLegalTableName(table), "Invalid Table Name");
         checkArgument(Names.isLegalKey(key), "Invalid key");
 
-        _table = table;
+        _table = TABLE_NAMES.intern(table);
         _key = key;
-        _firstUpdateAt = firstUpdateAt;
-        _lastUpdateAt = lastUpdateAt;
+        _firstUpdateAtMillis = Timestamps.parse(firstUpdateAt);
+        _firstUpdateAtText = getTextIfNotParsed(firstUpdateAt, _firstUpdateAtMillis);
+        _lastUpdateAtMillis = Timestamps.parse(lastUpdateAt);
+        _lastUpdateAtText = getTextIfNotParsed(lastUpdateAt, _lastUpdateAtMillis);
         _data = new HashMap<>();
         _version = version;
 
@@ -53,23 +68,33 @@ public class Document {
 
     /** This constructor should only be used if there is only one version of this document to consider */
     public Document(Update update) {
-        _table = update.getTable();
+        _table = TABLE_NAMES.intern(update.getTable());
         _key = update.getKey();
-        _firstUpdateAt = asISOTimestamp(update.getTimestamp());
-        _lastUpdateAt = asISOTimestamp(update.getTimestamp());
+        _firstUpdateAtMillis = getTimeMillis(update.getTimestamp());
+        _firstUpdateAtText = null;
+        _lastUpdateAtMillis = _firstUpdateAtMillis;
+        _lastUpdateAtText = null;
         _data = update.getData();
         _version = 1;
 
+        applyOperations(update);
+
         _hasMutated = false;
     }
 
     public Document(Map<String, Object> data) {
-        checkNotNull(_table = (String) data.remove(TABLE), "table");
+        String table = checkNotNull((String) data.remove(TABLE), "table");
         checkNotNull(_key = (String) data.remove(KEY), "key");
-        checkNotNull(_firstUpdateAt = (String) data.remove(FIRST_UPDATE_AT), "firstUpdateAt");
-        checkNotNull(_lastUpdateAt = (String) data.remove(LAST_UPDATE_AT), "lastUpdateAt");
+        String firstUpdateAt = checkNotNull((String) data.remove(FIRST_UPDATE_AT), "firstUpdateAt");
+        String lastUpdateAt = checkNotNull((String) data.remove(LAST_UPDATE_AT), "lastUpdateAt");
         checkArgument(data.containsKey(VERSION), "version");
 
+        _table = TABLE_NAMES.intern(table);
+        _firstUpdateAtMillis = Timestamps.parse(firstUpdateAt);
+        _firstUpdateAtText = getTextIfNotParsed(firstUpdateAt, _firstUpdateAtMillis);
+        _lastUpdateAtMillis = Timestamps.parse(lastUpdateAt);
+        _lastUpdateAtText = getTextIfNotParsed(lastUpdateAt, _lastUpdateAtMillis);
+
         _version = (int) data.remove(VERSION);
 
         checkArgument(Names.isLegalTableName(_table), "Invalid Table Name");
@@ -80,21 +105,47 @@ public class Document {
         _hasMutated = false;
     }
 
-    /** lastUpdateAt and version are only updated if the document data is actually modified by the update */
+    private Document(Document document) {
+        _table = document._table;
+        _key = document._key;
+        _firstUpdateAtMillis = document._firstUpdateAtMillis;
+        _firstUpdateAtText = document._firstUpdateAtText;
+        _lastUpdateAtMillis = document._lastUpdateAtMillis;
+        _lastUpdateAtText = document._lastUpdateAtText;
+        _data = document._data;
+        _version = document._version;
+
+        _hasMutated = false;
+        _dataShared = true;
+    }
+
+    /**
+     * lastUpdateAt and version are only updated if the document data is actually modified by the update. The update
+     * never changes the maps and lists the data was made of, but copies the ones it changes, and the maps leading to
+     * them, so that a {@link #snapshot} taken before it still sees the data as it was.
+     */
     public void addUpdate(Update update) {
         checkArgument(_table.equals(update.getTable()) && _key.equals(update.getKey()),
                 "Update is not to same record as existing document");
 
         if (update.isUpdate()) {
-            resolveData(update.getData(), _data, update.getTimestamp());
+            setResolvedData(resolveData(update.getData(), _data));
         } else {
             _data = update.getData();
+            _dataShared = false;
             _hasMutated = true;
         }
 
+        applyOperations(update);
+
         if(_hasMutated) {
             _version++;
-            _lastUpdateAt = asISOTimestamp(update.getTimestamp());
+            // a late update does not move the last update time back
+            long updateAtMillis = getTimeMillis(update.getTimestamp());
+            if (updateAtMillis > _lastUpdateAtMillis) {
+                _lastUpdateAtMillis = updateAtMillis;
+                _lastUpdateAtText = null;
+            }
             _hasMutated = false;
         }
     }
@@ -102,44 +153,111 @@ public class Document {
     @JsonIgnore
     public void setTable(String table) {
         checkArgument(Names.isLegalTableName(table), "Invalid Table Name");
-        _table = table;
+        _table = TABLE_NAMES.intern(table);
     }
 
-    private void resolveData(Map<String, Object> updatedData, Map<String, Object> dataToUpdate, UUID updatedDataTimestamp) {
+    private void applyOperations(Update update) {
+        for (Map.Entry<FieldOperation, Map<String, Object>> operation : update.getOperations().entrySet()) {
+            Map<String, Object> data = copyOperands(_data, operation.getValue());
+            if (operation.getKey().apply(data, operation.getValue())) {
+                setResolvedData(data);
+            }
+        }
+    }
+
+    private void setResolvedData(Map<String, Object> data) {
+        if (data != _data) {
+            _data = data;
+            _dataShared = false;
+            _hasMutated = true;
+        }
+    }
+
+    /**
+     * Resolves the updated data into a copy of the data that shares every map the update leaves as it is.
+     * @return the data itself if the update changes nothing
+     */
+    private static Map<String, Object> resolveData(Map<String, Object> updatedData, Map<String, Object> data) {
+        Map<String, Object> resolvedData = data;
 
         for (Map.Entry<String, Object> attribute : updatedData.entrySet()) {
             Object updatedVal = attribute.getValue();
-            Object oldVal = dataToUpdate.get(attribute.getKey());
+            Object oldVal = data.get(attribute.getKey());
+            Object resolvedVal;
 
             if (DataType.getDataType(updatedVal) == DataType.JsonTypes.MAP && DataType.getDataType(oldVal) == DataType.JsonTypes.MAP) {
-                resolveData((Map<String, Object>) updatedVal, (Map<String, Object>) oldVal, updatedDataTimestamp);
-            } else {
-                if (updatedVal != null ? !updatedVal.equals(oldVal) : updatedVal != oldVal) {
-                    _hasMutated = true;
-                    dataToUpdate.put(attribute.getKey(), updatedVal);
+                resolvedVal = resolveData((Map<String, Object>) updatedVal, (Map<String, Object>) oldVal);
+                if (resolvedVal == oldVal) {
+                    continue;
                 }
+            } else if (updatedVal != null ? !updatedVal.equals(oldVal) : updatedVal != oldVal) {
+                resolvedVal = updatedVal;
+            } else {
+                continue;
+            }
+
+            if (resolvedData == data) {
+                resolvedData = new LinkedHashMap<>(data);
             }
+            resolvedData.put(attribute.getKey(), resolvedVal);
         }
 
+        return resolvedData;
     }
 
+    // copies the maps and lists an operation's arguments lead to, since operations change them in place
+    private static Map<String, Object> copyOperands(Map<String, Object> data, Map<String, Object> arguments) {
+        Map<String, Object> copy = new LinkedHashMap<>(data);
 
-    private static String asISOTimestamp(UUID timeUuid) {
-        return (timeUuid != null) ? ISO8601Utils.format(new Date(getTimeMillis(timeUuid)), true) : null;
+        for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+            Object value = copy.get(argument.getKey());
+            switch (DataType.getDataType(value)) {
+                case MAP:
+                    if (DataType.getDataType(argument.getValue()) == DataType.JsonTypes.MAP) {
+                        copy.put(argument.getKey(), copyOperands((Map<String, Object>) value,
+                                (Map<String, Object>) argument.getValue()));
+                    }
+                    break;
+                case LIST:
+                    copy.put(argument.getKey(), new ArrayList<>((List) value));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return copy;
+    }
+
+
+    private static long getTimeMillis(UUID timeUuid) {
+        return (timeUuid != null) ? (timeUuid.timestamp() - NUM_100NS_INTERVALS_SINCE_UUID_EPOCH) / 10000 : Timestamps.NONE;
+    }
+
+    private static String getTextIfNotParsed(String text, long millis) {
+        return millis == Timestamps.NONE ? text : null;
     }
 
-    private static long getTimeMillis(UUID uuid) {
-        return (uuid.timestamp() - NUM_100NS_INTERVALS_SINCE_UUID_EPOCH) / 10000;
+    private static String asISOTimestamp(long millis) {
+        return millis == Timestamps.NONE ? null : Timestamps.format(millis);
     }
 
+    /** Formatted the first time it is read, and kept from then on */
     @JsonProperty(FIRST_UPDATE_AT)
     public String getFirstUpdateAt() {
-        return _firstUpdateAt;
+        if (_firstUpdateAtText == null) {
+            _firstUpdateAtText = asISOTimestamp(_firstUpdateAtMillis);
+        }
+        return _firstUpdateAtText;
     }
 
+    /** Formatted the first time it is read, and kept until a later update moves it */
     @JsonProperty(LAST_UPDATE_AT)
     public String getLastUpdateAt() {
-        return _lastUpdateAt;
+        if (_lastUpdateAtText == null) {
+            _lastUpdateAtText = asISOTimestamp(_lastUpdateAtMillis);
+        }
+        return _lastUpdateAtText;
     }
 
     @JsonProperty(TABLE)
@@ -168,15 +286,23 @@ public class Document {
 
     // removes key from the document as long as it is not an instric
     public void remove(String key) {
-        if (!INTRINSIC_ATTRIBUTES.contains(key)) {
-            _data.remove(key);
+        if (!INTRINSIC_ATTRIBUTES.contains(key) && _data.containsKey(key)) {
+            getMutableData().remove(key);
         }
     }
 
     @JsonAnySetter
     public void setDataField(String key, Object value) {
         checkNotNull(key, "key");
-        _data.put(key, value);
+        getMutableData().put(key, value);
+    }
+
+    private Map<String, Object> getMutableData() {
+        if (_dataShared) {
+            _data = new LinkedHashMap<>(_data);
+            _dataShared = false;
+        }
+        return _data;
     }
 
     public Object getValue(String key) {
@@ -198,11 +324,32 @@ public class Document {
 
     private void setData(Map<String, Object> data) {
         _data = data;
+        _dataShared = false;
+    }
+
+    /**
+     * A copy of the document that shares its data instead of copying it, so it costs the same however large the
+     * document is. Updates, {@link #setDataField} and {@link #remove} on either copy leave what the other sees as it
+     * was, but changes made directly to the maps returned by {@link #getData} are seen by both.
+     */
+    public Document snapshot() {
+        _dataShared = true;
+        return new Document(this);
+    }
+
+    /**
+     * A copy of the document with the given data in place of its own, and the same table, key, version and update
+     * times. The data is not copied, and belongs to the copy from then on.
+     */
+    public Document withData(Map<String, Object> data) {
+        Document copy = new Document(this);
+        copy.setData(checkNotNull(data, "data"));
+        return copy;
     }
 
     @Override
     public Document clone() {
-        Document clone = new Document(_table, _key, _firstUpdateAt, _lastUpdateAt, _version);
+        Document clone = new Document(this);
         clone.setData(getDataCopy(_data));
         return clone;
     }
@@ -235,13 +382,13 @@ public class Document {
         for (Object val : list) {
             switch (DataType.getDataType(val)) {
                 case MAP:
-                    list.add(getDataCopy((Map<String, Object>) val));
+                    newList.add(getDataCopy((Map<String, Object>) val));
                     break;
                 case LIST:
-                    list.add(getListCopy((List) val));
+                    newList.add(getListCopy((List) val));
                     break;
                 default:
-                    list.add(val);
+                    newList.add(val);
                     break;
 
             }
@@ -0,0 +1,177 @@
+package org.ezstack.ezapp.datastore.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Operations that are applied to the stored copy of a document by the denormalizer, rather than computed by the
+ * client. They are sent as top level attributes of an update, mapping each attribute to its argument, e.g.
+ * <pre>{"$inc": {"likes": 1, "author": {"posts": 1}}, "$append": {"tags": "new"}}</pre>
+ * A nested map argument applies the operation to the attributes of the nested document, the same way a partial update
+ * resolves nested documents. An operation that does not fit the stored value (such as incrementing a string, or an
+ * increment that overflows a long) is skipped, since the stored document is only known once the update reaches the
+ * denormalizer.
+ */
+public enum FieldOperation {
+    /** Adds the argument to the stored number, or sets it if the attribute is missing */
+    INC("$inc"),
+    /** Adds the argument (or each element of a list argument) to the end of the stored list */
+    APPEND("$append"),
+    /** Like {@link #APPEND}, but only adds elements that are not already in the stored list */
+    ADD_TO_SET("$addToSet"),
+    /** Removes the attribute */
+    UNSET("$unset");
+
+    private final String _operator;
+
+    FieldOperation(String operator) {
+        _operator = operator;
+    }
+
+    public String getOperator() {
+        return _operator;
+    }
+
+    /**
+     * @return true if the attribute is the operator of one of the operations. Other attributes, including ones that
+     * start with "$", are ordinary attributes of the document.
+     */
+    public static boolean isOperator(String attribute) {
+        for (FieldOperation operation : values()) {
+            if (operation.getOperator().equals(attribute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static FieldOperation fromOperator(String operator) {
+        for (FieldOperation operation : values()) {
+            if (operation.getOperator().equals(operator)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field operation: " + operator);
+    }
+
+    /**
+     * Checks that the arguments of the operation are well formed, so bad requests are rejected by the writer instead
+     * of being skipped by the denormalizer.
+     */
+    public void validate(Map<String, Object> arguments) {
+        for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+            Object value = argument.getValue();
+            if (DataType.getDataType(value) == DataType.JsonTypes.MAP) {
+                validate((Map<String, Object>) value);
+            } else if (this == INC) {
+                checkArgument(value instanceof Number, "%s requires a number for %s", _operator, argument.getKey());
+            }
+        }
+    }
+
+    /**
+     * Applies the operation to the data in place.
+     * @return true if the data was modified
+     */
+    public boolean apply(Map<String, Object> data, Map<String, Object> arguments) {
+        boolean mutated = false;
+
+        for (Map.Entry<String, Object> argument : arguments.entrySet()) {
+            String attribute = argument.getKey();
+            Object value = argument.getValue();
+            Object storedValue = data.get(attribute);
+
+            if (DataType.getDataType(value) == DataType.JsonTypes.MAP) {
+                if (storedValue == null && this != UNSET) {
+                    storedValue = new LinkedHashMap<String, Object>();
+                    data.put(attribute, storedValue);
+                }
+                if (DataType.getDataType(storedValue) == DataType.JsonTypes.MAP) {
+                    mutated |= apply((Map<String, Object>) storedValue, (Map<String, Object>) value);
+                }
+                continue;
+            }
+
+            switch (this) {
+                case INC:
+                    mutated |= increment(data, attribute, storedValue, value);
+                    break;
+                case APPEND:
+                case ADD_TO_SET:
+                    mutated |= append(data, attribute, storedValue, value);
+                    break;
+                case UNSET:
+                    if (data.containsKey(attribute)) {
+                        data.remove(attribute);
+                        mutated = true;
+                    }
+                    break;
+            }
+        }
+
+        return mutated;
+    }
+
+    private static boolean increment(Map<String, Object> data, String attribute, Object storedValue, Object value) {
+        if (!(value instanceof Number) || (storedValue != null && !(storedValue instanceof Number))) {
+            return false;
+        }
+
+        if (storedValue == null) {
+            data.put(attribute, value);
+            return true;
+        }
+
+        Number stored = (Number) storedValue;
+        Number delta = (Number) value;
+
+        if (isIntegral(stored) && isIntegral(delta)) {
+            long sum;
+            try {
+                sum = Math.addExact(stored.longValue(), delta.longValue());
+            } catch (ArithmeticException e) {
+                return false;
+            }
+            // keep the narrower type Jackson would have produced for the same value
+            data.put(attribute, sum == (int) sum ? (Object) (int) sum : (Object) sum);
+        } else {
+            data.put(attribute, stored.doubleValue() + delta.doubleValue());
+        }
+
+        return delta.doubleValue() != 0;
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+    private boolean append(Map<String, Object> data, String attribute, Object storedValue, Object value) {
+        if (storedValue != null && !(storedValue instanceof List)) {
+            return false;
+        }
+
+        List<Object> list = storedValue == null ? new ArrayList<>() : (List<Object>) storedValue;
+        Collection<?> elements = value instanceof Collection ? (Collection<?>) value : Collections.singleton(value);
+
+        boolean mutated = false;
+        for (Object element : elements) {
+            if (this == APPEND || !list.contains(element)) {
+                list.add(element);
+                mutated = true;
+            }
+        }
+
+        if (storedValue == null) {
+            data.put(attribute, list);
+            return true;
+        }
+
+        return mutated;
+    }
+}
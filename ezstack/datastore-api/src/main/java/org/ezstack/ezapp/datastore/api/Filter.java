@@ -9,6 +9,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 
 import javax.validation.constraints.NotNull;
+import java.util.function.Predicate;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -41,6 +42,7 @@ public class Filter {
     private String _attribute;
     private Operation _op;
     private Object _value;
+    private volatile Predicate<Document> _predicate;
 
     @JsonCreator
     public Filter(@NotNull @JsonProperty("attribute") String attribute,
@@ -99,6 +101,17 @@ public class Filter {
         return _value;
     }
 
+    /**
+     * This filter compiled into a predicate, see {@link FilterPredicates}.
+     */
+    @JsonIgnore
+    public Predicate<Document> getPredicate() {
+        if (_predicate == null) {
+            _predicate = FilterPredicates.compile(this);
+        }
+        return _predicate;
+    }
+
     @JsonIgnore
     public HashCode getMurmur3Hash() {
         StringBuilder sb = new StringBuilder();
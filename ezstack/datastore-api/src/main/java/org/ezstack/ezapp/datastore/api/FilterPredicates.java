@@ -0,0 +1,218 @@
+package org.ezstack.ezapp.datastore.api;
+
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Compiles {@link Filter}s into {@link Predicate}s over documents. How the filter value is compared against a
+ * document's value is decided once, when the filter is compiled, instead of on every document. Numbers are compared
+ * by value whatever their type, so an integer attribute matches a long filter value, and integers are compared with
+ * floating point numbers as doubles.
+ */
+public class FilterPredicates {
+
+    private static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    private FilterPredicates() {
+    }
+
+    public static Predicate<Document> compile(Filter filter) {
+        String attribute = filter.getAttribute();
+        ValueComparator comparator = getComparator(filter.getValue());
+
+        switch (filter.getOp()) {
+            case EQ:
+                return doc -> {
+                    Object value = doc.getValue(attribute);
+                    return value != null && comparator.isEqual(value);
+                };
+            case NOT_EQ:
+                return doc -> {
+                    Object value = doc.getValue(attribute);
+                    return value != null && !comparator.isEqual(value);
+                };
+            case GT:
+                return doc -> {
+                    int comparison = compare(comparator, doc.getValue(attribute));
+                    return comparison != INCOMPARABLE && comparison > 0;
+                };
+            case GTE:
+                return doc -> {
+                    int comparison = compare(comparator, doc.getValue(attribute));
+                    return comparison != INCOMPARABLE && comparison >= 0;
+                };
+            case LT:
+                return doc -> {
+                    int comparison = compare(comparator, doc.getValue(attribute));
+                    return comparison != INCOMPARABLE && comparison < 0;
+                };
+            case LTE:
+                return doc -> {
+                    int comparison = compare(comparator, doc.getValue(attribute));
+                    return comparison != INCOMPARABLE && comparison <= 0;
+                };
+            default:
+                return doc -> false;
+        }
+    }
+
+    /**
+     * Compiles a set of filters into a single predicate that a document meets if it meets all of them.
+     */
+    public static Predicate<Document> compileAll(Set<Filter> filters) {
+        Predicate<Document>[] predicates = QueryHelper.safeSet(filters)
+                .stream()
+                .map(Filter::getPredicate)
+                .toArray(Predicate[]::new);
+
+        switch (predicates.length) {
+            case 0:
+                return doc -> true;
+            case 1:
+                return predicates[0];
+            default:
+                return doc -> {
+                    for (Predicate<Document> predicate : predicates) {
+                        if (!predicate.test(doc)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+        }
+    }
+
+    private static int compare(ValueComparator comparator, Object value) {
+        return value == null ? INCOMPARABLE : comparator.compareTo(value);
+    }
+
+    private static ValueComparator getComparator(Object filterValue) {
+        if (isIntegral(filterValue)) {
+            return new IntegralComparator(((Number) filterValue).longValue());
+        }
+        if (isFloatingPoint(filterValue)) {
+            return new FloatingPointComparator(((Number) filterValue).doubleValue());
+        }
+        if (filterValue instanceof String || filterValue instanceof Boolean) {
+            return new SameTypeComparator((Comparable) filterValue);
+        }
+        return new EqualityOnlyComparator(filterValue);
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    private static boolean isFloatingPoint(Object value) {
+        return value instanceof Double || value instanceof Float;
+    }
+
+    private static int compareDoubles(double value, double filterValue) {
+        if (value > filterValue) {
+            return 1;
+        } else if (value < filterValue) {
+            return -1;
+        } else if (value == filterValue) {
+            return 0;
+        }
+        // NaN is neither above nor below anything
+        return INCOMPARABLE;
+    }
+
+    /**
+     * Compares a document's value with the value of a filter.
+     */
+    private interface ValueComparator {
+        boolean isEqual(Object value);
+
+        /**
+         * @return the sign of the document's value compared to the filter's value, or {@link #INCOMPARABLE}
+         */
+        int compareTo(Object value);
+    }
+
+    private static class IntegralComparator implements ValueComparator {
+        private final long _filterValue;
+
+        IntegralComparator(long filterValue) {
+            _filterValue = filterValue;
+        }
+
+        @Override
+        public boolean isEqual(Object value) {
+            return compareTo(value) == 0;
+        }
+
+        @Override
+        public int compareTo(Object value) {
+            if (isIntegral(value)) {
+                return Long.compare(((Number) value).longValue(), _filterValue);
+            }
+            if (isFloatingPoint(value)) {
+                return compareDoubles(((Number) value).doubleValue(), _filterValue);
+            }
+            return INCOMPARABLE;
+        }
+    }
+
+    private static class FloatingPointComparator implements ValueComparator {
+        private final double _filterValue;
+
+        FloatingPointComparator(double filterValue) {
+            _filterValue = filterValue;
+        }
+
+        @Override
+        public boolean isEqual(Object value) {
+            return compareTo(value) == 0;
+        }
+
+        @Override
+        public int compareTo(Object value) {
+            if (isIntegral(value) || isFloatingPoint(value)) {
+                return compareDoubles(((Number) value).doubleValue(), _filterValue);
+            }
+            return INCOMPARABLE;
+        }
+    }
+
+    private static class SameTypeComparator implements ValueComparator {
+        private final Comparable _filterValue;
+
+        SameTypeComparator(Comparable filterValue) {
+            _filterValue = filterValue;
+        }
+
+        @Override
+        public boolean isEqual(Object value) {
+            return _filterValue.equals(value);
+        }
+
+        @Override
+        public int compareTo(Object value) {
+            if (value.getClass() != _filterValue.getClass()) {
+                return INCOMPARABLE;
+            }
+            return Integer.signum(((Comparable) value).compareTo(_filterValue));
+        }
+    }
+
+    // lists, maps and other values can only be matched exactly
+    private static class EqualityOnlyComparator implements ValueComparator {
+        private final Object _filterValue;
+
+        EqualityOnlyComparator(Object filterValue) {
+            _filterValue = filterValue;
+        }
+
+        @Override
+        public boolean isEqual(Object value) {
+            return value.equals(_filterValue);
+        }
+
+        @Override
+        public int compareTo(Object value) {
+            return INCOMPARABLE;
+        }
+    }
+}
@@ -1,22 +1,50 @@
 package org.ezstack.ezapp.datastore.api;
 
 import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 
 public class KeyBuilder {
-    public static String hashKey(String table, String key) {
+
+    public static final int HASH_KEY_SIZE_IN_BYTES = 16;
+
+    /**
+     * Fixed width, 128-bit murmur3 key for a document. This is the key of every record on the documents topic and
+     * in the denormalizer's document stores, so it stays 16 bytes no matter how long the table or key is.
+     */
+    public static HashCode hashKey(String table, String key) {
+        // the table length is hashed first so that ("ab", "c") and ("a", "bc") cannot produce the same input
+        return Hashing.murmur3_128().newHasher()
+                .putInt(table.length())
+                .putString(table, Charsets.UTF_8)
+                .putString(key, Charsets.UTF_8)
+                .hash();
+    }
+
+    public static byte[] hashKeyAsBytes(String table, String key) {
+        return hashKey(table, key).asBytes();
+    }
+
+    /**
+     * The variable width "key~table~" key that records were stored under before {@link #hashKey(String, String)}.
+     * It should only be used to find and migrate records that were written with the old format.
+     */
+    public static String legacyHashKey(String table, String key) {
         // These hash keys do not need to be clusterable by table, as there are no range queries,
-        // hence, it makes more sense to put the key hash first as it will likely provide better distribution
+        // hence, it makes more sense to put the key first as it will likely provide better distribution
         return hash(key, table);
     }
 
+    public static byte[] legacyHashKeyAsBytes(String table, String key) {
+        return legacyHashKey(table, key).getBytes(Charsets.UTF_8);
+    }
+
     public static String hash(String... inputs) {
         StringBuilder builder = new StringBuilder();
         for (String input : inputs) {
             builder.append(input);
             builder.append("~");
         }
-        Hashing.murmur3_128().hashString(builder.toString(), Charsets.UTF_8);
         return builder.toString();
     }
 }
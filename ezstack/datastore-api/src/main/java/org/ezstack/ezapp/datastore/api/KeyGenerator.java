@@ -0,0 +1,54 @@
+package org.ezstack.ezapp.datastore.api;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates keys for documents that are created without one.
+ */
+public enum KeyGenerator {
+    /** Random UUIDs */
+    RANDOM {
+        @Override
+        public String generate() {
+            return UUID.randomUUID().toString();
+        }
+    },
+
+    /**
+     * 26 character ULIDs: a 48-bit millisecond timestamp followed by 80 random bits, in Crockford base32. Keys sort
+     * lexicographically by creation time (to the millisecond), so documents created together end up next to each
+     * other in Elasticsearch segments instead of being scattered across them.
+     */
+    TIME_ORDERED {
+        @Override
+        public String generate() {
+            return timeOrderedKey(System.currentTimeMillis());
+        }
+    };
+
+    private static final char[] CROCKFORD_BASE32 = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int TIMESTAMP_LENGTH = 10;
+    private static final int RANDOM_LENGTH = 16;
+
+    public abstract String generate();
+
+    static String timeOrderedKey(long timestampInMillis) {
+        char[] key = new char[TIMESTAMP_LENGTH + RANDOM_LENGTH];
+
+        encode(timestampInMillis, key, 0, TIMESTAMP_LENGTH);
+        // 80 random bits, written as two blocks of 40 bits
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        encode(random.nextLong(1L << 40), key, TIMESTAMP_LENGTH, RANDOM_LENGTH / 2);
+        encode(random.nextLong(1L << 40), key, TIMESTAMP_LENGTH + RANDOM_LENGTH / 2, RANDOM_LENGTH / 2);
+
+        return new String(key);
+    }
+
+    private static void encode(long value, char[] destination, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            destination[i] = CROCKFORD_BASE32[(int) (value & 31)];
+            value >>>= 5;
+        }
+    }
+}
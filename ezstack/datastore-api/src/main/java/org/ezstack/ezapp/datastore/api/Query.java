@@ -11,6 +11,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 
 import java.util.*;
+import java.util.function.Predicate;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -32,6 +33,8 @@ public class Query {
     private Set<String> _excludeAttributes;
     private Set<String> _includeAttributes;
 
+    private volatile Predicate<Document> _filterPredicate;
+
     @JsonCreator
     public Query(@JsonProperty("searchTypes") Set<SearchType> searchTypes,
                  @JsonProperty("table") String table,
@@ -70,6 +73,17 @@ public class Query {
         return QueryHelper.safeSet(_filters);
     }
 
+    /**
+     * The filters of this query compiled into a single predicate, which is built once and then reused.
+     */
+    @JsonIgnore
+    public Predicate<Document> getFilterPredicate() {
+        if (_filterPredicate == null) {
+            _filterPredicate = FilterPredicates.compileAll(_filters);
+        }
+        return _filterPredicate;
+    }
+
     @JsonProperty("join")
     public Query getJoin() {
         return _join;
@@ -58,110 +58,7 @@ public class QueryHelper {
     }
 
     public static boolean meetsFilter(Filter f, Document doc) {
-        Object val = doc.getValue(f.getAttribute());
-        if (val == null) {
-            return false;
-        }
-
-        switch (f.getOp()) {
-            case EQ:
-                return val.equals(f.getValue());
-            case NOT_EQ:
-                return !val.equals(f.getValue());
-            case GT:
-                return compare(val, f.getValue(), Filter.Operation.GT);
-            case GTE:
-                return compare(val, f.getValue(), Filter.Operation.GTE);
-            case LT:
-                return compare(val, f.getValue(), Filter.Operation.LT);
-            case LTE:
-                return compare(val, f.getValue(), Filter.Operation.LTE);
-        }
-        return false;
-    }
-
-    private static boolean compare(Object o1, Object o2, Filter.Operation op) {
-        DataType.JsonTypes type = DataType.getDataType(o1);
-        if (type != DataType.getDataType(o2) || type == DataType.JsonTypes.UNKNOWN ||
-                // should we have some fun with list and map comparisons ?
-                type == DataType.JsonTypes.LIST || type == DataType.JsonTypes.MAP) {
-            return false;
-        }
-
-        switch (type) {
-            case INTEGER:
-                int o1Int = (int) o1;
-                int o2Int = (int) o2;
-                switch (op) {
-                    case GT:
-                        return o1Int > o2Int;
-                    case GTE:
-                        return o1Int >= o2Int;
-                    case LT:
-                        return o1Int < o2Int;
-                    case LTE:
-                        return o1Int <= o2Int;
-                }
-                break;
-            case LONG:
-                long o1Long = (long) o1;
-                long o2Long = (long) o2;
-                switch (op) {
-                    case GT:
-                        return o1Long > o2Long;
-                    case GTE:
-                        return o1Long >= o2Long;
-                    case LT:
-                        return o1Long < o2Long;
-                    case LTE:
-                        return o1Long <= o2Long;
-                }
-                break;
-            case DOUBLE:
-                double o1Double = (double) o1;
-                double o2Double = (double) o2;
-                switch (op) {
-                    case GT:
-                        return o1Double > o2Double;
-                    case GTE:
-                        return o1Double >= o2Double;
-                    case LT:
-                        return o1Double < o2Double;
-                    case LTE:
-                        return o1Double <= o2Double;
-                }
-                break;
-            case BOOLEAN:
-                Boolean o1Bool = (Boolean) o1;
-                Boolean o2Bool = (Boolean) o2;
-                switch (op) {
-                    case GT:
-                        return o1Bool.compareTo(o2Bool) > 0;
-                    case GTE:
-                        return o1Bool.compareTo(o2Bool) >= 0;
-                    case LT:
-                        return o1Bool.compareTo(o2Bool) < 0;
-                    case LTE:
-                        return o1Bool.compareTo(o2Bool) <= 0;
-                }
-                break;
-            case STRING:
-                String o1Str = (String) o1;
-                String o2Str = (String) o2;
-                switch (op) {
-                    case GT:
-                        return o1Str.compareTo(o2Str) > 0;
-                    case GTE:
-                        return o1Str.compareTo(o2Str) >= 0;
-                    case LT:
-                        return o1Str.compareTo(o2Str) < 0;
-                    case LTE:
-                        return o1Str.compareTo(o2Str) <= 0;
-                }
-                break;
-        }
-
-        return false;
+        return f.getPredicate().test(doc);
     }
 
     public static <T> List<T> safeList(List<T> l) {
@@ -177,10 +74,12 @@ public class QueryHelper {
             return doc;
         }
 
+        // the document may be shared, so the attributes are removed from a snapshot of it
+        Document newDoc = doc.snapshot();
         for (String attribute: excludeAttributes) {
-            doc.remove(attribute);
+            newDoc.remove(attribute);
         }
-        return doc;
+        return newDoc;
     }
 
     private static Document includeAttributes(Set<String> includeAttributes, Document doc) {
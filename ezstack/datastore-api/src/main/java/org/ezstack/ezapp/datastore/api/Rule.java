@@ -18,7 +18,18 @@ public class Rule {
         ACCEPTED,
         BOOTSTRAPPING,
         ACTIVE,
-        INACTIVE
+        INACTIVE,
+        /**
+         * Set by {@link RulesManager#removeRule} only. A retired rule keeps this status until its state and index
+         * are reclaimed and it is deleted.
+         */
+        RETIRED,
+        /**
+         * Left in place of a retired rule once it is deleted, so that documents still on their way to it are
+         * dropped rather than indexed again. {@link RulesManager} does not return deleted rules, and a new rule
+         * can be created with the table of a deleted one.
+         */
+        DELETED
     }
 
     private final Query _query;
@@ -0,0 +1,12 @@
+package org.ezstack.ezapp.datastore.api;
+
+/**
+ * Deletes the documents that were denormalized into the table of a rule, once the rule has been retired.
+ */
+public interface RuleTableDeleter {
+
+    /**
+     * Does nothing if the table does not exist, so that it can be retried.
+     */
+    void deleteRuleTable(String ruleTable);
+}
@@ -8,8 +8,14 @@ public interface RulesManager {
 
     void createRule(Rule rule) throws RuleAlreadyExistsException;
 
+    /**
+     * Retires the rule, see {@link RuleStatus#RETIRED}.
+     */
     void removeRule(String ruleTable);
 
+    /**
+     * @throws IllegalArgumentException if the status is {@link RuleStatus#RETIRED}, or the rule is retired
+     */
     void setRuleStatus(String ruleTable, RuleStatus status);
 
     Rule getRule(String ruleTable);
@@ -0,0 +1,166 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An aggregation over a set of documents that documents can be added to and removed from in constant time, with the
+ * same result a {@link SearchTypeAggregationHelper} computes over the whole set. Minimums and maximums keep their
+ * values in an ordered multiset instead, so that removing the current minimum or maximum does not need a rescan.
+ *
+ * Removing a document has to be given the same version of the document that was added. Sums of floating point
+ * values can be off in the last digits from a recomputed sum, since rounding depends on the order of the values.
+ */
+public class RunningAggregation {
+
+    private final SearchType _searchType;
+    // the documents that count towards the result
+    private long _documentCount;
+    private long _longSum;
+    private double _doubleSum;
+    private long _doubleCount;
+    // value -> number of documents with it, only kept for minimums and maximums
+    private final NavigableMap<Long, Integer> _longValues;
+    private final NavigableMap<Double, Integer> _doubleValues;
+
+    public RunningAggregation(SearchType searchType) {
+        this(searchType, 0, 0, 0.0, 0, null, null);
+    }
+
+    @JsonCreator
+    public RunningAggregation(@JsonProperty("searchType") SearchType searchType,
+                              @JsonProperty("documentCount") long documentCount,
+                              @JsonProperty("longSum") long longSum,
+                              @JsonProperty("doubleSum") double doubleSum,
+                              @JsonProperty("doubleCount") long doubleCount,
+                              @JsonProperty("longValues") TreeMap<Long, Integer> longValues,
+                              @JsonProperty("doubleValues") TreeMap<Double, Integer> doubleValues) {
+        _searchType = checkNotNull(searchType, "searchType");
+        checkArgument(searchType.getType() != SearchType.Type.SEARCH, "searches are not aggregations");
+
+        _documentCount = documentCount;
+        _longSum = longSum;
+        _doubleSum = doubleSum;
+        _doubleCount = doubleCount;
+        _longValues = MoreObjects.firstNonNull(longValues, new TreeMap<>());
+        _doubleValues = MoreObjects.firstNonNull(doubleValues, new TreeMap<>());
+    }
+
+    public void add(Document document) {
+        update(document, 1);
+    }
+
+    public void remove(Document document) {
+        update(document, -1);
+    }
+
+    private void update(Document document, int delta) {
+        if (_searchType.getType() == SearchType.Type.COUNT) {
+            if (document.containsKey(_searchType.getAttributeOn())) {
+                _documentCount += delta;
+            }
+            return;
+        }
+
+        Object value = SearchTypeAggregationHelper.isValidAggregation(document.getValue(_searchType.getAttributeOn()));
+        if (value == null) {
+            return;
+        }
+
+        _documentCount += delta;
+
+        boolean keepValues = _searchType.getType() == SearchType.Type.MIN || _searchType.getType() == SearchType.Type.MAX;
+
+        if (value instanceof Double) {
+            double doubleValue = (Double) value;
+            _doubleSum += delta * doubleValue;
+            _doubleCount += delta;
+            if (keepValues) {
+                _doubleValues.merge(doubleValue, delta, (count, change) -> count + change == 0 ? null : count + change);
+            }
+        } else {
+            long longValue = ((Number) value).longValue();
+            _longSum += delta * longValue;
+            if (keepValues) {
+                _longValues.merge(longValue, delta, (count, change) -> count + change == 0 ? null : count + change);
+            }
+        }
+    }
+
+    @JsonIgnore
+    public Object getResult() {
+        if (_searchType.getType() == SearchType.Type.COUNT) {
+            return _documentCount;
+        }
+
+        if (_documentCount <= 0) {
+            return 0;
+        }
+
+        boolean hasDoubles = _doubleCount > 0;
+
+        switch (_searchType.getType()) {
+            case SUM:
+                return hasDoubles ? (Object) (_longSum + _doubleSum) : (Object) _longSum;
+            case AVG:
+                return (_longSum + _doubleSum) / _documentCount;
+            case MIN:
+                if (!hasDoubles) {
+                    return _longValues.firstKey();
+                }
+                return _longValues.isEmpty() ? _doubleValues.firstKey() :
+                        Math.min(_doubleValues.firstKey(), (double) _longValues.firstKey());
+            case MAX:
+                if (!hasDoubles) {
+                    return _longValues.lastKey();
+                }
+                return _longValues.isEmpty() ? _doubleValues.lastKey() :
+                        Math.max(_doubleValues.lastKey(), (double) _longValues.lastKey());
+            default:
+                return 0;
+        }
+    }
+
+    @JsonProperty("searchType")
+    public SearchType getSearchType() {
+        return _searchType;
+    }
+
+    @JsonProperty("documentCount")
+    public long getDocumentCount() {
+        return _documentCount;
+    }
+
+    @JsonProperty("longSum")
+    private long getLongSum() {
+        return _longSum;
+    }
+
+    @JsonProperty("doubleSum")
+    private double getDoubleSum() {
+        return _doubleSum;
+    }
+
+    @JsonProperty("doubleCount")
+    private long getDoubleCount() {
+        return _doubleCount;
+    }
+
+    @JsonProperty("longValues")
+    private NavigableMap<Long, Integer> getLongValues() {
+        return _longValues;
+    }
+
+    @JsonProperty("doubleValues")
+    private NavigableMap<Double, Integer> getDoubleValues() {
+        return _doubleValues;
+    }
+}
@@ -49,6 +49,7 @@ public class SearchTypeAggregationHelper {
             case SUM:
                 switch (_jsonType) {
                     case INTEGER:
+                    case LONG: // fall through
                         return _longResult;
                     case DOUBLE:
                         return _doubleResult;
@@ -92,7 +93,7 @@ public class SearchTypeAggregationHelper {
                 _longResult = val;
             }
         } else if (_jsonType == DataType.JsonTypes.DOUBLE) {
-            double val = (double) value;
+            double val = ((Number) value).doubleValue();
             if (_doubleResult < val || _documentCount == 1) {
                 _doubleResult = val;
             }
@@ -119,7 +120,7 @@ public class SearchTypeAggregationHelper {
                 _longResult = val;
             }
         } else if (_jsonType == DataType.JsonTypes.DOUBLE) {
-            double val = (double) value;
+            double val = ((Number) value).doubleValue();
             if (_doubleResult > val || _documentCount == 1) {
                 _doubleResult = val;
             }
@@ -142,7 +143,7 @@ public class SearchTypeAggregationHelper {
             long val = (long) value;
             _longResult += val;
         } else if (_jsonType == DataType.JsonTypes.DOUBLE) {
-            double val = (double) value;
+            double val = ((Number) value).doubleValue();
             _doubleResult += val;
         }
     }
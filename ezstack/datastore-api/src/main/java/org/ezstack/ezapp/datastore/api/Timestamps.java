@@ -0,0 +1,103 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+/**
+ * Converts the update times of documents between epoch millis and the ISO-8601 form they are written in, e.g.
+ * "2017-11-13T21:13:59.213Z", without going through a formatter or a calendar.
+ */
+final class Timestamps {
+
+    /** Stands for a time that is missing, or that is not in the form {@link #format} writes */
+    static final long NONE = Long.MIN_VALUE;
+
+    private static final int LENGTH = "yyyy-MM-ddTHH:mm:ss.SSSZ".length();
+
+    private Timestamps() {
+    }
+
+    /**
+     * @return the epoch millis of the time, or {@link #NONE} if it is not exactly in the form {@link #format} writes,
+     * so that it would not be written back the same
+     */
+    static long parse(String text) {
+        if (text == null || text.length() != LENGTH
+                || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T' || text.charAt(13) != ':'
+                || text.charAt(16) != ':' || text.charAt(19) != '.' || text.charAt(23) != 'Z') {
+            return NONE;
+        }
+
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        int millis = digits(text, 20, 3);
+
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                || second < 0 || second > 59 || millis < 0) {
+            return NONE;
+        }
+
+        long epochDay;
+        try {
+            epochDay = LocalDate.of(year, month, day).toEpochDay();
+        } catch (DateTimeException e) {
+            return NONE;
+        }
+
+        return ((epochDay * 24 + hour) * 60 + minute) * 60000 + second * 1000 + millis;
+    }
+
+    static String format(long epochMillis) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000), 0, ZoneOffset.UTC);
+        if (time.getYear() < 0 || time.getYear() > 9999) {
+            return ISO8601Utils.format(new Date(epochMillis), true);
+        }
+
+        char[] text = new char[LENGTH];
+        putDigits(text, 0, 4, time.getYear());
+        text[4] = '-';
+        putDigits(text, 5, 2, time.getMonthValue());
+        text[7] = '-';
+        putDigits(text, 8, 2, time.getDayOfMonth());
+        text[10] = 'T';
+        putDigits(text, 11, 2, time.getHour());
+        text[13] = ':';
+        putDigits(text, 14, 2, time.getMinute());
+        text[16] = ':';
+        putDigits(text, 17, 2, time.getSecond());
+        text[19] = '.';
+        putDigits(text, 20, 3, (int) Math.floorMod(epochMillis, 1000));
+        text[23] = 'Z';
+
+        return new String(text);
+    }
+
+    // -1 if any of the characters is not a digit
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void putDigits(char[] text, int start, int count, int value) {
+        for (int i = start + count - 1; i >= start; i--) {
+            text[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
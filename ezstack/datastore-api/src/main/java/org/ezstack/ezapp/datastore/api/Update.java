@@ -2,10 +2,14 @@ package org.ezstack.ezapp.datastore.api;
 
 import com.datastax.driver.core.utils.UUIDs;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
@@ -18,11 +22,23 @@ public class Update {
     private final UUID _timestamp;
     private final Map<String, Object> _data;
     private final boolean _isUpdate;
+    private final Map<FieldOperation, Map<String, Object>> _operations;
 
+    public Update(String table, String key, UUID timestamp, Map<String, Object> data, boolean isUpdate) {
+        this(table, key, timestamp, data, isUpdate, null);
+    }
+
+    /**
+     * The data may be empty when the update only carries field operations, so it is not {@code @NotEmpty}. The writer
+     * rejects updates that carry neither, see {@link #isEmpty()}.
+     *
+     * @param operations {@link FieldOperation}s that are applied to the document after the data
+     */
     @JsonCreator
     public Update(@NotEmpty @JsonProperty("_table") String table, @NotEmpty @JsonProperty("_key") String key,
-                  @JsonProperty("_timestamp") UUID timestamp, @NotEmpty @JsonProperty("_data") Map<String, Object> data,
-                  @JsonProperty("_isUpdate") boolean isUpdate) {
+                  @JsonProperty("_timestamp") UUID timestamp, @JsonProperty("_data") Map<String, Object> data,
+                  @JsonProperty("_isUpdate") boolean isUpdate,
+                  @JsonProperty("_operations") Map<FieldOperation, Map<String, Object>> operations) {
 
         checkArgument(Names.isLegalTableName(table), "Invalid Table Name");
         checkArgument(Names.isLegalKey("Invalid key"));
@@ -30,8 +46,9 @@ public class Update {
         _table = table;
         _key = key;
         _timestamp = MoreObjects.firstNonNull(timestamp, UUIDs.timeBased());
-        _data = data;
+        _data = MoreObjects.firstNonNull(data, new LinkedHashMap<>());
         _isUpdate = isUpdate;
+        _operations = MoreObjects.firstNonNull(operations, Collections.emptyMap());
     }
 
     @JsonProperty("_table")
@@ -58,4 +75,61 @@ public class Update {
     public boolean isUpdate() {
         return _isUpdate;
     }
+
+    @JsonProperty("_operations")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public Map<FieldOperation, Map<String, Object>> getOperations() {
+        return _operations;
+    }
+
+    public boolean hasOperations() {
+        return !_operations.isEmpty();
+    }
+
+    /**
+     * @return true if the update carries neither data nor field operations
+     */
+    @JsonIgnore
+    public boolean isEmpty() {
+        return _data.isEmpty() && _operations.isEmpty();
+    }
+
+    /**
+     * Merges two updates to the same document into a single update that has the same effect on the document as
+     * applying {@code older} and then {@code newer}. Nested maps are resolved the same way
+     * {@link Document#addUpdate(Update)} resolves them, and the merged update keeps the latest of the two timestamps.
+     * Neither of the given updates is modified. Updates with {@link FieldOperation}s depend on the stored document,
+     * so they cannot be merged.
+     */
+    public static Update merge(Update older, Update newer) {
+        checkArgument(older.getTable().equals(newer.getTable()) && older.getKey().equals(newer.getKey()),
+                "Updates are not to the same record");
+        checkArgument(!older.hasOperations() && !newer.hasOperations(), "Updates with field operations cannot be merged");
+
+        UUID timestamp = older.getTimestamp().timestamp() > newer.getTimestamp().timestamp() ?
+                older.getTimestamp() : newer.getTimestamp();
+
+        if (!newer.isUpdate()) {
+            return new Update(newer.getTable(), newer.getKey(), timestamp, newer.getData(), false);
+        }
+
+        Map<String, Object> data = mergeData(new LinkedHashMap<>(older.getData()), newer.getData());
+        return new Update(newer.getTable(), newer.getKey(), timestamp, data, older.isUpdate());
+    }
+
+    private static Map<String, Object> mergeData(Map<String, Object> dataToUpdate, Map<String, Object> updatedData) {
+        for (Map.Entry<String, Object> attribute : updatedData.entrySet()) {
+            Object updatedVal = attribute.getValue();
+            Object oldVal = dataToUpdate.get(attribute.getKey());
+
+            if (DataType.getDataType(updatedVal) == DataType.JsonTypes.MAP && DataType.getDataType(oldVal) == DataType.JsonTypes.MAP) {
+                dataToUpdate.put(attribute.getKey(), mergeData(new LinkedHashMap<>((Map<String, Object>) oldVal),
+                        (Map<String, Object>) updatedVal));
+            } else {
+                dataToUpdate.put(attribute.getKey(), updatedVal);
+            }
+        }
+
+        return dataToUpdate;
+    }
 }
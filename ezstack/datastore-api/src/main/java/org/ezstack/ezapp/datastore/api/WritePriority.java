@@ -0,0 +1,15 @@
+package org.ezstack.ezapp.datastore.api;
+
+/**
+ * The lane a write is published on. Interactive writes have their own topic, which the denormalizer reads ahead of
+ * the bulk topic, so large imports do not delay them. Writes to the same document on different lanes are not ordered
+ * relative to each other, the denormalizer reconciles them per attribute by the time they were accepted.
+ */
+public enum WritePriority {
+    INTERACTIVE, BULK;
+
+    // lets jersey accept the lowercase form as a query parameter
+    public static WritePriority fromString(String priority) {
+        return valueOf(priority.toUpperCase());
+    }
+}
@@ -0,0 +1,19 @@
+package org.ezstack.ezapp.datastore.api;
+
+/**
+ * Thrown when a write is turned away because a rate limit or the in-flight bound has been reached. Nothing was
+ * written, so the write can be retried once the hinted delay has passed.
+ */
+public class WriteRejectedException extends RuntimeException {
+
+    private final long _retryAfterMillis;
+
+    public WriteRejectedException(String message, long retryAfterMillis) {
+        super(message);
+        _retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return _retryAfterMillis;
+    }
+}
@@ -0,0 +1,103 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Compares the heap held by documents with what the same documents take with a previous version of {@link Document},
+ * loaded from the classes of that version, e.g. those of the commit before a change to it:
+ * <pre>
+ * git worktree add /tmp/previous &lt;commit before the change&gt;
+ * mvn -f /tmp/previous/ezstack/datastore-api/pom.xml compile
+ * </pre>
+ * Both are measured right after they are parsed, and again once their update times have been read, as they are when
+ * the documents are written. Not run with the tests:
+ * <pre>java -Xmx2g -cp ... org.ezstack.ezapp.datastore.api.DocumentMemoryBenchmark [previous classes] [documents]</pre>
+ */
+public class DocumentMemoryBenchmark {
+
+    private static final String JSON = "{\"~table\":\"comment\",\"~key\":\"%d\",\"~firstUpdateAt\":\"2017-11-13T21:13:59.213Z\"," +
+            "\"~lastUpdateAt\":\"2018-01-26T06:35:33.899Z\",\"author\":{\"firstName\":\"Bob\",\"lastName\":\"Johnson\"}," +
+            "\"title\":\"Best Ever!\",\"likes\":%d,\"~version\":2}";
+
+    // loads the classes of this project from the previous version, and everything else, Jackson included, as usual
+    private static class PreviousVersionLoader extends URLClassLoader {
+
+        PreviousVersionLoader(URL classes) {
+            super(new URL[] {classes}, DocumentMemoryBenchmark.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null && name.startsWith("org.ezstack.")) {
+                    try {
+                        loaded = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        // not part of the previous version
+                    }
+                }
+                if (loaded == null) {
+                    return super.loadClass(name, resolve);
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+    }
+
+    // holds the documents being measured, so that they are not collected before they are
+    private static Object[] _documents;
+
+    public static void main(String[] args) throws Exception {
+        String previousClasses = args.length > 0 ? args[0] : "/tmp/previous/ezstack/datastore-api/target/classes";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Class<?> previousDocument = new PreviousVersionLoader(new File(previousClasses).toURI().toURL())
+                .loadClass(Document.class.getName());
+        if (previousDocument == Document.class) {
+            throw new IllegalArgumentException("no Document in " + previousClasses);
+        }
+
+        measure("previous", previousDocument, count);
+        measure("current", Document.class, count);
+    }
+
+    private static void measure(String version, Class<?> documentClass, int count) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Method getFirstUpdateAt = documentClass.getMethod("getFirstUpdateAt");
+        Method getLastUpdateAt = documentClass.getMethod("getLastUpdateAt");
+
+        long before = usedHeap();
+        _documents = new Object[count];
+        for (int i = 0; i < count; i++) {
+            _documents[i] = mapper.readValue(String.format(JSON, i, i), documentClass);
+        }
+        long parsedBytes = usedHeap() - before;
+
+        for (Object document : _documents) {
+            getFirstUpdateAt.invoke(document);
+            getLastUpdateAt.invoke(document);
+        }
+        long readBytes = usedHeap() - before;
+        _documents = null;
+
+        System.out.printf("%s: %d documents, %d bytes each once parsed, %d bytes each once their times are read%n",
+                version, count, parsedBytes / count, readBytes / count);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
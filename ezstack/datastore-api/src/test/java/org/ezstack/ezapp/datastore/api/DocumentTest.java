@@ -5,9 +5,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -183,4 +188,100 @@ public class DocumentTest {
 
     }
 
+    @Test
+    public void testSnapshotIsUnchangedByUpdates() throws IOException {
+        UUID timestamp = UUID.fromString("1c8f95b0-0263-11e8-8f1a-0800200c9a66");
+        Document stored = mapper.readValue("{\"~table\":\"comment\",\"~key\":\"dsfaf3\",\"~firstUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"~lastUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"author\":{\"firstName\":\"Bob\",\"posts\":3},\"stats\":{\"views\":1},\"tags\":[\"a\"],\"~version\":2}", Document.class);
+        String storedJson = mapper.writeValueAsString(stored);
+
+        Map<String, Object> author = new HashMap<>();
+        author.put("firstName", "Robert");
+        Map<String, Object> data = new HashMap<>();
+        data.put("author", author);
+
+        Map<FieldOperation, Map<String, Object>> operations = new EnumMap<>(FieldOperation.class);
+        Map<String, Object> posts = new HashMap<>();
+        posts.put("posts", 1);
+        Map<String, Object> increments = new HashMap<>();
+        increments.put("author", posts);
+        operations.put(FieldOperation.INC, increments);
+        Map<String, Object> appends = new HashMap<>();
+        appends.put("tags", "b");
+        operations.put(FieldOperation.APPEND, appends);
+
+        Document updated = stored.snapshot();
+        updated.addUpdate(new Update("comment", "dsfaf3", timestamp, data, true, operations));
+        updated.setDataField("title", "New");
+
+        assertEquals(storedJson, mapper.writeValueAsString(stored));
+        assertEquals(3, updated.getVersion());
+        assertEquals("Robert", ((Map) updated.getValue("author")).get("firstName"));
+        assertEquals(4, ((Map) updated.getValue("author")).get("posts"));
+        assertEquals(Arrays.asList("a", "b"), updated.getValue("tags"));
+        assertEquals("New", updated.getValue("title"));
+        // what the update did not touch is shared rather than copied
+        assertSame(stored.getValue("stats"), updated.getValue("stats"));
+    }
+
+    @Test
+    public void testLateUpdateDoesNotMoveLastUpdateBack() {
+        UUID earlierTimestamp = UUID.fromString("1c8f95b0-0263-11e7-8f1a-0800200c9a66");
+        Map<String, Object> increments = new HashMap<>();
+        increments.put("likes", 1);
+        Map<FieldOperation, Map<String, Object>> operations = new EnumMap<>(FieldOperation.class);
+        operations.put(FieldOperation.INC, increments);
+        Map<String, Object> data = new HashMap<>();
+        data.put("title", "Old");
+
+        document.addUpdate(new Update("comment", "dsfaf3", earlierTimestamp, data, true, operations));
+
+        assertEquals(51, document.getValue("likes"));
+        assertEquals("Old", document.getValue("title"));
+        assertEquals(3, document.getVersion());
+        assertEquals("2017-11-13T21:13:59.213Z", document.getLastUpdateAt());
+    }
+
+    @Test
+    public void testLastUpdateAtReadBeforeUpdate() {
+        assertEquals("2017-11-13T21:13:59.213Z", document.getLastUpdateAt());
+
+        UUID timestamp = UUID.fromString("1c8f95b0-0263-11e8-8f1a-0800200c9a66");
+        Map<String, Object> data = new HashMap<>();
+        data.put("likes", 25);
+        document.addUpdate(new Update("comment", "dsfaf3", timestamp, data, true));
+
+        assertEquals("2017-11-13T21:13:59.213Z", document.getFirstUpdateAt());
+        assertEquals("2018-01-26T06:35:33.899Z", document.getLastUpdateAt());
+    }
+
+    @Test
+    public void testWithDataKeepsMetadata() throws IOException {
+        Document parsed = mapper.readValue("{\"~table\":\"comment\",\"~key\":\"dsfaf3\"," +
+                "\"~firstUpdateAt\":\"2017-11-13T21:13:59Z\",\"~lastUpdateAt\":\"2018-01-26T06:35:33.899Z\"," +
+                "\"title\":\"Best Ever!\",\"~version\":3}", Document.class);
+        Map<String, Object> data = new HashMap<>();
+        data.put("likes", 50);
+
+        Document copy = parsed.withData(data);
+
+        assertEquals("comment", copy.getTable());
+        assertEquals("dsfaf3", copy.getKey());
+        assertEquals(3, copy.getVersion());
+        // kept as it was written, since it is not in the form the document writes
+        assertEquals("2017-11-13T21:13:59Z", copy.getFirstUpdateAt());
+        assertEquals("2018-01-26T06:35:33.899Z", copy.getLastUpdateAt());
+        assertEquals(data, copy.getData());
+        assertEquals("Best Ever!", parsed.getValue("title"));
+    }
+
+    @Test
+    public void testCloneCopiesLists() {
+        List<Object> tags = new ArrayList<>(Arrays.asList("a", "b"));
+        document.setDataField("tags", tags);
+
+        Document docCopy = document.clone();
+        tags.add("c");
+
+        assertEquals(Arrays.asList("a", "b"), docCopy.getValue("tags"));
+    }
 }
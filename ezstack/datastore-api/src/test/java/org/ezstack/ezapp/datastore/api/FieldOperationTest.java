@@ -0,0 +1,133 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class FieldOperationTest {
+
+    private final String jsonDoc = "{\"~table\":\"comment\",\"~key\":\"dsfaf3\",\"~firstUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"~lastUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"author\":{\"firstName\":\"Bob\",\"posts\":3},\"tags\":[\"a\"],\"title\":\"Best Ever!\",\"likes\":50,\"~version\":2}";
+    private final UUID timestamp = UUID.fromString("1c8f95b0-0263-11e8-8f1a-0800200c9a66");
+
+    private Document document;
+    private ObjectMapper mapper;
+
+    @Before
+    public void buildDoc() throws IOException {
+        mapper = new ObjectMapper();
+        document = mapper.readValue(jsonDoc, Document.class);
+    }
+
+    private Update getUpdate(FieldOperation operation, Map<String, Object> arguments) {
+        Map<FieldOperation, Map<String, Object>> operations = new EnumMap<>(FieldOperation.class);
+        operations.put(operation, new HashMap<>(arguments));
+        return new Update("comment", "dsfaf3", timestamp, new HashMap<>(), true, operations);
+    }
+
+    @Test
+    public void testIncrement() {
+        document.addUpdate(getUpdate(FieldOperation.INC,
+                ImmutableMap.of("likes", 2, "views", 1, "author", ImmutableMap.of("posts", 1))));
+
+        assertEquals(52, document.getValue("likes"));
+        assertEquals(1, document.getValue("views"));
+        assertEquals(4, ((Map) document.getValue("author")).get("posts"));
+        assertEquals(3, document.getVersion());
+        assertEquals("2018-01-26T06:35:33.899Z", document.getLastUpdateAt());
+    }
+
+    @Test
+    public void testIncrementWidensNumbers() {
+        document.addUpdate(getUpdate(FieldOperation.INC, ImmutableMap.of("likes", Integer.MAX_VALUE)));
+        assertEquals(50L + Integer.MAX_VALUE, document.getValue("likes"));
+
+        document.addUpdate(getUpdate(FieldOperation.INC, ImmutableMap.of("likes", 0.5)));
+        assertEquals(50.5 + Integer.MAX_VALUE, document.getValue("likes"));
+    }
+
+    @Test
+    public void testIncrementNonNumberIsSkipped() {
+        document.addUpdate(getUpdate(FieldOperation.INC, ImmutableMap.of("title", 1)));
+
+        assertEquals("Best Ever!", document.getValue("title"));
+        assertEquals(2, document.getVersion());
+    }
+
+    @Test
+    public void testAppendAndAddToSet() {
+        document.addUpdate(getUpdate(FieldOperation.APPEND, ImmutableMap.of("tags", ImmutableList.of("a", "b"))));
+        assertEquals(ImmutableList.of("a", "a", "b"), document.getValue("tags"));
+
+        document.addUpdate(getUpdate(FieldOperation.ADD_TO_SET, ImmutableMap.of("tags", "b", "labels", "new")));
+        assertEquals(ImmutableList.of("a", "a", "b"), document.getValue("tags"));
+        assertEquals(ImmutableList.of("new"), document.getValue("labels"));
+        assertEquals(4, document.getVersion());
+
+        document.addUpdate(getUpdate(FieldOperation.ADD_TO_SET, ImmutableMap.of("tags", "a")));
+        assertEquals(4, document.getVersion());
+    }
+
+    @Test
+    public void testUnset() {
+        document.addUpdate(getUpdate(FieldOperation.UNSET,
+                ImmutableMap.of("title", true, "author", ImmutableMap.of("posts", true))));
+
+        assertFalse(document.containsKey("title"));
+        assertEquals(ImmutableMap.of("firstName", "Bob"), document.getValue("author"));
+        assertEquals(3, document.getVersion());
+
+        document.addUpdate(getUpdate(FieldOperation.UNSET, ImmutableMap.of("title", true)));
+        assertEquals(3, document.getVersion());
+    }
+
+    @Test
+    public void testOperationsOnNewDocument() {
+        Document doc = new Document(getUpdate(FieldOperation.INC, ImmutableMap.of("likes", 1)));
+
+        assertEquals(1, doc.getValue("likes"));
+        assertEquals(1, doc.getVersion());
+    }
+
+    @Test
+    public void testOperationsSurviveSerialization() throws IOException {
+        Update update = getUpdate(FieldOperation.INC, ImmutableMap.of("likes", 1));
+        Update deserialized = mapper.readValue(mapper.writeValueAsString(update), Update.class);
+
+        assertEquals(update.getOperations(), deserialized.getOperations());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncrementRequiresNumber() {
+        FieldOperation.INC.validate(ImmutableMap.of("likes", "one"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOperator() {
+        FieldOperation.fromOperator("$push");
+    }
+
+    @Test
+    public void testOnlyDefinedOperatorsAreReserved() {
+        assertTrue(FieldOperation.isOperator("$inc"));
+        assertTrue(FieldOperation.isOperator("$addToSet"));
+        assertFalse(FieldOperation.isOperator("$push"));
+        assertFalse(FieldOperation.isOperator("$price"));
+    }
+
+    @Test
+    public void testIncrementOverflowIsSkipped() {
+        document.addUpdate(getUpdate(FieldOperation.INC, ImmutableMap.of("likes", Long.MAX_VALUE)));
+
+        assertEquals(50, document.getValue("likes"));
+    }
+}
@@ -0,0 +1,31 @@
+package org.ezstack.ezapp.datastore.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyBuilderTest {
+
+    @Test
+    public void testHashKeyIsFixedWidth() {
+        assertEquals(KeyBuilder.HASH_KEY_SIZE_IN_BYTES, KeyBuilder.hashKeyAsBytes("a", "b").length);
+        assertEquals(KeyBuilder.HASH_KEY_SIZE_IN_BYTES,
+                KeyBuilder.hashKeyAsBytes("commentsWithAuthors", "a-very-long-document-key-0123456789").length);
+    }
+
+    @Test
+    public void testHashKeyIsDeterministic() {
+        assertEquals(KeyBuilder.hashKey("comment", "dsfaf3"), KeyBuilder.hashKey("comment", "dsfaf3"));
+    }
+
+    @Test
+    public void testHashKeySeparatesTableAndKey() {
+        assertNotEquals(KeyBuilder.hashKey("ab", "c"), KeyBuilder.hashKey("a", "bc"));
+        assertNotEquals(KeyBuilder.hashKey("comment", "post"), KeyBuilder.hashKey("post", "comment"));
+    }
+
+    @Test
+    public void testLegacyHashKey() {
+        assertEquals("dsfaf3~comment~", KeyBuilder.legacyHashKey("comment", "dsfaf3"));
+    }
+}
@@ -0,0 +1,82 @@
+package org.ezstack.ezapp.datastore.api;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares the {@link KeyGenerator}s: how long a key takes to generate, and how many blocks of a sorted index of
+ * existing keys a batch of newly created keys lands in. Elasticsearch keeps document ids in such a sorted term
+ * dictionary, so fewer blocks means fewer places touched per batch of writes. Denormalizer stores key documents by a
+ * hash of their table and key (see {@link KeyBuilder}), so the order of generated keys makes no difference there.
+ * Not run with the tests:
+ * <pre>java -cp ... org.ezstack.ezapp.datastore.api.KeyGenerationBenchmark [existing keys] [batch size] [block size]</pre>
+ */
+public class KeyGenerationBenchmark {
+
+    private static final int GENERATION_ROUNDS = 5;
+    private static final int GENERATED_KEYS = 1000000;
+
+    // keeps the generated keys reachable, so that generating them is not optimized away
+    private static String[] _keys;
+
+    public static void main(String[] args) throws InterruptedException {
+        int existingKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+
+        for (KeyGenerator generator : KeyGenerator.values()) {
+            System.out.printf("%s: %.1f ns per key, a batch of %d keys lands in %d blocks of %d keys%n", generator,
+                    nanosPerKey(generator), batchSize, blocksTouched(generator, existingKeys, batchSize, blockSize),
+                    blockSize);
+        }
+    }
+
+    private static double nanosPerKey(KeyGenerator generator) {
+        long best = Long.MAX_VALUE;
+
+        // the first rounds warm up the JIT, the fastest round is reported
+        for (int round = 0; round < GENERATION_ROUNDS; round++) {
+            _keys = new String[GENERATED_KEYS];
+            long start = System.nanoTime();
+            for (int i = 0; i < GENERATED_KEYS; i++) {
+                _keys[i] = generator.generate();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        _keys = null;
+
+        return (double) best / GENERATED_KEYS;
+    }
+
+    private static int blocksTouched(KeyGenerator generator, int existingKeys, int batchSize, int blockSize)
+            throws InterruptedException {
+        TreeSet<String> index = new TreeSet<>();
+        for (int i = 0; i < existingKeys; i++) {
+            index.add(generator.generate());
+        }
+
+        // the existing keys were created earlier, time ordered keys of the batch have to come after them
+        Thread.sleep(2);
+
+        List<String> blockStarts = new ArrayList<>();
+        int position = 0;
+        for (String key : index) {
+            if (position++ % blockSize == 0) {
+                blockStarts.add(key);
+            }
+        }
+        TreeSet<String> blocks = new TreeSet<>(blockStarts);
+
+        Set<String> touched = new HashSet<>();
+        for (int i = 0; i < batchSize; i++) {
+            String key = generator.generate();
+            String block = blocks.floor(key);
+            touched.add(block == null ? blocks.first() : block);
+        }
+
+        return touched.size();
+    }
+}
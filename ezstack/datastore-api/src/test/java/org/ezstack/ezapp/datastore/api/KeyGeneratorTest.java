@@ -0,0 +1,36 @@
+package org.ezstack.ezapp.datastore.api;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class KeyGeneratorTest {
+
+    @Test
+    public void testTimeOrderedKeysSortByTime() {
+        String earlier = KeyGenerator.timeOrderedKey(1516948533899L);
+        String later = KeyGenerator.timeOrderedKey(1516948533900L);
+
+        assertEquals(26, earlier.length());
+        assertTrue(earlier.compareTo(later) < 0);
+        assertEquals("01C4RJVCMB", earlier.substring(0, 10));
+    }
+
+    @Test
+    public void testTimeOrderedKeysAreUnique() {
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(keys.add(KeyGenerator.TIME_ORDERED.generate()));
+        }
+    }
+
+    @Test
+    public void testGeneratedKeysAreLegal() {
+        for (KeyGenerator generator : KeyGenerator.values()) {
+            assertTrue(Names.isLegalKey(generator.generate()));
+        }
+    }
+}
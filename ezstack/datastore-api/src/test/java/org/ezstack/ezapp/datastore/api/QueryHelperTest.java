@@ -44,6 +44,16 @@ public class QueryHelperTest {
         filters.add(filter);
     }
 
+    @Test
+    public void testExcludeAttributesLeavesDocument() {
+        Set<String> excluded = Collections.singleton("title");
+        Document newDoc = QueryHelper.filterAttributes(excluded, Collections.emptySet(), document);
+
+        assertNull(newDoc.getValue("title"));
+        assertEquals("Best Ever!", document.getValue("title"));
+        assertEquals(50, newDoc.getValue("likes"));
+    }
+
     @Test
     public void testfilterAttributes() {
         Document newDoc = QueryHelper.filterAttributes(excludeAttributes, includeAttributes, document);
@@ -98,4 +108,23 @@ public class QueryHelperTest {
         assertTrue(QueryHelper.meetsFilters(otherFilters, document));
         assertTrue(QueryHelper.meetsFilter(newFilter, document));
     }
+
+    @Test
+    public void testMeetFiltersWidensNumbers() {
+        assertTrue(QueryHelper.meetsFilter(new Filter("likes", "eq", 50L), document));
+        assertTrue(QueryHelper.meetsFilter(new Filter("likes", "eq", 50.0), document));
+        assertTrue(QueryHelper.meetsFilter(new Filter("likes", "gt", 49L), document));
+        assertTrue(QueryHelper.meetsFilter(new Filter("likes", "lt", 50.5), document));
+        assertFalse(QueryHelper.meetsFilter(new Filter("likes", "gte", 50.5), document));
+        assertFalse(QueryHelper.meetsFilter(new Filter("likes", "not_eq", 50L), document));
+    }
+
+    @Test
+    public void testMeetFiltersAcrossTypes() {
+        assertFalse(QueryHelper.meetsFilter(new Filter("likes", "gt", "10"), document));
+        assertFalse(QueryHelper.meetsFilter(new Filter("title", "lt", 10), document));
+        assertTrue(QueryHelper.meetsFilter(new Filter("title", "gt", "Best"), document));
+        assertTrue(QueryHelper.meetsFilter(new Filter("title", "not_eq", 10), document));
+        assertFalse(QueryHelper.meetsFilter(new Filter("missing", "not_eq", 10), document));
+    }
 }
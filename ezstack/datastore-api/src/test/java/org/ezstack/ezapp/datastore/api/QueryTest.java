@@ -173,4 +173,18 @@ public class QueryTest {
         assertEquals(query.getStrippedQuery(), query2.getStrippedQuery());
         assertEquals(query.getStrippedQueryWithFilters(), query2.getStrippedQueryWithFilters());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFilterPredicate() {
+        assertSame(query.getFilterPredicate(), query.getFilterPredicate());
+
+        Document doc = new Document("mytable", "key", "2017-11-13T21:13:59.213Z", "2017-11-13T21:13:59.213Z", 1);
+        doc.setDataField("testAttribute", 5L);
+        assertTrue(query.getFilterPredicate().test(doc));
+
+        doc.setDataField("testAttribute", 6);
+        assertFalse(query.getFilterPredicate().test(doc));
+
+        assertFalse(query.toString().contains("filterPredicate"));
+    }
+}
@@ -0,0 +1,95 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RunningAggregationTest {
+
+    private static final List<String> TYPES = Arrays.asList("count", "max", "min", "sum", "avg");
+
+    private static Document doc(String key, Object likes) {
+        Document doc = new Document("comment", key, "2017-11-13T21:13:59.213Z", "2017-11-13T21:13:59.213Z", 1);
+        if (likes != null) {
+            doc.setDataField("likes", likes);
+        }
+        return doc;
+    }
+
+    private static Object recompute(SearchType searchType, List<Document> docs) {
+        SearchTypeAggregationHelper helper = new SearchTypeAggregationHelper(searchType);
+        docs.forEach(helper::computeDocument);
+        return helper.getResult();
+    }
+
+    private static void assertMatchesRecomputed(List<Document> values) {
+        for (String type : TYPES) {
+            SearchType searchType = new SearchType(type, "likes");
+            RunningAggregation aggregation = new RunningAggregation(searchType);
+            List<Document> remaining = new ArrayList<>();
+
+            for (Document doc : values) {
+                aggregation.add(doc);
+                remaining.add(doc);
+                assertEquals(type, recompute(searchType, remaining), aggregation.getResult());
+            }
+
+            while (!remaining.isEmpty()) {
+                aggregation.remove(remaining.remove(0));
+                assertEquals(type, recompute(searchType, remaining), aggregation.getResult());
+            }
+        }
+    }
+
+    @Test
+    public void testIntegers() {
+        assertMatchesRecomputed(Arrays.asList(doc("a", 5), doc("b", 50), doc("c", -3), doc("d", null), doc("e", 50)));
+    }
+
+    @Test
+    public void testLongs() {
+        assertMatchesRecomputed(Arrays.asList(doc("a", 5000000000L), doc("b", 7000000000L), doc("c", 6000000000L)));
+    }
+
+    @Test
+    public void testDoubles() {
+        assertMatchesRecomputed(Arrays.asList(doc("a", 0.5), doc("b", 1.5), doc("c", "not a number"), doc("d", 0.25)));
+    }
+
+    @Test
+    public void testIntegersThenDoubles() {
+        SearchType searchType = new SearchType("max", "likes");
+        RunningAggregation aggregation = new RunningAggregation(searchType);
+        aggregation.add(doc("a", 3));
+        aggregation.add(doc("b", 2.5));
+
+        assertEquals(3.0, aggregation.getResult());
+
+        aggregation.remove(doc("a", 3));
+        assertEquals(2.5, aggregation.getResult());
+
+        aggregation.remove(doc("b", 2.5));
+        assertEquals(0, aggregation.getResult());
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        RunningAggregation aggregation = new RunningAggregation(new SearchType("min", "likes"));
+        aggregation.add(doc("a", 5));
+        aggregation.add(doc("b", 2));
+        aggregation.add(doc("c", 1.5));
+
+        RunningAggregation copy = mapper.readValue(mapper.writeValueAsString(aggregation), RunningAggregation.class);
+        assertEquals(1.5, copy.getResult());
+
+        copy.remove(doc("c", 1.5));
+        assertEquals(2L, copy.getResult());
+    }
+}
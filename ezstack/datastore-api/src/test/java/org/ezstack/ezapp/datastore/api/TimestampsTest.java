@@ -0,0 +1,48 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimestampsTest {
+
+    @Test
+    public void testFormatMatchesISO8601Utils() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            String text = ISO8601Utils.format(new Date(millis), true);
+
+            assertEquals(text, Timestamps.format(millis));
+            assertEquals(millis, Timestamps.parse(text));
+        }
+    }
+
+    @Test
+    public void testParseOnlyAcceptsWrittenForm() {
+        assertEquals(1510607639213L, Timestamps.parse("2017-11-13T21:13:59.213Z"));
+        assertEquals(Timestamps.NONE, Timestamps.parse("2017-11-13T21:13:59Z"));
+        assertEquals(Timestamps.NONE, Timestamps.parse("2017-11-13T21:13:59.213+01:00"));
+        assertEquals(Timestamps.NONE, Timestamps.parse("2017-02-30T21:13:59.213Z"));
+        assertEquals(Timestamps.NONE, Timestamps.parse("2017-11-13T24:13:59.213Z"));
+        assertEquals(Timestamps.NONE, Timestamps.parse(null));
+    }
+
+    @Test
+    public void testDocumentKeepsOtherFormsAsTheyAre() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        String json = "{\"~table\":\"comment\",\"~key\":\"dsfaf3\",\"~firstUpdateAt\":\"2017-11-13T21:13:59Z\",\"~lastUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"~version\":2}";
+
+        Document document = mapper.readValue(json, Document.class);
+
+        assertEquals("2017-11-13T21:13:59Z", document.getFirstUpdateAt());
+        assertEquals("2017-11-13T21:13:59.213Z", document.getLastUpdateAt());
+        assertEquals(json, mapper.writeValueAsString(document));
+    }
+}
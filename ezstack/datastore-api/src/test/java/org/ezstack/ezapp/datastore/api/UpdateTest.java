@@ -0,0 +1,123 @@
+package org.ezstack.ezapp.datastore.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class UpdateTest {
+
+    private final String jsonDoc = "{\"~table\":\"comment\",\"~key\":\"dsfaf3\",\"~firstUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"~lastUpdateAt\":\"2017-11-13T21:13:59.213Z\",\"author\":{\"firstName\":\"Bob\",\"lastName\":\"Johnson\"},\"title\":\"Best Ever!\",\"likes\":50,\"~version\":2}";
+    private final UUID olderTimestamp = UUID.fromString("1c8f95b0-0263-11e8-8f1a-0800200c9a66");
+    private final UUID newerTimestamp = UUID.fromString("2c8f95b0-0263-11e8-8f1a-0800200c9a66");
+
+    private ObjectMapper mapper;
+
+    @Before
+    public void setUp() {
+        mapper = new ObjectMapper();
+    }
+
+    private Document getDocument() throws IOException {
+        return mapper.readValue(jsonDoc, Document.class);
+    }
+
+    @Test
+    public void testIsEmpty() {
+        assertTrue(new Update("comment", "dsfaf3", olderTimestamp, new HashMap<>(), true).isEmpty());
+        assertFalse(new Update("comment", "dsfaf3", olderTimestamp, Collections.singletonMap("likes", 1), true)
+                .isEmpty());
+    }
+
+    @Test
+    public void testMergeHasSameEffectAsSequentialUpdates() throws IOException {
+        Map<String, Object> firstData = new HashMap<>();
+        Map<String, Object> firstAuthor = new HashMap<>();
+        firstAuthor.put("firstName", "Robert");
+        firstData.put("author", firstAuthor);
+        firstData.put("likes", 51);
+
+        Map<String, Object> secondData = new HashMap<>();
+        Map<String, Object> secondAuthor = new HashMap<>();
+        secondAuthor.put("email", "bob@yahoo.com");
+        secondData.put("author", secondAuthor);
+        secondData.put("likes", 52);
+
+        Update first = new Update("comment", "dsfaf3", olderTimestamp, firstData, true);
+        Update second = new Update("comment", "dsfaf3", newerTimestamp, secondData, true);
+
+        Document sequential = getDocument();
+        sequential.addUpdate(first);
+        sequential.addUpdate(second);
+
+        Update merged = Update.merge(first, second);
+        Document coalesced = getDocument();
+        coalesced.addUpdate(merged);
+
+        assertTrue(merged.isUpdate());
+        assertEquals(newerTimestamp, merged.getTimestamp());
+        assertEquals(sequential.getData(), coalesced.getData());
+        assertEquals(sequential.getLastUpdateAt(), coalesced.getLastUpdateAt());
+    }
+
+    @Test
+    public void testMergeDoesNotModifyInputs() {
+        Map<String, Object> firstData = new HashMap<>();
+        Map<String, Object> firstAuthor = new HashMap<>();
+        firstAuthor.put("firstName", "Robert");
+        firstData.put("author", firstAuthor);
+
+        Map<String, Object> secondData = new HashMap<>();
+        Map<String, Object> secondAuthor = new HashMap<>();
+        secondAuthor.put("email", "bob@yahoo.com");
+        secondData.put("author", secondAuthor);
+
+        Update.merge(new Update("comment", "dsfaf3", olderTimestamp, firstData, true),
+                new Update("comment", "dsfaf3", newerTimestamp, secondData, true));
+
+        assertEquals(1, firstData.size());
+        assertEquals(1, firstAuthor.size());
+        assertEquals(1, secondAuthor.size());
+    }
+
+    @Test
+    public void testMergeWithCreate() {
+        Map<String, Object> updateData = new HashMap<>();
+        updateData.put("likes", 25);
+
+        Map<String, Object> createData = new HashMap<>();
+        createData.put("title", "New Title");
+
+        Update partial = new Update("comment", "dsfaf3", olderTimestamp, updateData, true);
+        Update create = new Update("comment", "dsfaf3", newerTimestamp, createData, false);
+
+        Update replaced = Update.merge(partial, create);
+        assertFalse(replaced.isUpdate());
+        assertEquals(createData, replaced.getData());
+
+        Update mergedIntoCreate = Update.merge(create, partial);
+        Map<String, Object> expectedData = new HashMap<>();
+        expectedData.put("title", "New Title");
+        expectedData.put("likes", 25);
+
+        assertFalse(mergedIntoCreate.isUpdate());
+        assertEquals(newerTimestamp, mergedIntoCreate.getTimestamp());
+        assertEquals(expectedData, mergedIntoCreate.getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentKeys() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("likes", 25);
+
+        Update.merge(new Update("comment", "dsfaf3", olderTimestamp, data, true),
+                new Update("comment", "other", newerTimestamp, data, true));
+    }
+}
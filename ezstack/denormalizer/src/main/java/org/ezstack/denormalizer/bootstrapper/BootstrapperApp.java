@@ -17,11 +17,14 @@ import org.ezstack.denormalizer.model.DocumentChangePair;
 import org.ezstack.denormalizer.model.DocumentMessage;
 import org.ezstack.denormalizer.model.TombstoningPolicy;
 import org.ezstack.denormalizer.serde.JsonSerdeV3;
+import org.ezstack.denormalizer.serde.SmileSerde;
 import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.ShutdownMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Objects;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import static org.ezstack.denormalizer.bootstrapper.CuratorRuleRetriever.getRulesForJobID;
@@ -35,19 +38,21 @@ public class BootstrapperApp implements StreamApplication {
         String zkHosts = checkNotNull(config.get("bootstrapper.zkHosts"));
         String jobId = checkNotNull(config.get("job.id"));
 
+        // the input is the document resolver changelog, so it is read with the same serde as the store
         MessageStream<Document> documents = streamGraph.getInputStream("documents",
-                new JsonSerdeV3<>(Document.class));
+                SmileSerde.of(Document.class, config));
 
         streamGraph.getInputStream("shutdown-messages",
                 new JsonSerdeV3<>(ShutdownMessage.class))
                 .sink(new ShutDownSamzaWrapper(zkHosts, "/bootstrapper", jobId));
 
-        MessageStream<DocumentChangePair> changePairs = documents.map(
+        // the changelog carries tombstones for documents whose store keys have been migrated
+        MessageStream<DocumentChangePair> changePairs = documents.filter(Objects::nonNull).map(
                 new BootstrappingDocumentResolver("bootstrapper-document-resolver"));
 
         OutputStream<KV<String, DocumentMessage>> documentMessages =
                 streamGraph.getOutputStream("bootstrapped-document-messages",
-                        KVSerde.of(new StringSerde(), new JsonSerdeV3<>(DocumentMessage.class)));
+                        KVSerde.of(new StringSerde(), SmileSerde.of(DocumentMessage.class, config)));
 
         changePairs.flatMap(new DocumentMessageMapper(new BootstrapperRuleIndexer(getRulesForJobID(zkHosts, jobId)),TombstoningPolicy.NO_TOMBSTONING))
                 .map(msg -> KV.of(msg.getPartitionKey(), msg))
@@ -1,23 +1,34 @@
 package org.ezstack.denormalizer.bootstrapper;
 
-import com.google.common.base.MoreObjects;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.AbstractService;
+import org.ezstack.denormalizer.model.DocumentProjection;
+import org.ezstack.denormalizer.model.QueryLevel;
 import org.ezstack.denormalizer.model.RuleIndexPair;
+import org.ezstack.denormalizer.model.RulePredicateIndex;
 import org.ezstack.denormalizer.model.RuleIndexer;
+import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.Rule;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 public class BootstrapperRuleIndexer extends AbstractService implements RuleIndexer {
 
-    private HashMultimap<String, RuleIndexPair> _ruleIndex;
+    private Map<String, RulePredicateIndex> _ruleIndex;
     private final Set<Rule> _rules;
+    private final Map<String, Set<Rule>> _rulesByJoin;
+    private final Map<String, DocumentProjection> _projections;
+    private final Map<String, Rule> _rulesByTable;
 
     public BootstrapperRuleIndexer(Set<Rule> rules) {
         _rules = rules;
         _ruleIndex = getRuleIndex(rules);
+        _rulesByJoin = getRulesByJoin(rules);
+        _projections = getProjections(rules, _rulesByJoin);
+        _rulesByTable = Maps.uniqueIndex(rules, Rule::getTable);
     }
 
     @Override
@@ -35,8 +46,30 @@ public class BootstrapperRuleIndexer extends AbstractService implements RuleInde
         return _rules;
     }
 
+    @Override
+    public Rule getRule(String ruleTable) {
+        return _rulesByTable.get(ruleTable);
+    }
+
+    @Override
+    public Set<Rule> getRulesSharingJoin(Rule rule) {
+        return RuleIndexer.getRulesSharingJoin(_rulesByJoin, rule);
+    }
+
+    @Override
+    public DocumentProjection getProjection(Rule rule, QueryLevel level) {
+        return RuleIndexer.getProjection(_projections, rule, level);
+    }
+
     @Override
     public Set<RuleIndexPair> getApplicableRulesForTable(String table) {
-        return MoreObjects.firstNonNull(_ruleIndex.get(table), Collections.emptySet());
+        RulePredicateIndex index = _ruleIndex.get(table);
+        return index == null ? Collections.emptySet() : index.getRules();
+    }
+
+    @Override
+    public Collection<RuleIndexPair> getCandidateRulesForDocument(Document document) {
+        RulePredicateIndex index = _ruleIndex.get(document.getTable());
+        return index == null ? Collections.emptyList() : index.getCandidates(document);
     }
 }
@@ -8,10 +8,12 @@ import org.ezstack.denormalizer.model.DocumentChangePair;
 import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.KeyBuilder;
 
+import java.nio.ByteBuffer;
+
 public class BootstrappingDocumentResolver implements MapFunction<Document, DocumentChangePair> {
 
     private final String _storeName;
-    private KeyValueStore<String, Document> _store;
+    private KeyValueStore<ByteBuffer, Document> _store;
 
     public BootstrappingDocumentResolver(String storeName) {
         _storeName = storeName;
@@ -19,12 +21,12 @@ public class BootstrappingDocumentResolver implements MapFunction<Document, Docu
 
     @Override
     public void init(Config config, TaskContext context) {
-        _store = (KeyValueStore<String, Document>) context.getStore(_storeName);
+        _store = (KeyValueStore<ByteBuffer, Document>) context.getStore(_storeName);
     }
 
     @Override
     public DocumentChangePair apply(Document document) {
-        String storeKey = KeyBuilder.hashKey(document.getTable(), document.getKey());
+        ByteBuffer storeKey = ByteBuffer.wrap(KeyBuilder.hashKeyAsBytes(document.getTable(), document.getKey()));
         Document storedDocument = _store.get(storeKey);
         _store.put(storeKey, document);
         return new DocumentChangePair(storedDocument, document);
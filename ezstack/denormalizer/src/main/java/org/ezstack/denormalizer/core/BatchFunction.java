@@ -0,0 +1,14 @@
+package org.ezstack.denormalizer.core;
+
+import org.apache.samza.operators.functions.ClosableFunction;
+import org.apache.samza.operators.functions.InitableFunction;
+
+import java.util.Collection;
+
+/**
+ * A function over all the messages for a key that arrived within a window, in the order they arrived.
+ */
+public interface BatchFunction<M, OM> extends InitableFunction, ClosableFunction {
+
+    Collection<OM> applyBatch(String key, Collection<M> messages);
+}
@@ -0,0 +1,38 @@
+package org.ezstack.denormalizer.core;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.operators.functions.FlatMapFunction;
+import org.apache.samza.operators.windows.WindowPane;
+import org.apache.samza.task.TaskContext;
+
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Applies a {@link BatchFunction} to each pane of a keyed window, so a burst of messages for the same partition key
+ * is handled once per window instead of once per message.
+ */
+public class BatchedFlatMapFunction<M, OM> implements FlatMapFunction<WindowPane<String, Collection<M>>, OM> {
+
+    private final BatchFunction<M, OM> _batchFunction;
+
+    public BatchedFlatMapFunction(BatchFunction<M, OM> batchFunction) {
+        _batchFunction = checkNotNull(batchFunction, "batchFunction");
+    }
+
+    @Override
+    public void init(Config config, TaskContext context) {
+        _batchFunction.init(config, context);
+    }
+
+    @Override
+    public void close() {
+        _batchFunction.close();
+    }
+
+    @Override
+    public Collection<OM> apply(WindowPane<String, Collection<M>> pane) {
+        return _batchFunction.applyBatch(pane.getKey().getKey(), pane.getMessage());
+    }
+}
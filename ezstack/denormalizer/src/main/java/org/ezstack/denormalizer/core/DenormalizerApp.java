@@ -3,32 +3,57 @@ package org.ezstack.denormalizer.core;
 import com.google.common.collect.ImmutableSet;
 import org.apache.samza.application.StreamApplication;
 import org.apache.samza.config.Config;
+import org.apache.samza.config.JobConfig;
 import org.apache.samza.operators.KV;
 import org.apache.samza.operators.MessageStream;
+import org.apache.samza.operators.OutputStream;
 import org.apache.samza.operators.StreamGraph;
+import org.apache.samza.operators.windows.WindowPane;
+import org.apache.samza.operators.windows.Windows;
 import org.apache.samza.serializers.KVSerde;
 import org.apache.samza.serializers.StringSerde;
 import org.ezstack.denormalizer.model.*;
 import org.ezstack.denormalizer.serde.JsonSerdeV3;
+import org.ezstack.denormalizer.serde.SmileSerde;
 import org.ezstack.ezapp.datastore.api.Update;
+import org.ezstack.ezapp.datastore.api.WritePriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.Collection;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public class DenormalizerApp implements StreamApplication {
 
     private static final Logger log = LoggerFactory.getLogger(DenormalizerApp.class);
 
+    /**
+     * Config for how long the messages of a partition key are collected before they are joined as one batch. 0 joins
+     * every message as soon as it arrives.
+     */
+    public static final String JOIN_BATCH_WINDOW_MS = "denormalizer.joinBatchWindowMs";
+
+    private static final String JOIN_PARTITION_ID = "partition";
+
     public void init(StreamGraph streamGraph, Config config) {
 
-        MessageStream<Update> updates = streamGraph.getInputStream("documents",
-                new JsonSerdeV3<>(Update.class));
+        MessageStream<KV<WritePriority, Update>> bulkUpdates = streamGraph.getInputStream("documents",
+                new JsonSerdeV3<>(Update.class))
+                .map(update -> KV.of(WritePriority.BULK, update));
 
-        MessageStream<DocumentChangePair> documents = updates.flatMap(new DocumentResolver("document-resolver"));
+        // the stream priorities in the job config make interactive updates be chosen ahead of bulk ones
+        MessageStream<KV<WritePriority, Update>> updates = streamGraph.getInputStream("priority-documents",
+                new JsonSerdeV3<>(Update.class))
+                .map(update -> KV.of(WritePriority.INTERACTIVE, update))
+                .merge(ImmutableSet.of(bulkUpdates));
+
+        MessageStream<DocumentChangePair> documents = updates.flatMap(new DocumentResolver("document-resolver",
+                "document-update-times"));
 
         MessageStream<DocumentMessage> bootstrapperMessages = streamGraph.getInputStream("bootstrapped-document-messages",
-                new JsonSerdeV3<>(DocumentMessage.class));
+                SmileSerde.of(DocumentMessage.class, config));
 
         ElasticsearchIndexer elasticsearchIndexer = new ElasticsearchIndexer("elasticsearch");
 
@@ -36,11 +61,48 @@ public class DenormalizerApp implements StreamApplication {
                 changePair.getNewDocument().getTable(), WritableResult.Action.INDEX))
                 .sink(elasticsearchIndexer);
 
-        documents.flatMap(new DocumentMessageMapper(checkNotNull(config.get("denormalizer.zkHosts")),
-                "/rules", TombstoningPolicy.BASED_ON_RULE))
-                .partitionBy(DocumentMessage::getPartitionKey, v -> v, KVSerde.of(new StringSerde(), new JsonSerdeV3<>(DocumentMessage.class)), "partition")
+        String zkHosts = checkNotNull(config.get("denormalizer.zkHosts"));
+
+        // inner documents of hot join keys, copied by their base partition to the other sub-partitions of the key
+        KVSerde<String, DocumentMessage> replicatedMessageSerde = KVSerde.of(new StringSerde(),
+                SmileSerde.of(DocumentMessage.class, config));
+        MessageStream<DocumentMessage> replicatedMessages = streamGraph.getInputStream("replicated-join-messages",
+                replicatedMessageSerde)
+                .map(KV::getValue);
+        OutputStream<KV<String, DocumentMessage>> replicatedMessagesOutput =
+                streamGraph.getOutputStream("replicated-join-messages", replicatedMessageSerde);
+
+        MessageStream<DocumentMessage> joinMessages = documents.flatMap(new DocumentMessageMapper(zkHosts,
+                "/rules", "/hot-join-keys", TombstoningPolicy.BASED_ON_RULE))
+                .partitionBy(DocumentMessage::getPartitionKey, v -> v, KVSerde.of(new StringSerde(), SmileSerde.of(DocumentMessage.class, config)), JOIN_PARTITION_ID)
                 .map(KV::getValue)
-                .merge(ImmutableSet.of(bootstrapperMessages))
-                .flatMap(new DocumentJoiner("join-store")).sink(elasticsearchIndexer);
+                .merge(ImmutableSet.of(bootstrapperMessages, replicatedMessages));
+
+        DocumentJoiner documentJoiner = new DocumentJoiner(zkHosts, "/rules", "join-index-store", "join-store",
+                "join-aggregate-store", "join-hash-store");
+        HotJoinKeyReplicator hotJoinKeyReplicator = new HotJoinKeyReplicator(zkHosts, "/rules", "/hot-join-keys",
+                "join-index-store", getIntermediateStreamId(config, "partition_by", JOIN_PARTITION_ID),
+                "replicated-join-messages");
+
+        long joinBatchWindowMs = config.getLong(JOIN_BATCH_WINDOW_MS, 0);
+        if (joinBatchWindowMs > 0) {
+            // each partition key is joined once per window, so bursts of updates to it are coalesced
+            MessageStream<WindowPane<String, Collection<DocumentMessage>>> batches = joinMessages.window(
+                    Windows.keyedTumblingWindow(DocumentMessage::getPartitionKey, Duration.ofMillis(joinBatchWindowMs),
+                            new StringSerde(), SmileSerde.of(DocumentMessage.class, config)),
+                    "join-batch");
+
+            batches.flatMap(new BatchedFlatMapFunction<>(documentJoiner)).sink(elasticsearchIndexer);
+            batches.flatMap(new BatchedFlatMapFunction<>(hotJoinKeyReplicator)).sendTo(replicatedMessagesOutput);
+        } else {
+            joinMessages.flatMap(documentJoiner).sink(elasticsearchIndexer);
+            joinMessages.flatMap(hotJoinKeyReplicator).sendTo(replicatedMessagesOutput);
+        }
+    }
+
+    // the id Samza gives the stream of an operator that repartitions its messages
+    private static String getIntermediateStreamId(Config config, String opCode, String operatorId) {
+        return String.format("%s-%s-%s-%s", config.get(JobConfig.JOB_NAME()), config.get(JobConfig.JOB_ID(), "1"),
+                opCode, operatorId);
     }
 }
\ No newline at end of file
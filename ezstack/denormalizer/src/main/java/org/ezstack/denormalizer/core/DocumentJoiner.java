@@ -1,42 +1,258 @@
 package org.ezstack.denormalizer.core;
 
-import com.google.common.base.MoreObjects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableSet;
 import org.apache.samza.config.Config;
+import org.apache.samza.metrics.Gauge;
 import org.apache.samza.operators.functions.FlatMapFunction;
+import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
 import org.apache.samza.task.TaskContext;
+import org.ezstack.denormalizer.core.curator.CuratorRuleIndexer;
+import org.ezstack.denormalizer.core.curator.TaskRuleIndexer;
 import org.ezstack.denormalizer.model.*;
 import org.ezstack.ezapp.datastore.api.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class DocumentJoiner implements FlatMapFunction<DocumentMessage, WritableResult> {
+public class DocumentJoiner implements FlatMapFunction<DocumentMessage, WritableResult>,
+        BatchFunction<DocumentMessage, WritableResult> {
 
     private static final Logger log = LoggerFactory.getLogger(DocumentJoiner.class);
 
-    private final String _storeName;
-    private KeyValueStore<String, JoinQueryIndex> _store;
-
+    /**
+     * Config flag for skipping writes that would not change what is indexed, by comparing a hash of the written
+     * content with the hash of what was last written for the document.
+     */
+    public static final String SUPPRESS_UNCHANGED_WRITES = "denormalizer.suppressUnchangedWrites";
+
+    /**
+     * Config for how long a tombstone is kept for a version that has not arrived yet. It only has to cover the time a
+     * bootstrap can take, and tombstones of rules that are done bootstrapping are dropped regardless.
+     */
+    public static final String TOMBSTONE_RETENTION_MS = "denormalizer.tombstoneRetentionMs";
+
+    /**
+     * Config for how often the join store is swept for expired tombstones that are not dropped as entries are read,
+     * and how many entries each sweep visits. A full pass over the store can take many sweeps.
+     */
+    public static final String TOMBSTONE_SWEEP_INTERVAL_MS = "denormalizer.tombstoneSweepIntervalMs";
+    public static final String TOMBSTONE_SWEEP_ENTRIES = "denormalizer.tombstoneSweepEntries";
+
+    /**
+     * Config for how many entries of the join store are visited after each batch while the entries of retired rules
+     * are being purged.
+     */
+    public static final String RETIRED_RULE_PURGE_ENTRIES = "denormalizer.retiredRulePurgeEntries";
+
+    // how often the legacy store is checked for whether everything has been moved out of it
+    private static final long LEGACY_STORE_CHECK_INTERVAL_MS = 60000;
+
+    private final String _zookeeperHosts;
+    private final String _rulesPath;
 
-    public DocumentJoiner(String storeName) {
+    private final String _storeName;
+    private final String _legacyStoreName;
+    private final String _aggregateStoreName;
+    private final String _hashStoreName;
+    private KeyValueStore<String, JoinIndexEntry> _store;
+    private KeyValueStore<String, JoinAggregates> _aggregateStore;
+    private KeyValueStore<String, Long> _hashStore;
+    // null once there is nothing left to move out of it
+    private KeyValueStore<String, LegacyJoinQueryIndex> _legacyStore;
+    private long _lastLegacyStoreCheck;
+    private boolean _incrementalJoinUpdates;
+    private boolean _sharedJoinPartitioning;
+    private boolean _suppressUnchangedWrites;
+    private OperatorMetrics _metrics;
+    private long _tombstoneRetentionMs;
+    private long _tombstoneSweepIntervalMs;
+    private int _tombstoneSweepEntries;
+    private long _lastTombstoneSweep;
+    // where the next sweep continues from, and the tombstones left by the sweeps of the current pass
+    private String _tombstoneSweepPosition;
+    private long _tombstonesInPass;
+    private Gauge<Long> _tombstones;
+    private RuleIndexer _ruleIndexer;
+    private int _retiredRulePurgeEntries;
+    // the tables the current purge pass removes and where it continues from, and the tables already purged
+    private Set<String> _purgingTables = Collections.emptySet();
+    private String _purgePosition;
+    private final Set<String> _purgedTables = new HashSet<>();
+
+    /**
+     * @param legacyStoreName store that holds indexes in the old single blob per partition key layout, which are
+     *                        moved into the main store the first time their partition key is seen
+     * @param aggregateStoreName store that keeps the aggregations of each partition key up to date
+     * @param hashStoreName store that keeps the hashes of what was last written for each document, which is expected
+     *                      to have no changelog, see {@link JoinQueryIndex#updateContentHash}
+     * @param rulesPath where the rules are kept, to learn which rules are retired and have their entries purged
+     */
+    public DocumentJoiner(String zookeeperHosts, String rulesPath, String storeName, String legacyStoreName,
+                          String aggregateStoreName, String hashStoreName) {
+        _zookeeperHosts = checkNotNull(zookeeperHosts, "zookeeperHosts");
+        _rulesPath = checkNotNull(rulesPath, "rulesPath");
         _storeName = storeName;
+        _legacyStoreName = legacyStoreName;
+        _aggregateStoreName = aggregateStoreName;
+        _hashStoreName = hashStoreName;
     }
 
     @Override
     public void init(Config config, TaskContext context) {
-        _store = (KeyValueStore<String, JoinQueryIndex>) context.getStore(_storeName);
+        _metrics = new OperatorMetrics(context.getMetricsRegistry(), DocumentJoiner.class);
+        _store = _metrics.timed((KeyValueStore<String, JoinIndexEntry>) context.getStore(_storeName), _storeName);
+        _aggregateStore = _metrics.timed((KeyValueStore<String, JoinAggregates>) context.getStore(_aggregateStoreName),
+                _aggregateStoreName);
+        _hashStore = _metrics.timed((KeyValueStore<String, Long>) context.getStore(_hashStoreName), _hashStoreName);
+        if (config.getBoolean("denormalizer.migrateLegacyJoinStore", true)) {
+            _legacyStore = _metrics.timed((KeyValueStore<String, LegacyJoinQueryIndex>) context.getStore(_legacyStoreName),
+                    _legacyStoreName);
+            checkLegacyStoreMigrated(System.currentTimeMillis());
+        }
+        _incrementalJoinUpdates = config.getBoolean(ElasticsearchIndexer.INCREMENTAL_JOIN_UPDATES, false);
+        _sharedJoinPartitioning = config.getBoolean(DocumentMessageMapper.SHARED_JOIN_PARTITIONING, false);
+        _suppressUnchangedWrites = config.getBoolean(SUPPRESS_UNCHANGED_WRITES, true);
+
+        _tombstoneRetentionMs = config.getLong(TOMBSTONE_RETENTION_MS, 86400000);
+        _tombstoneSweepIntervalMs = config.getLong(TOMBSTONE_SWEEP_INTERVAL_MS, 60000);
+        _tombstoneSweepEntries = config.getInt(TOMBSTONE_SWEEP_ENTRIES, 10000);
+        _lastTombstoneSweep = System.currentTimeMillis();
+        // the tombstones in the store as of the last full pass of the sweeps
+        _tombstones = _metrics.gauge("tombstones", 0L);
+
+        _retiredRulePurgeEntries = config.getInt(RETIRED_RULE_PURGE_ENTRIES, 1000);
+        // the mapper acknowledges rules for the partition, this only reads them
+        _ruleIndexer = new TaskRuleIndexer(_zookeeperHosts, _rulesPath, context.getTaskName().getTaskName(), false);
+        _ruleIndexer.startAsync().awaitRunning();
+    }
+
+    @Override
+    public void close() {
+        _ruleIndexer.stopAsync().awaitTerminated();
+    }
+
+    // only bootstrapped documents can arrive after they were deleted, so a rule that is done bootstrapping and no
+    // longer tombstones has no use for the tombstones it already has
+    private long getTombstoneExpiry(DocumentMessage message, long now) {
+        if (message.isRuleActive() && !message.shouldTombstone()) {
+            return Long.MAX_VALUE;
+        }
+        return now - _tombstoneRetentionMs;
+    }
+
+    private void sweepTombstones() {
+        long now = System.currentTimeMillis();
+        if (_tombstoneSweepIntervalMs <= 0 || now - _lastTombstoneSweep < _tombstoneSweepIntervalMs) {
+            return;
+        }
+        _lastTombstoneSweep = now;
+
+        JoinQueryIndex.StoreSweep sweep = JoinQueryIndex.sweepTombstones(_store, _tombstoneSweepPosition,
+                _tombstoneSweepEntries, now - _tombstoneRetentionMs);
+
+        _metrics.counter("expired-tombstones").inc(sweep.getExpiredTombstones());
+        _metrics.counter("deleted-tombstone-entries").inc(sweep.getDeletedEntries());
+        _tombstonesInPass += sweep.getRemainingTombstones();
+        _tombstoneSweepPosition = sweep.getLastKey();
+
+        if (_tombstoneSweepPosition == null) {
+            log.debug("Swept the join store, {} tombstones left", _tombstonesInPass);
+            _tombstones.set(_tombstonesInPass);
+            _tombstonesInPass = 0;
+        }
+    }
+
+    /**
+     * Continues purging what retired rules left in the join store. A pass over the store purges the rules that were
+     * retired when it started, and each of them is acknowledged as purged for the partition once it ends. The state
+     * of a join that rules which are not retired still share is kept for them.
+     */
+    private void purgeRetiredRules(Set<Rule> retiredRules) {
+        Map<String, Rule> retiredRulesByTable = retiredRules.stream()
+                .collect(Collectors.toMap(Rule::getTable, rule -> rule));
+        _purgedTables.retainAll(retiredRulesByTable.keySet());
+
+        if (_purgingTables.isEmpty()) {
+            _purgingTables = retiredRulesByTable.keySet().stream()
+                    .filter(table -> !_purgedTables.contains(table))
+                    .collect(Collectors.toSet());
+            if (_purgingTables.isEmpty()) {
+                return;
+            }
+            log.info("Purging the join store of retired rules {}", _purgingTables);
+        }
+
+        // rules without a join keep no state
+        Map<String, Set<String>> retiredTablesByJoin = new HashMap<>();
+        _purgingTables.stream()
+                .map(retiredRulesByTable::get)
+                .filter(rule -> rule != null && rule.getQuery().getJoin() != null)
+                .forEach(rule -> retiredTablesByJoin
+                        .computeIfAbsent(FanoutHashingUtils.getJoinSignature(rule.getQuery()), k -> new HashSet<>())
+                        .add(rule.getTable()));
+
+        if (!retiredTablesByJoin.isEmpty()) {
+            // checked on every step, since a new rule can start sharing the join while the pass is under way
+            Set<String> usedJoinSignatures = _ruleIndexer.getRules().stream()
+                    .filter(rule -> rule.getQuery().getJoin() != null)
+                    .map(rule -> FanoutHashingUtils.getJoinSignature(rule.getQuery()))
+                    .collect(Collectors.toSet());
+
+            JoinQueryIndex.StoreSweep sweep = JoinQueryIndex.purgeRetiredRules(_store, _aggregateStore, _hashStore,
+                    _purgePosition, _retiredRulePurgeEntries, retiredTablesByJoin, usedJoinSignatures);
+
+            _metrics.counter("purged-entries").inc(sweep.getDeletedEntries());
+            _purgePosition = sweep.getLastKey();
+        }
+
+        if (_purgePosition == null) {
+            for (String table : _purgingTables) {
+                _ruleIndexer.acknowledgeRetirement(table, CuratorRuleIndexer.PURGED_STEP);
+            }
+            _purgedTables.addAll(_purgingTables);
+            _purgingTables = Collections.emptySet();
+        }
+    }
+
+    private static boolean userWantsDocuments(Set<SearchType> searchTypes) {
+        return searchTypes == null || searchTypes.isEmpty() || QueryHelper.hasSearchRequest(searchTypes);
+    }
+
+    // the aggregations come from the running state kept by the join index when there is one, so only joins that
+    // include the inner documents themselves have to read them
+    private static void addAggregations(QueryResult queryResult, RuleAggregates aggregates,
+                                        Supplier<List<Document>> innerDocs, Set<SearchType> searchTypes) {
+        if (aggregates != null) {
+            aggregates.addTo(queryResult);
+            return;
+        }
+
+        Set<SearchTypeAggregationHelper> helpers = QueryHelper.createAggHelpers(searchTypes);
+        if (!helpers.isEmpty()) {
+            innerDocs.get().forEach(doc -> QueryHelper.updateAggHelpers(helpers, doc));
+        }
+        queryResult.addAggregations(helpers);
     }
 
     private Collection<WritableResult> getDenormalizationForDocuments(List<Document> outerDocs,
-                                                                      List<Document> innerDocs, Query query,
+                                                                      Supplier<List<Document>> innerDocs,
+                                                                      RuleAggregates aggregates, Query query,
                                                                       String table) {
 
         checkNotNull(query, "query");
@@ -46,16 +262,8 @@ public class DocumentJoiner implements FlatMapFunction<DocumentMessage, Writable
 
         QueryResult queryResult = new QueryResult();
 
-        boolean userWantsDocuments = searchTypes == null || searchTypes.isEmpty()
-                || QueryHelper.hasSearchRequest(searchTypes);
-
-
-        Set<SearchTypeAggregationHelper> helpers = QueryHelper.createAggHelpers(searchTypes);
-
-        innerDocs.forEach(doc -> QueryHelper.updateAggHelpers(helpers, doc));
-
-        if (userWantsDocuments) {
-            Set<Document> filteredDocs = innerDocs
+        if (userWantsDocuments(searchTypes)) {
+            Set<Document> filteredDocs = innerDocs.get()
                     .stream()
                     .map(doc -> QueryHelper.filterAttributes(query.getExcludeAttributes(), query.getIncludeAttributes(), doc))
                     .collect(Collectors.toSet());
@@ -63,15 +271,14 @@ public class DocumentJoiner implements FlatMapFunction<DocumentMessage, Writable
             queryResult.addDocuments(filteredDocs);
         }
 
-
-        queryResult.addAggregations(helpers);
+        addAggregations(queryResult, aggregates, innerDocs, searchTypes);
 
         return outerDocs
                 .stream()
                 .map(outerDoc -> QueryHelper.filterAttributes(query.getExcludeAttributes(),
                         query.getIncludeAttributes(), outerDoc))
                 .map(outerDoc -> {
-                    outerDoc = outerDoc.clone();
+                    outerDoc = outerDoc.snapshot();
                     outerDoc.setDataField(query.getJoinAttributeName(), queryResult);
                     return outerDoc;
                 })
@@ -80,71 +287,394 @@ public class DocumentJoiner implements FlatMapFunction<DocumentMessage, Writable
                 .collect(Collectors.toSet());
     }
 
-    private Collection<WritableResult> getActionsForRemove(JoinQueryIndex joinQueryIndex, DocumentMessage message) {
-        joinQueryIndex.deleteDocument(message.getDocument(), message.getDocumentLevel(),
-                message.shouldTombstone());
+    /**
+     * Patches the join result of the outer documents with each inner document that changed, instead of rebuilding
+     * it. The other inner documents are only read if the query has aggregations that the join index does not keep.
+     */
+    private Collection<WritableResult> getPatchesForInnerDocuments(List<Document> outerDocs,
+                                                                   Map<String, Document> changedInnerDocs,
+                                                                   Supplier<List<Document>> innerDocs,
+                                                                   RuleAggregates aggregates, Query query,
+                                                                   String table) {
+        if (outerDocs.isEmpty()) {
+            return ImmutableSet.of();
+        }
+
+        Set<SearchType> searchTypes = query.getJoin().getSearchTypes();
+
+        QueryResult aggregations = new QueryResult();
+        addAggregations(aggregations, aggregates, innerDocs, searchTypes);
+
+        boolean includeDocuments = userWantsDocuments(searchTypes);
+
+        List<WritableResult> patches = new ArrayList<>();
+        changedInnerDocs.forEach((innerKey, innerDoc) -> {
+            JoinPatch patch = new JoinPatch(query.getJoinAttributeName(), innerKey,
+                    innerDoc == null ? null : QueryHelper.filterAttributes(query.getExcludeAttributes(),
+                            query.getIncludeAttributes(), innerDoc),
+                    includeDocuments, aggregations.getQueryResults());
+
+            outerDocs.forEach(outerDoc -> patches.add(new WritableResult(outerDoc, table, WritableResult.Action.PATCH, patch)));
+        });
 
-        List<Document> outerDocs = joinQueryIndex.getEffectedDocumentsOuter();
-        List<Document> innerDocs = joinQueryIndex.getEffectedDocumentsInner();
-        joinQueryIndex.refresh();
-        
-        switch (message.getDocumentLevel()) {
-            case OUTER:
-                if (message.getOpCode() == OpCode.REMOVE) {
-                    return ImmutableSet.of();
+        return patches;
+    }
+
+    private void applyToIndex(JoinQueryIndex joinQueryIndex, DocumentMessage message, JoinChanges changes) {
+        Document document = message.getDocument();
+        String key = document.getKey();
+        QueryLevel level = message.getDocumentLevel();
+
+        if (message.getOpCode() == OpCode.UPDATE) {
+            if (!joinQueryIndex.putDocument(document, level)) {
+                return;
+            }
+
+            if (level == QueryLevel.OUTER) {
+                changes._updatedOuterDocs.put(key, document);
+                changes._deletedOuterDocs.remove(key);
+            } else if (!changes._query.getJoin().getFilterPredicate().test(document)) {
+                // the copies of a hot key's inner documents made for its sub-partitions are all sent for one rule,
+                // whichever rules they satisfy
+                return;
+            } else {
+                changes._changedInnerDocs.put(key, document);
+                if (isPatchingUnchangedInnerDocument(joinQueryIndex, document, changes)) {
+                    changes._unchangedInnerKeys.add(key);
+                } else {
+                    changes._unchangedInnerKeys.remove(key);
                 }
-                return outerDocs
-                        .stream()
-                        .map(docToDelete -> new WritableResult(docToDelete, message.getTable(),
-                                WritableResult.Action.DELETE))
-                        .collect(Collectors.toSet());
-            case INNER:
-                return getDenormalizationForDocuments(outerDocs, innerDocs, message.getQuery(), message.getTable());
+            }
+            return;
         }
 
-        return ImmutableSet.of();
+        // the other rules that share the join still have the document
+        if (message.getOpCode() != OpCode.DETACH) {
+            joinQueryIndex.deleteDocument(document, level, message.shouldTombstone());
+        }
+
+        if (level == QueryLevel.OUTER) {
+            // an outer document that is only removed has moved to another partition key, which will index it
+            changes._updatedOuterDocs.remove(key);
+            if (message.getOpCode() != OpCode.REMOVE && message.getOpCode() != OpCode.MOVE) {
+                changes._deletedOuterDocs.put(key, document);
+            }
+        } else {
+            changes._changedInnerDocs.put(key, null);
+            changes._unchangedInnerKeys.remove(key);
+        }
+    }
+
+    private boolean isPatchingUnchangedInnerDocumentsPossible() {
+        return _suppressUnchangedWrites && _incrementalJoinUpdates;
     }
 
-    private Collection<WritableResult> getActionsForUpdate(JoinQueryIndex joinQueryIndex, DocumentMessage message) {
-        joinQueryIndex.putDocument(message.getDocument(), message.getDocumentLevel());
+    // patches carry the inner document as the join keeps it, which can be the same for a new version of it
+    private boolean isPatchingUnchangedInnerDocument(JoinQueryIndex joinQueryIndex, Document document,
+                                                     JoinChanges changes) {
+        if (!isPatchingUnchangedInnerDocumentsPossible()) {
+            return false;
+        }
 
-        List<Document> outerDocs = joinQueryIndex.getEffectedDocumentsOuter();
-        List<Document> innerDocs = joinQueryIndex.getEffectedDocumentsInner();
-        joinQueryIndex.refresh();
+        Document projected = QueryHelper.filterAttributes(changes._query.getExcludeAttributes(),
+                changes._query.getIncludeAttributes(), document);
 
-        return getDenormalizationForDocuments(outerDocs, innerDocs, message.getQuery(), message.getTable());
+        return !joinQueryIndex.updateContentHash(QueryLevel.INNER, document.getKey(), changes._table,
+                ContentHasher.hashAttributes(projected));
+    }
+
+    // drops the writes of outer documents whose denormalized content is what was last written for them
+    private Collection<WritableResult> withoutUnchangedWrites(JoinQueryIndex joinQueryIndex,
+                                                              Collection<WritableResult> results) {
+        if (!_suppressUnchangedWrites) {
+            return results;
+        }
+
+        List<WritableResult> changedResults = new ArrayList<>(results.size());
+        for (WritableResult result : results) {
+            if (joinQueryIndex.updateContentHash(QueryLevel.OUTER, result.getDocument().getKey(), result.getTable(),
+                    ContentHasher.hash(result.getDocument()))) {
+                changedResults.add(result);
+            } else {
+                _metrics.inc(result.getTable(), "suppressed-writes");
+            }
+        }
+
+        return changedResults;
+    }
+
+    private static Map<String, Object> getAggregationResults(JoinQueryIndex joinQueryIndex, String table,
+                                                             Query query) {
+        RuleAggregates aggregates = joinQueryIndex.getAggregates(table, query);
+        if (aggregates == null) {
+            return Collections.emptyMap();
+        }
+
+        QueryResult queryResult = new QueryResult();
+        aggregates.addTo(queryResult);
+        return queryResult.getQueryResults();
+    }
+
+    /**
+     * @param indexedInnerDocs the inner documents of the index, which has those of every rule that shares the join
+     * @param indexedOuterDocs the outer documents of the index
+     */
+    private Collection<WritableResult> getActionsForChanges(JoinQueryIndex joinQueryIndex, JoinChanges changes,
+                                                            Supplier<List<Document>> indexedInnerDocs,
+                                                            Supplier<List<Document>> indexedOuterDocs) {
+        List<WritableResult> results = new ArrayList<>();
+
+        changes._deletedOuterDocs.values().forEach(doc ->
+                results.add(new WritableResult(doc, changes._table, WritableResult.Action.DELETE)));
+
+        Predicate<Document> innerFilter = changes._query.getJoin().getFilterPredicate();
+        Supplier<List<Document>> innerDocs = Suppliers.memoize(() -> indexedInnerDocs.get()
+                .stream()
+                .filter(innerFilter)
+                .collect(Collectors.toList()));
+        RuleAggregates aggregates = joinQueryIndex.getAggregates(changes._table, changes._query);
+        List<Document> updatedOuterDocs = new ArrayList<>(changes._updatedOuterDocs.values());
+
+        if (changes._changedInnerDocs.isEmpty()) {
+            if (!updatedOuterDocs.isEmpty()) {
+                results.addAll(withoutUnchangedWrites(joinQueryIndex, getDenormalizationForDocuments(updatedOuterDocs,
+                        innerDocs, aggregates, changes._query, changes._table)));
+            }
+            return results;
+        }
+
+        List<Document> outerDocs = indexedOuterDocs.get()
+                .stream()
+                .filter(changes._query.getFilterPredicate())
+                .collect(Collectors.toList());
+
+        if (!_incrementalJoinUpdates) {
+            results.addAll(withoutUnchangedWrites(joinQueryIndex, getDenormalizationForDocuments(outerDocs,
+                    innerDocs, aggregates, changes._query, changes._table)));
+            return results;
+        }
+
+        // outer documents that changed themselves are rebuilt in full, which already includes the inner changes
+        if (!updatedOuterDocs.isEmpty()) {
+            results.addAll(withoutUnchangedWrites(joinQueryIndex, getDenormalizationForDocuments(updatedOuterDocs,
+                    innerDocs, aggregates, changes._query, changes._table)));
+        }
+
+        List<Document> unchangedOuterDocs = outerDocs
+                .stream()
+                .filter(doc -> !changes._updatedOuterDocs.containsKey(doc.getKey()))
+                .collect(Collectors.toList());
+
+        Map<String, Document> changedInnerDocs = changes._changedInnerDocs;
+
+        // a patch with the same inner document and aggregations as the last one would not change anything
+        if (!changes._unchangedInnerKeys.isEmpty()
+                && changes._aggregationsBefore.equals(getAggregationResults(joinQueryIndex, changes._table,
+                changes._query))) {
+            changedInnerDocs = new LinkedHashMap<>(changedInnerDocs);
+            changedInnerDocs.keySet().removeAll(changes._unchangedInnerKeys);
+            _metrics.inc(changes._table, "suppressed-patches",
+                    (long) changes._unchangedInnerKeys.size() * unchangedOuterDocs.size());
+        }
+
+        results.addAll(getPatchesForInnerDocuments(unchangedOuterDocs, changedInnerDocs, innerDocs,
+                aggregates, changes._query, changes._table));
+
+        return results;
+    }
+
+    /**
+     * Stops looking up partition keys in the legacy store once it is empty. Nothing is added to it any more, so from
+     * then on every lookup would miss.
+     */
+    private void checkLegacyStoreMigrated(long now) {
+        if (_legacyStore == null || now - _lastLegacyStoreCheck < LEGACY_STORE_CHECK_INTERVAL_MS) {
+            return;
+        }
+        _lastLegacyStoreCheck = now;
+
+        KeyValueIterator<String, LegacyJoinQueryIndex> entries = _legacyStore.all();
+        try {
+            if (entries.hasNext()) {
+                return;
+            }
+        } finally {
+            entries.close();
+        }
+
+        log.info("Every join index has been moved out of {}, it can be disabled", _legacyStoreName);
+        _legacyStore = null;
+    }
+
+    private void migrateLegacyIndex(JoinQueryIndex joinQueryIndex, String partitionKey) {
+        if (_legacyStore == null) {
+            return;
+        }
+
+        LegacyJoinQueryIndex legacyIndex = _legacyStore.get(partitionKey);
+        if (legacyIndex != null) {
+            joinQueryIndex.importLegacyIndex(legacyIndex);
+            _legacyStore.delete(partitionKey);
+        }
+    }
+
+    // If a join does not exist, we can immediately just return the document as a WritableResult.
+    // We do not even need to store the document in the index, as it will only be needed when the document itself
+    // is being processed.
+    // i.e. We won't need it because it will always be in the DocumentMessage parameter
+    private Collection<WritableResult> getActionsWithoutJoin(DocumentMessage message, Query query) {
+        if (message.getOpCode() == OpCode.UPDATE) {
+            return ImmutableSet.of(new WritableResult(
+                    QueryHelper.filterAttributes(query.getExcludeAttributes(), query.getIncludeAttributes(),
+                            message.getDocument()),
+                    message.getTable(),
+                    WritableResult.Action.INDEX));
+        } else if (message.getOpCode() == OpCode.REMOVE_AND_DELETE) {
+            return ImmutableSet.of(new WritableResult(message.getDocument(),
+                    message.getTable(), WritableResult.Action.DELETE));
+        }
+
+        return ImmutableSet.of();
     }
 
     @Override
     public Collection<WritableResult> apply(DocumentMessage message) {
+        return applyBatch(message.getPartitionKey(), Collections.singletonList(message));
+    }
 
-        // If a join does not exist, we can immediately just return the document as a WritableResult.
-        // We do not even need to store the document in the index, as it will only be needed when the document itself
-        // is being processed.
-        // i.e. We won't need it because it will always be in the DocumentMessage parameter
-        if (message.getQuery().getJoin() == null) {
-
-            if (message.getOpCode() == OpCode.UPDATE) {
-                return ImmutableSet.of(new WritableResult(
-                        QueryHelper.filterAttributes(message.getQuery().getExcludeAttributes(),
-                                message.getQuery().getIncludeAttributes(), message.getDocument()),
-                        message.getTable(),
-                        WritableResult.Action.INDEX));
-            } else if (message.getOpCode() == OpCode.REMOVE_AND_DELETE) {
-                return ImmutableSet.of(new WritableResult(message.getDocument(),
-                        message.getTable(), WritableResult.Action.DELETE));
+    /**
+     * Applies messages that share a partition key to the join index in order, and then emits the final state of
+     * every affected document once, however many of the messages affected it.
+     */
+    @Override
+    public Collection<WritableResult> applyBatch(String partitionKey, Collection<DocumentMessage> messages) {
+        // documents of rules without a join are written as they are, so only the last message for each one matters
+        Map<String, DocumentMessage> messagesWithoutJoin = new LinkedHashMap<>();
+        Map<String, Query> queries = new HashMap<>();
+        Map<String, JoinChanges> changesByTable = new LinkedHashMap<>();
+        JoinQueryIndex joinQueryIndex = null;
+        long now = System.currentTimeMillis();
+        Set<Rule> retiredRules = _ruleIndexer.getRetiredRules();
+        Set<String> retiredTables = retiredRules.stream().map(Rule::getTable).collect(Collectors.toSet());
+
+        for (DocumentMessage message : messages) {
+            _metrics.inc(message.getTable(), "messages");
+
+            // sent before the rule was retired, and its entries are being purged
+            if (retiredTables.contains(message.getTable())) {
+                _metrics.inc(message.getTable(), "retired-messages");
+                continue;
             }
 
-            return ImmutableSet.of();
+            Query query = queries.computeIfAbsent(message.getTable(), table -> message.resolveQuery(_ruleIndexer));
+            if (query == null) {
+                // the rule was deleted once it was retired, or is unknown and the message was sent without its query
+                _metrics.inc(message.getTable(), "unresolved-messages");
+                continue;
+            }
+
+            if (query.getJoin() == null) {
+                String key = message.getTable() + "|" + message.getDocument().getKey();
+                messagesWithoutJoin.remove(key);
+                messagesWithoutJoin.put(key, message);
+                continue;
+            }
+
+            if (joinQueryIndex == null) {
+                joinQueryIndex = _sharedJoinPartitioning ?
+                        new JoinQueryIndex(_store, _aggregateStore, _hashStore, partitionKey,
+                                FanoutHashingUtils.getJoinSignature(query), null) :
+                        new JoinQueryIndex(_store, _aggregateStore, _hashStore, partitionKey, null,
+                                message.getTable());
+                // the legacy store was keyed by the partition keys of rules that keep their own join index
+                if (!_sharedJoinPartitioning) {
+                    migrateLegacyIndex(joinQueryIndex, partitionKey);
+                }
+            }
+
+            JoinChanges changes = changesByTable.get(message.getTable());
+            if (changes == null) {
+                changes = new JoinChanges(query, message.getTable(),
+                        isPatchingUnchangedInnerDocumentsPossible() ?
+                                getAggregationResults(joinQueryIndex, message.getTable(), query) :
+                                Collections.emptyMap());
+                changesByTable.put(message.getTable(), changes);
+            }
+
+            joinQueryIndex.expireTombstonesBefore(getTombstoneExpiry(message, now));
+
+            int addedTombstones = joinQueryIndex.getAddedTombstones();
+            int usedTombstones = joinQueryIndex.getUsedTombstones();
+            int expiredTombstones = joinQueryIndex.getExpiredTombstones();
+
+            applyToIndex(joinQueryIndex, message, changes);
+
+            _metrics.inc(message.getTable(), "added-tombstones", joinQueryIndex.getAddedTombstones() - addedTombstones);
+            _metrics.inc(message.getTable(), "used-tombstones", joinQueryIndex.getUsedTombstones() - usedTombstones);
+            _metrics.inc(message.getTable(), "expired-tombstones",
+                    joinQueryIndex.getExpiredTombstones() - expiredTombstones);
         }
 
-        JoinQueryIndex joinQueryIndex = MoreObjects.firstNonNull(_store.get(message.getPartitionKey()), new JoinQueryIndex());
-        Collection<WritableResult> writableResults = message.getOpCode() == OpCode.UPDATE ?
-                getActionsForUpdate(joinQueryIndex, message) : getActionsForRemove(joinQueryIndex, message);
+        List<WritableResult> results = new ArrayList<>();
+        messagesWithoutJoin.values().forEach(message -> results.addAll(countResults(
+                getActionsWithoutJoin(message, queries.get(message.getTable())))));
+
+        if (joinQueryIndex != null) {
+            // read once for all the rules that share the join
+            JoinQueryIndex index = joinQueryIndex;
+            Supplier<List<Document>> innerDocs = Suppliers.memoize(() -> index.getDocuments(QueryLevel.INNER));
+            Supplier<List<Document>> outerDocs = Suppliers.memoize(() -> index.getDocuments(QueryLevel.OUTER));
 
-        joinQueryIndex.refresh();
-        _store.put(message.getPartitionKey(), joinQueryIndex);
-        return writableResults;
+            for (JoinChanges changes : changesByTable.values()) {
+                int scannedEntries = index.getScannedEntries();
+                results.addAll(countResults(getActionsForChanges(index, changes, innerDocs, outerDocs)));
+                _metrics.inc(changes._table, "scanned-index-entries", index.getScannedEntries() - scannedEntries);
+            }
+        }
 
+        sweepTombstones();
+        purgeRetiredRules(retiredRules);
+        checkLegacyStoreMigrated(System.currentTimeMillis());
+
+        return results;
+    }
+
+    private Collection<WritableResult> countResults(Collection<WritableResult> results) {
+        for (WritableResult result : results) {
+            switch (result.getAction()) {
+                case INDEX:
+                    _metrics.inc(result.getTable(), "emitted-documents");
+                    break;
+                case DELETE:
+                    _metrics.inc(result.getTable(), "emitted-deletes");
+                    break;
+                case PATCH:
+                    _metrics.inc(result.getTable(), "emitted-patches");
+                    break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The net effect of the messages for one rule on the documents of a partition key.
+     */
+    private static class JoinChanges {
+        private final Query _query;
+        private final String _table;
+        private final Map<String, Document> _updatedOuterDocs = new LinkedHashMap<>();
+        private final Map<String, Document> _deletedOuterDocs = new LinkedHashMap<>();
+        // the latest version of each inner document that changed, or null if it was removed
+        private final Map<String, Document> _changedInnerDocs = new LinkedHashMap<>();
+        // changed inner documents whose new version looks the same in the join result
+        private final Set<String> _unchangedInnerKeys = new HashSet<>();
+        // the aggregations before any of the changes, only needed to tell whether patches can be skipped
+        private final Map<String, Object> _aggregationsBefore;
+
+        JoinChanges(Query query, String table, Map<String, Object> aggregationsBefore) {
+            _query = query;
+            _table = table;
+            _aggregationsBefore = aggregationsBefore;
+        }
     }
 }
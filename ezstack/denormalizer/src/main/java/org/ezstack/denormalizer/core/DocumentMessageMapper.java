@@ -6,11 +6,12 @@ import org.apache.commons.collections4.keyvalue.DefaultKeyValue;
 import org.apache.samza.config.Config;
 import org.apache.samza.operators.functions.FlatMapFunction;
 import org.apache.samza.task.TaskContext;
-import org.ezstack.denormalizer.core.curator.CuratorRuleIndexer;
+import org.ezstack.denormalizer.core.curator.CuratorHotJoinKeyRegistry;
+import org.ezstack.denormalizer.core.curator.TaskRuleIndexer;
 import org.ezstack.denormalizer.model.*;
 import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.Query;
-import org.ezstack.ezapp.datastore.api.QueryHelper;
+import org.ezstack.ezapp.datastore.api.Rule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,21 +26,46 @@ public class DocumentMessageMapper implements FlatMapFunction<DocumentChangePair
 
     private static final Logger log = LoggerFactory.getLogger(DocumentMessageMapper.class);
 
+    public static final String PROJECT_JOIN_DOCUMENTS = "denormalizer.projectJoinDocuments";
+    /**
+     * Config for embedding the rule's query in each message, for joiners that cannot look rules up by their table.
+     */
+    public static final String EMBED_RULE_QUERIES = "denormalizer.embedRuleQueries";
+    /**
+     * Config flag for partitioning the documents of rules that share a join by the join alone, so that the rules share
+     * the join index, instead of partitioning each rule on its own. Switching it changes the partition key of every
+     * join document, so the join stores have to be emptied and every join rule bootstrapped again.
+     */
+    public static final String SHARED_JOIN_PARTITIONING = "denormalizer.sharedJoinPartitioning";
+
     protected RuleIndexer _ruleIndexer;
+    private HotJoinKeyRegistry _hotJoinKeyRegistry;
+    private OperatorMetrics _metrics;
+    private boolean _projectDocuments;
+    private boolean _embedRuleQueries;
+    private boolean _sharedJoinPartitioning;
 
     private final String _zookeeperHosts;
     private final String _rulesPath;
+    private final String _hotJoinKeysPath;
     private final TombstoningPolicy _tombstoningPolicy;
 
-    public DocumentMessageMapper(String zookeeperHosts, String rulesPath, TombstoningPolicy tombstoningPolicy) {
+    public DocumentMessageMapper(String zookeeperHosts, String rulesPath, String hotJoinKeysPath,
+                                 TombstoningPolicy tombstoningPolicy) {
         _zookeeperHosts = checkNotNull(zookeeperHosts, "zookeeperHosts");
         _rulesPath = checkNotNull(rulesPath, "rulesPath");
+        _hotJoinKeysPath = checkNotNull(hotJoinKeysPath, "hotJoinKeysPath");
         _tombstoningPolicy = checkNotNull(tombstoningPolicy, "tombstoningPolicy");
     }
 
+    /**
+     * Maps documents without splitting hot join keys, so the outer documents of a split key are sent to its base
+     * partition. The {@link HotJoinKeyReplicator} of the base partition forwards them to their sub-partitions.
+     */
     public DocumentMessageMapper(RuleIndexer ruleIndexer, TombstoningPolicy tombstoningPolicy) {
         _zookeeperHosts = null;
         _rulesPath = null;
+        _hotJoinKeysPath = null;
         _tombstoningPolicy = checkNotNull(tombstoningPolicy, "tombstoningPolicy");
         _ruleIndexer = checkNotNull(ruleIndexer, "ruleIndexer");
 
@@ -47,21 +73,32 @@ public class DocumentMessageMapper implements FlatMapFunction<DocumentChangePair
 
     @Override
     public void init(Config config, TaskContext context) {
+        _metrics = new OperatorMetrics(context.getMetricsRegistry(), DocumentMessageMapper.class);
+        _projectDocuments = config.getBoolean(PROJECT_JOIN_DOCUMENTS, true);
+        _embedRuleQueries = config.getBoolean(EMBED_RULE_QUERIES, true);
+        _sharedJoinPartitioning = config.getBoolean(SHARED_JOIN_PARTITIONING, false);
+
         if (_ruleIndexer == null) {
-            _ruleIndexer = new CuratorRuleIndexer(_zookeeperHosts, _rulesPath, context.getTaskName().getTaskName());
+            _ruleIndexer = new TaskRuleIndexer(_zookeeperHosts, _rulesPath, context.getTaskName().getTaskName(), true);
         }
         _ruleIndexer.startAsync().awaitRunning();
+
+        if (_hotJoinKeysPath != null) {
+            _hotJoinKeyRegistry = new CuratorHotJoinKeyRegistry(_zookeeperHosts, _hotJoinKeysPath);
+            _hotJoinKeyRegistry.startAsync().awaitRunning();
+        }
     }
 
     @Override
     public void close() {
         _ruleIndexer.stopAsync().awaitTerminated();
+        if (_hotJoinKeyRegistry != null) {
+            _hotJoinKeyRegistry.stopAsync().awaitTerminated();
+        }
     }
 
     private boolean doesMatchRule(RuleIndexPair pair, Document doc) {
-        Query q = pair.getLevel() == QueryLevel.OUTER ? pair.getRule().getQuery() : pair.getRule().getQuery().getJoin();
-
-        return QueryHelper.meetsFilters(q.getFilters(), doc);
+        return RulePredicateIndex.getQueryForLevel(pair).getFilterPredicate().test(doc);
     }
 
     // determines if a document has the requisite join attribute values to
@@ -83,56 +120,106 @@ public class DocumentMessageMapper implements FlatMapFunction<DocumentChangePair
             return ImmutableSet.of();
         }
 
-        return _ruleIndexer.getApplicableRulesForTable(document.getTable())
+        return _ruleIndexer.getCandidateRulesForDocument(document)
                 .stream()
+                .peek(pair -> _metrics.inc(pair.getRule().getTable(), "evaluated-rules"))
                 .filter(pair -> documentHasJoinAttributeValues(pair, document))
                 .filter(pair -> doesMatchRule(pair, document))
+                .peek(pair -> _metrics.inc(pair.getRule().getTable(), "matched-rules"))
                 .collect(Collectors.toSet());
     }
 
+    // only the outer side of a hot key is split, the base partition replicates the inner side to each sub-partition
+    private String getPartitionKey(Document document, RuleIndexPair pair) {
+        String partitionKey = FanoutHashingUtils.getPartitionKey(document, pair.getLevel(), pair.getRule(),
+                _sharedJoinPartitioning);
+
+        if (_hotJoinKeyRegistry == null || pair.getLevel() != QueryLevel.OUTER
+                || pair.getRule().getQuery().getJoin() == null) {
+            return partitionKey;
+        }
+
+        return FanoutHashingUtils.getSaltedPartitionKey(partitionKey, document,
+                _hotJoinKeyRegistry.getSaltCount(partitionKey));
+    }
+
+    // the rules whose documents are kept in the same join index as the rule's
+    private Set<Rule> getRulesSharingIndex(Rule rule) {
+        return _sharedJoinPartitioning ? _ruleIndexer.getRulesSharingJoin(rule) : Collections.singleton(rule);
+    }
+
+    // the rules that share a join index share its tombstones, so they are kept while any of the rules needs them
+    private boolean shouldTombstoneJoin(Rule rule) {
+        return getRulesSharingIndex(rule)
+                .stream()
+                .anyMatch(joinRule -> shouldTombstone(_tombstoningPolicy, joinRule));
+    }
+
+    private boolean isJoinActive(Rule rule) {
+        return getRulesSharingIndex(rule)
+                .stream()
+                .allMatch(joinRule -> joinRule.getStatus() == Rule.RuleStatus.ACTIVE);
+    }
+
+    // the rules that share a join share its index, so a document keeps what any of them reads at its level
+    private Document project(Document document, RuleIndexPair pair) {
+        if (!_projectDocuments) {
+            return document;
+        }
+        return _ruleIndexer.getProjection(pair.getRule(), pair.getLevel()).apply(document);
+    }
+
+    private void addMessage(Collection<DocumentMessage> messages, Document document, RuleIndexPair pair, OpCode opCode) {
+        String partitionKey = getPartitionKey(document, pair);
+        document = project(document, pair);
+        Query query = _embedRuleQueries ? pair.getRule().getQuery() : null;
+        _metrics.inc(pair.getRule().getTable(), "messages");
+
+        messages.add(new DocumentMessage(document, partitionKey, pair.getLevel(), opCode,
+                query, pair.getRule().getTable(), shouldTombstoneJoin(pair.getRule()),
+                isJoinActive(pair.getRule())));
+    }
+
     @Override
     public Collection<DocumentMessage> apply(DocumentChangePair changePair) {
+        _metrics.counter("documents").inc();
+
         Set<RuleIndexPair> oldApplicableRules = getApplicableQueries(changePair.getOldDocument());
         Set<RuleIndexPair> newApplicableRules = getApplicableQueries(changePair.getNewDocument());
 
         Set<KeyValue<String, QueryLevel>> newPartitionLocations = newApplicableRules
                 .stream()
-                .map(pair -> new DefaultKeyValue<>(FanoutHashingUtils.getPartitionKey(changePair.getNewDocument(),
-                        pair.getLevel(), pair.getRule()), pair.getLevel()))
+                .map(pair -> new DefaultKeyValue<>(getPartitionKey(changePair.getNewDocument(), pair), pair.getLevel()))
+                .collect(Collectors.toSet());
+
+        Set<KeyValue<RuleIndexPair, String>> newRuleLocations = newApplicableRules
+                .stream()
+                .map(pair -> new DefaultKeyValue<>(pair, getPartitionKey(changePair.getNewDocument(), pair)))
                 .collect(Collectors.toSet());
 
         Set<RuleIndexPair> deleteRulePairs = oldApplicableRules
                 .stream()
-                .filter(pair -> !newPartitionLocations.contains(new DefaultKeyValue<>(
-                        FanoutHashingUtils.getPartitionKey(changePair.getOldDocument(),
-                                pair.getLevel(), pair.getRule()), pair.getLevel())))
+                .filter(pair -> !newRuleLocations.contains(new DefaultKeyValue<>(
+                        pair, getPartitionKey(changePair.getOldDocument(), pair))))
                 .collect(Collectors.toSet());
 
         Collection<DocumentMessage> messages = new LinkedList<>();
 
         // add all the update messages
         for (RuleIndexPair rulePair : newApplicableRules) {
-            messages.add(new DocumentMessage(changePair.getNewDocument(),
-                    FanoutHashingUtils.getPartitionKey(changePair.getNewDocument(),
-                            rulePair.getLevel(), rulePair.getRule()),
-                    rulePair.getLevel(), OpCode.UPDATE, rulePair.getRule().getQuery(),
-                    rulePair.getRule().getTable(), shouldTombstone(_tombstoningPolicy, rulePair.getRule())));
+            addMessage(messages, changePair.getNewDocument(), rulePair, OpCode.UPDATE);
         }
 
         // add all the delete messages
         for (RuleIndexPair rulePair : deleteRulePairs) {
-            if (!newApplicableRules.contains(rulePair) && rulePair.getLevel() == QueryLevel.OUTER) {
-                messages.add(new DocumentMessage(changePair.getOldDocument(),
-                        FanoutHashingUtils.getPartitionKey(changePair.getOldDocument(),
-                                rulePair.getLevel(), rulePair.getRule()),
-                        rulePair.getLevel(), OpCode.REMOVE_AND_DELETE, rulePair.getRule().getQuery(),
-                        rulePair.getRule().getTable(), shouldTombstone(_tombstoningPolicy, rulePair.getRule())));
+            if (newPartitionLocations.contains(new DefaultKeyValue<>(
+                    getPartitionKey(changePair.getOldDocument(), rulePair), rulePair.getLevel()))) {
+                // another rule that shares the join still has the document where it was
+                addMessage(messages, changePair.getOldDocument(), rulePair, OpCode.DETACH);
+            } else if (!newApplicableRules.contains(rulePair) && rulePair.getLevel() == QueryLevel.OUTER) {
+                addMessage(messages, changePair.getOldDocument(), rulePair, OpCode.REMOVE_AND_DELETE);
             } else {
-                messages.add(new DocumentMessage(changePair.getOldDocument(),
-                        FanoutHashingUtils.getPartitionKey(changePair.getOldDocument(),
-                                rulePair.getLevel(), rulePair.getRule()),
-                        rulePair.getLevel(), OpCode.REMOVE, rulePair.getRule().getQuery(),
-                        rulePair.getRule().getTable(), shouldTombstone(_tombstoningPolicy, rulePair.getRule())));
+                addMessage(messages, changePair.getOldDocument(), rulePair, OpCode.REMOVE);
             }
         }
 
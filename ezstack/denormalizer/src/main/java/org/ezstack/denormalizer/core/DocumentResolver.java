@@ -1,49 +1,218 @@
 package org.ezstack.denormalizer.core;
 
+import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.collect.ImmutableSet;
 import org.apache.samza.config.Config;
+import org.apache.samza.operators.KV;
 import org.apache.samza.operators.functions.FlatMapFunction;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
 import org.apache.samza.storage.kv.KeyValueStore;
 import org.apache.samza.task.TaskContext;
 import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.denormalizer.model.AttributeUpdateTimes;
 import org.ezstack.denormalizer.model.DocumentChangePair;
+import org.ezstack.ezapp.datastore.api.FieldOperation;
 import org.ezstack.ezapp.datastore.api.KeyBuilder;
 import org.ezstack.ezapp.datastore.api.Update;
+import org.ezstack.ezapp.datastore.api.WritePriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-public class DocumentResolver implements FlatMapFunction<Update, DocumentChangePair> {
+/**
+ * Applies the updates of both {@link WritePriority} lanes to the stored documents. The updates of one lane are applied
+ * in the order the lane delivers them. An update is only kept from changing the attributes that the other lane has
+ * since changed with a newer update, see {@link AttributeUpdateTimes}.
+ */
+public class DocumentResolver implements FlatMapFunction<KV<WritePriority, Update>, DocumentChangePair> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentResolver.class);
+
+    // kept in the update times store once its task's documents have been moved to their fixed width keys. Document
+    // keys are 16 bytes long, so it cannot clash with them
+    private static final ByteBuffer LEGACY_KEYS_MIGRATED = ByteBuffer.wrap(
+            "~legacyKeysMigrated".getBytes(StandardCharsets.UTF_8));
 
     private final String _storeName;
-    private KeyValueStore<String, Document> _store;
+    private final String _updateTimesStoreName;
+    private KeyValueStore<ByteBuffer, Document> _store;
+    private KeyValueStore<ByteBuffer, AttributeUpdateTimes> _updateTimesStore;
+    private OperatorMetrics _metrics;
 
-    public DocumentResolver(String storeName) {
+    public DocumentResolver(String storeName, String updateTimesStoreName) {
         _storeName = storeName;
+        _updateTimesStoreName = updateTimesStoreName;
     }
 
     @Override
     public void init(Config config, TaskContext context) {
-        _store = (KeyValueStore<String, Document>) context.getStore(_storeName);
+        _metrics = new OperatorMetrics(context.getMetricsRegistry(), DocumentResolver.class);
+        _store = _metrics.timed((KeyValueStore<ByteBuffer, Document>) context.getStore(_storeName), _storeName);
+        _updateTimesStore = _metrics.timed(
+                (KeyValueStore<ByteBuffer, AttributeUpdateTimes>) context.getStore(_updateTimesStoreName),
+                _updateTimesStoreName);
+        if (config.getBoolean("denormalizer.migrateLegacyStoreKeys", true)
+                && _updateTimesStore.get(LEGACY_KEYS_MIGRATED) == null) {
+            migrateLegacyKeys();
+            _updateTimesStore.put(LEGACY_KEYS_MIGRATED, new AttributeUpdateTimes());
+        }
+    }
+
+    /**
+     * Moves every document stored under the old variable width key to its fixed width key, the first time the task
+     * starts. Documents are only stored under fixed width keys from then on. This only re-keys the documents of this
+     * task's store, the writer keeps sending them to the partitions of their old keys.
+     */
+    private void migrateLegacyKeys() {
+        List<ByteBuffer> legacyKeys = new ArrayList<>();
+
+        KeyValueIterator<ByteBuffer, Document> entries = _store.all();
+        try {
+            while (entries.hasNext()) {
+                Entry<ByteBuffer, Document> entry = entries.next();
+                Document document = entry.getValue();
+                if (!entry.getKey().equals(getStoreKey(document.getTable(), document.getKey()))) {
+                    legacyKeys.add(entry.getKey());
+                }
+            }
+        } finally {
+            entries.close();
+        }
+
+        for (ByteBuffer legacyKey : legacyKeys) {
+            Document document = _store.get(legacyKey);
+            _store.put(getStoreKey(document.getTable(), document.getKey()), document);
+            _store.delete(legacyKey);
+        }
+
+        LOG.info("Moved {} documents from legacy keys in {}", legacyKeys.size(), _storeName);
+    }
+
+    private static ByteBuffer getStoreKey(String table, String key) {
+        return ByteBuffer.wrap(KeyBuilder.hashKeyAsBytes(table, key));
     }
 
     @Override
-    public Collection<DocumentChangePair> apply(Update update) {
-        String storeKey = KeyBuilder.hashKey(update.getTable(), update.getKey());
+    public Collection<DocumentChangePair> apply(KV<WritePriority, Update> laneUpdate) {
+        WritePriority lane = laneUpdate.getKey();
+        Update update = laneUpdate.getValue();
+        long updateAtMillis = UUIDs.unixTimestamp(update.getTimestamp());
+        ByteBuffer storeKey = getStoreKey(update.getTable(), update.getKey());
         Document storedDocument = _store.get(storeKey);
+        _metrics.inc(update.getTable(), "updates");
 
         if (storedDocument == null) {
             storedDocument = new Document(update);
             _store.put(storeKey, storedDocument);
+            AttributeUpdateTimes updateTimes = new AttributeUpdateTimes();
+            setChanged(updateTimes, getChangedAttributes(update, null), lane, updateAtMillis);
+            _updateTimesStore.put(storeKey, updateTimes);
+            _metrics.inc(update.getTable(), "created-documents");
             return ImmutableSet.of(new DocumentChangePair(null, storedDocument));
         }
 
-        Document oldDocument = storedDocument.clone();
-        storedDocument.addUpdate(update);
-        if (storedDocument.getVersion() != oldDocument.getVersion()) {
-            _store.put(storeKey, storedDocument);
-            return ImmutableSet.of(new DocumentChangePair(oldDocument, storedDocument));
+        AttributeUpdateTimes updateTimes = _updateTimesStore.get(storeKey);
+        if (updateTimes == null) {
+            updateTimes = new AttributeUpdateTimes();
+        }
+
+        // the other lane may have delivered newer changes to some of the attributes first, which must not be undone
+        Set<String> changedAttributes = getChangedAttributes(update, storedDocument);
+        Set<String> newerAttributes = new HashSet<>();
+        for (String attribute : changedAttributes) {
+            if (updateTimes.isChangedAfter(attribute, lane, updateAtMillis)) {
+                newerAttributes.add(attribute);
+            }
+        }
+
+        if (!newerAttributes.isEmpty()) {
+            _metrics.inc(update.getTable(), "late-updates");
+            _metrics.inc(update.getTable(), "late-attributes", newerAttributes.size());
+            changedAttributes.removeAll(newerAttributes);
+            if (changedAttributes.isEmpty()) {
+                _metrics.inc(update.getTable(), "ignored-updates");
+                return ImmutableSet.of();
+            }
+            update = withoutAttributes(update, newerAttributes, storedDocument);
         }
 
+        if (setChanged(updateTimes, changedAttributes, lane, updateAtMillis)) {
+            _updateTimesStore.put(storeKey, updateTimes);
+        }
+
+        // the update copies only what it changes, so the stored document is left as the old version
+        Document newDocument = storedDocument.snapshot();
+        newDocument.addUpdate(update);
+        if (newDocument.getVersion() != storedDocument.getVersion()) {
+            _store.put(storeKey, newDocument);
+            _metrics.inc(update.getTable(), "changed-documents");
+            return ImmutableSet.of(new DocumentChangePair(storedDocument, newDocument));
+        }
+
+        _metrics.inc(update.getTable(), "ignored-updates");
         return ImmutableSet.of();
     }
+
+    /**
+     * @return the top level attributes the update sets, removes or applies operations to. An update that replaces the
+     * document also removes every stored attribute it does not have.
+     */
+    private static Set<String> getChangedAttributes(Update update, Document storedDocument) {
+        Set<String> attributes = new HashSet<>(update.getData().keySet());
+        if (!update.isUpdate() && storedDocument != null) {
+            attributes.addAll(storedDocument.getData().keySet());
+        }
+        for (Map<String, Object> arguments : update.getOperations().values()) {
+            attributes.addAll(arguments.keySet());
+        }
+        return attributes;
+    }
+
+    private static boolean setChanged(AttributeUpdateTimes updateTimes, Set<String> attributes, WritePriority lane,
+                                      long updateAtMillis) {
+        boolean changed = false;
+        for (String attribute : attributes) {
+            changed |= updateTimes.setChanged(attribute, lane, updateAtMillis);
+        }
+        return changed;
+    }
+
+    /**
+     * The update without its changes to the given attributes. An update that replaces the document keeps their stored
+     * values instead.
+     */
+    private static Update withoutAttributes(Update update, Set<String> attributes, Document storedDocument) {
+        Map<String, Object> data = new LinkedHashMap<>(update.getData());
+        data.keySet().removeAll(attributes);
+        if (!update.isUpdate()) {
+            for (String attribute : attributes) {
+                if (storedDocument.getData().containsKey(attribute)) {
+                    data.put(attribute, storedDocument.getData().get(attribute));
+                }
+            }
+        }
+
+        Map<FieldOperation, Map<String, Object>> operations = new EnumMap<>(FieldOperation.class);
+        for (Map.Entry<FieldOperation, Map<String, Object>> operation : update.getOperations().entrySet()) {
+            Map<String, Object> arguments = new LinkedHashMap<>(operation.getValue());
+            arguments.keySet().removeAll(attributes);
+            if (!arguments.isEmpty()) {
+                operations.put(operation.getKey(), arguments);
+            }
+        }
+
+        return new Update(update.getTable(), update.getKey(), update.getTimestamp(), data, update.isUpdate(),
+                operations);
+    }
 }
@@ -1,25 +1,82 @@
 package org.ezstack.denormalizer.core;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.apache.samza.SamzaException;
+import org.apache.samza.config.Config;
+import org.apache.samza.metrics.Timer;
 import org.apache.samza.operators.functions.SinkFunction;
 import org.apache.samza.system.OutgoingMessageEnvelope;
 import org.apache.samza.system.SystemStream;
 import org.apache.samza.task.MessageCollector;
+import org.apache.samza.task.TaskContext;
 import org.apache.samza.task.TaskCoordinator;
+import org.ezstack.denormalizer.model.JoinPatch;
 import org.ezstack.denormalizer.model.WritableResult;
+import org.ezstack.ezapp.datastore.api.Document;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 public class ElasticsearchIndexer implements SinkFunction<WritableResult> {
 
+    /**
+     * Config flag for patching the join results of indexed documents when an inner document changes, instead of
+     * reindexing the outer documents in full. Patches are scripted updates, which bump the Elasticsearch version of
+     * the document, so in this mode every write compares against the "~version" stored in the document instead.
+     * The two modes cannot be mixed on the same indexes.
+     */
+    public static final String INCREMENTAL_JOIN_UPDATES = "denormalizer.incrementalJoinUpdates";
+
+    // replaces the document, unless a newer version of it is already indexed
+    private static final String UPSERT_SCRIPT =
+            "def stored = ctx._source['~version']; " +
+            "if (stored == null || stored <= params.version) { ctx._source = params.document; } " +
+            "else { ctx.op = 'none'; }";
+
+    private static final String DELETE_SCRIPT =
+            "def stored = ctx._source['~version']; " +
+            "if (stored == null || stored <= params.version) { ctx.op = 'delete'; } " +
+            "else { ctx.op = 'none'; }";
+
+    // only patches the version of the outer document that the join index knows about, since any other version
+    // belongs to a different partition of the join
+    private static final String PATCH_SCRIPT =
+            "def stored = ctx._source['~version']; " +
+            "if (stored == null || stored != params.version) { ctx.op = 'none'; } " +
+            "else { " +
+            "  def join = ctx._source[params.attribute]; " +
+            "  if (join == null) { join = new HashMap(); ctx._source[params.attribute] = join; } " +
+            "  if (params.includeDocuments) { " +
+            "    def docs = join['_documents']; " +
+            "    if (docs == null) { docs = new ArrayList(); join['_documents'] = docs; } " +
+            "    String key = params.key; " +
+            "    docs.removeIf(d -> key.equals(d['~key'])); " +
+            "    if (params.document != null) { docs.add(params.document); } " +
+            "  } " +
+            "  join.putAll(params.aggregations); " +
+            "}";
+
     private static final ObjectMapper _mapper = new ObjectMapper();
 
     private final String _clusterName;
+    private boolean _incrementalJoinUpdates;
+    private OperatorMetrics _metrics;
+    private Timer _serializeTimer;
 
     public ElasticsearchIndexer(String clusterName) {
         _clusterName = clusterName;
     }
 
+    @Override
+    public void init(Config config, TaskContext context) {
+        _incrementalJoinUpdates = config.getBoolean(INCREMENTAL_JOIN_UPDATES, false);
+        _metrics = new OperatorMetrics(context.getMetricsRegistry(), ElasticsearchIndexer.class);
+        _serializeTimer = _metrics.timer("serialize-ns");
+    }
+
     private String getESDeletePath(String index, String type, int version) {
         return String.format("%s/%s/delete/internal/%d", index, type, version);
     }
@@ -28,23 +85,87 @@ public class ElasticsearchIndexer implements SinkFunction<WritableResult> {
         return String.format("%s/%s/index/external_gte/%d", index, type, version);
     }
 
+    private String getESScriptedUpdatePath(String index, String type) {
+        return String.format("%s/%s/update", index, type);
+    }
+
+    // written straight to JSON bytes, which the write request takes as its source, instead of through an
+    // intermediate map that would be serialized again
+    private byte[] toJson(Document document, String table) {
+        long start = System.nanoTime();
+        try {
+            byte[] json = _mapper.writeValueAsBytes(document);
+            _metrics.inc(table, "serialized-bytes", json.length);
+            return json;
+        } catch (JsonProcessingException e) {
+            throw new SamzaException("Error serializing document " + document.getKey(), e);
+        } finally {
+            _serializeTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    private void sendScriptedUpdate(WritableResult resultMsg, MessageCollector messageCollector, String script,
+                                    Map<String, Object> params, Map<String, Object> upsert) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("script", script);
+        message.put("params", params);
+        if (upsert != null) {
+            message.put("upsert", upsert);
+        }
+
+        messageCollector.send(new OutgoingMessageEnvelope(
+                new SystemStream(_clusterName, getESScriptedUpdatePath(resultMsg.getTable(), resultMsg.getTable())),
+                resultMsg.getDocument().getKey(), message));
+    }
+
+    private void sendPatch(WritableResult resultMsg, MessageCollector messageCollector) {
+        JoinPatch patch = resultMsg.getPatch();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("version", resultMsg.getDocument().getVersion());
+        params.put("attribute", patch.getJoinAttributeName());
+        params.put("key", patch.getInnerKey());
+        params.put("document", patch.getInnerDocument() == null ? null :
+                _mapper.convertValue(patch.getInnerDocument(), Map.class));
+        params.put("includeDocuments", patch.includeDocuments());
+        params.put("aggregations", _mapper.convertValue(patch.getAggregations(), Map.class));
+
+        sendScriptedUpdate(resultMsg, messageCollector, PATCH_SCRIPT, params, null);
+    }
+
     @Override
     public void apply(WritableResult resultMsg, MessageCollector messageCollector, TaskCoordinator taskCoordinator) {
+        _metrics.inc(resultMsg.getTable(), resultMsg.getAction().name().toLowerCase() + "-requests");
 
         switch (resultMsg.getAction()) {
             case INDEX:
+                if (_incrementalJoinUpdates) {
+                    Map<String, Object> document = _mapper.convertValue(resultMsg.getDocument(), Map.class);
+                    sendScriptedUpdate(resultMsg, messageCollector, UPSERT_SCRIPT,
+                            ImmutableMap.of("version", resultMsg.getDocument().getVersion(), "document", document),
+                            document);
+                    break;
+                }
                 messageCollector.send(new OutgoingMessageEnvelope(
                         new SystemStream(_clusterName,
                                 getESUpdatePath(resultMsg.getTable(), resultMsg.getTable(), resultMsg.getDocument().getVersion())),
-                        resultMsg.getDocument().getKey(), _mapper.convertValue(resultMsg.getDocument(), Map.class)));
+                        resultMsg.getDocument().getKey(), toJson(resultMsg.getDocument(), resultMsg.getTable())));
                 break;
             case DELETE:
+                if (_incrementalJoinUpdates) {
+                    sendScriptedUpdate(resultMsg, messageCollector, DELETE_SCRIPT,
+                            ImmutableMap.of("version", resultMsg.getDocument().getVersion()), null);
+                    break;
+                }
                 // Deletes must specify a version number to prevent the race condition where it accidentally deletes
                 // an already updated document from a different container
                 messageCollector.send(new OutgoingMessageEnvelope(
                         new SystemStream(_clusterName,
                                 getESDeletePath(resultMsg.getTable(), resultMsg.getTable(), resultMsg.getDocument().getVersion())),
-                        resultMsg.getDocument().getKey(), _mapper.convertValue(resultMsg.getDocument(), Map.class)));
+                        resultMsg.getDocument().getKey(), Collections.emptyMap()));
+                break;
+            case PATCH:
+                sendPatch(resultMsg, messageCollector);
                 break;
         }
 
@@ -0,0 +1,231 @@
+package org.ezstack.denormalizer.core;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.samza.config.Config;
+import org.apache.samza.config.JavaSystemConfig;
+import org.apache.samza.config.StreamConfig;
+import org.apache.samza.operators.KV;
+import org.apache.samza.operators.functions.FlatMapFunction;
+import org.apache.samza.storage.kv.KeyValueStore;
+import org.apache.samza.system.SystemAdmin;
+import org.apache.samza.task.TaskContext;
+import org.ezstack.denormalizer.core.curator.CuratorHotJoinKeyRegistry;
+import org.ezstack.denormalizer.core.curator.TaskRuleIndexer;
+import org.ezstack.denormalizer.model.*;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Splits the outer side of join partition keys that receive too many outer documents, so that one join group is no
+ * longer processed by a single task. Outer documents of a hot key are spread across salted sub-partitions by the
+ * {@link DocumentMessageMapper}, while the inner documents keep going to the base partition, where this copies them
+ * to every other sub-partition. When a key is first split, the inner documents already in its join index are copied
+ * as well, and the outer documents that belong to other sub-partitions are moved there.
+ *
+ * Outer documents can still reach the base partition after the split, from mappers that have not seen it yet or that
+ * do not split keys, such as the bootstrapper's. Those that belong to another sub-partition are forwarded to it.
+ *
+ * Keys are detected from the number of outer updates they receive within an interval, counted separately by each
+ * task, and once split they stay split.
+ *
+ * The copies are keyed by sub-partition key, the same way the join messages are, so the stream they are sent to has
+ * to have as many partitions as the join message stream for each copy to reach the task of its sub-partition. Samza
+ * creates both with the same count when neither exists yet, and this checks it when the task starts.
+ */
+public class HotJoinKeyReplicator implements FlatMapFunction<DocumentMessage, KV<String, DocumentMessage>>,
+        BatchFunction<DocumentMessage, KV<String, DocumentMessage>> {
+
+    private static final Logger log = LoggerFactory.getLogger(HotJoinKeyReplicator.class);
+
+    /**
+     * Config for the number of outer updates a partition key has to receive within an interval to be split. 0 stops
+     * new keys from being split, but keeps replicating the inner documents of the keys that already are.
+     */
+    public static final String HOT_JOIN_KEY_THRESHOLD = "denormalizer.hotJoinKeyThreshold";
+    public static final String HOT_JOIN_KEY_INTERVAL_MS = "denormalizer.hotJoinKeyIntervalMs";
+    public static final String HOT_JOIN_KEY_SALTS = "denormalizer.hotJoinKeySalts";
+
+    private final String _zookeeperHosts;
+    private final String _rulesPath;
+    private final String _hotJoinKeysPath;
+    private final String _storeName;
+    private final String _joinStreamId;
+    private final String _replicatedStreamId;
+
+    private HotJoinKeyRegistry _hotJoinKeyRegistry;
+    private RuleIndexer _ruleIndexer;
+    private KeyValueStore<String, JoinIndexEntry> _store;
+    private long _threshold;
+    private long _intervalMs;
+    private int _saltCount;
+
+    // outer updates per partition key within the current interval
+    private final Map<String, Long> _outerUpdateCounts = new HashMap<>();
+    private long _intervalStart;
+
+    public HotJoinKeyReplicator(String zookeeperHosts, String rulesPath, String hotJoinKeysPath, String storeName,
+                                String joinStreamId, String replicatedStreamId) {
+        _zookeeperHosts = checkNotNull(zookeeperHosts, "zookeeperHosts");
+        _rulesPath = checkNotNull(rulesPath, "rulesPath");
+        _hotJoinKeysPath = checkNotNull(hotJoinKeysPath, "hotJoinKeysPath");
+        _storeName = checkNotNull(storeName, "storeName");
+        _joinStreamId = checkNotNull(joinStreamId, "joinStreamId");
+        _replicatedStreamId = checkNotNull(replicatedStreamId, "replicatedStreamId");
+    }
+
+    @Override
+    public void init(Config config, TaskContext context) {
+        _store = (KeyValueStore<String, JoinIndexEntry>) context.getStore(_storeName);
+        _threshold = config.getLong(HOT_JOIN_KEY_THRESHOLD, 0);
+        _intervalMs = config.getLong(HOT_JOIN_KEY_INTERVAL_MS, 60000);
+        _saltCount = config.getInt(HOT_JOIN_KEY_SALTS, 8);
+
+        int joinPartitions = getPartitionCount(config, _joinStreamId);
+        int replicatedPartitions = getPartitionCount(config, _replicatedStreamId);
+        checkState(joinPartitions == replicatedPartitions,
+                "Stream %s has %s partitions but %s has %s, they must have the same number of partitions",
+                _replicatedStreamId, replicatedPartitions, _joinStreamId, joinPartitions);
+
+        _hotJoinKeyRegistry = new CuratorHotJoinKeyRegistry(_zookeeperHosts, _hotJoinKeysPath);
+        _hotJoinKeyRegistry.startAsync().awaitRunning();
+
+        // only used to tell join messages apart, so it leaves acknowledging rules to the mapper
+        _ruleIndexer = new TaskRuleIndexer(_zookeeperHosts, _rulesPath, context.getTaskName().getTaskName(), false);
+        _ruleIndexer.startAsync().awaitRunning();
+    }
+
+    private static int getPartitionCount(Config config, String streamId) {
+        StreamConfig streamConfig = new StreamConfig(config);
+        String system = streamConfig.getSystem(streamId);
+        String physicalName = streamConfig.getPhysicalName(streamId);
+        SystemAdmin admin = new JavaSystemConfig(config).getSystemFactories().get(system).getAdmin(system, config);
+
+        return admin.getSystemStreamMetadata(ImmutableSet.of(physicalName)).get(physicalName)
+                .getSystemStreamPartitionMetadata().size();
+    }
+
+    @Override
+    public void close() {
+        _hotJoinKeyRegistry.stopAsync().awaitTerminated();
+        _ruleIndexer.stopAsync().awaitTerminated();
+    }
+
+    private boolean isJoin(DocumentMessage message) {
+        Query query = message.resolveQuery(_ruleIndexer);
+        return query != null && query.getJoin() != null;
+    }
+
+    @Override
+    public Collection<KV<String, DocumentMessage>> apply(DocumentMessage message) {
+        return applyBatch(message.getPartitionKey(), Collections.singletonList(message));
+    }
+
+    @Override
+    public Collection<KV<String, DocumentMessage>> applyBatch(String partitionKey, Collection<DocumentMessage> messages) {
+        // sub-partitions only receive copies, it is up to the base partition to make them
+        if (FanoutHashingUtils.isSubPartitionKey(partitionKey) || messages.isEmpty()
+                || !isJoin(messages.iterator().next())) {
+            return Collections.emptyList();
+        }
+
+        List<KV<String, DocumentMessage>> replicas = new ArrayList<>();
+
+        int saltCount = _hotJoinKeyRegistry.getSaltCount(partitionKey);
+        if (saltCount == 1 && isHot(partitionKey, messages)) {
+            saltCount = _hotJoinKeyRegistry.markHot(partitionKey, _saltCount);
+            _outerUpdateCounts.remove(partitionKey);
+
+            // the messages of this batch may not be in the join index yet, but they are replicated or forwarded below
+            DocumentMessage template = messages.iterator().next();
+            JoinQueryIndex joinQueryIndex = new JoinQueryIndex(_store, partitionKey);
+            for (Document document : joinQueryIndex.getDocuments(QueryLevel.INNER)) {
+                addReplicas(replicas, new DocumentMessage(document, partitionKey, QueryLevel.INNER, OpCode.UPDATE,
+                        template.getQuery(), template.getTable(), false), saltCount);
+            }
+            for (Document document : joinQueryIndex.getDocuments(QueryLevel.OUTER)) {
+                forwardOuterDocument(replicas, new DocumentMessage(document, partitionKey, QueryLevel.OUTER,
+                        OpCode.UPDATE, template.getQuery(), template.getTable(), false), saltCount);
+            }
+        }
+
+        if (saltCount > 1) {
+            for (DocumentMessage message : messages) {
+                if (message.getDocumentLevel() == QueryLevel.INNER) {
+                    addReplicas(replicas, message, saltCount);
+                } else {
+                    forwardOuterDocument(replicas, message, saltCount);
+                }
+            }
+        }
+
+        return replicas;
+    }
+
+    /**
+     * Sends an outer document that reached the base partition of a split key to the sub-partition it belongs to. An
+     * update is also moved out of the base partition, which the joiner indexed it in. Moves are sent by this and are
+     * not forwarded, or they would remove the document from where it was moved to.
+     */
+    private void forwardOuterDocument(List<KV<String, DocumentMessage>> replicas, DocumentMessage message,
+                                      int saltCount) {
+        String partitionKey = message.getPartitionKey();
+        String subPartitionKey = FanoutHashingUtils.getSaltedPartitionKey(partitionKey, message.getDocument(),
+                saltCount);
+        if (message.getOpCode() == OpCode.MOVE || subPartitionKey.equals(partitionKey)) {
+            return;
+        }
+
+        replicas.add(KV.of(subPartitionKey, new DocumentMessage(message.getDocument(), subPartitionKey,
+                QueryLevel.OUTER, message.getOpCode(), message.getQuery(), message.getTable(),
+                message.shouldTombstone(), message.isRuleActive())));
+
+        if (message.getOpCode() == OpCode.UPDATE) {
+            replicas.add(KV.of(partitionKey, new DocumentMessage(message.getDocument(), partitionKey, QueryLevel.OUTER,
+                    OpCode.MOVE, message.getQuery(), message.getTable(), false)));
+        }
+    }
+
+    private boolean isHot(String partitionKey, Collection<DocumentMessage> messages) {
+        if (_threshold <= 0) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - _intervalStart >= _intervalMs) {
+            _outerUpdateCounts.clear();
+            _intervalStart = now;
+        }
+
+        long outerUpdates = messages
+                .stream()
+                .filter(message -> message.getDocumentLevel() == QueryLevel.OUTER && message.getOpCode() == OpCode.UPDATE)
+                .count();
+
+        if (outerUpdates == 0) {
+            return false;
+        }
+
+        return _outerUpdateCounts.merge(partitionKey, outerUpdates, Long::sum) >= _threshold;
+    }
+
+    private void addReplicas(List<KV<String, DocumentMessage>> replicas, DocumentMessage message, int saltCount) {
+        for (int salt = 1; salt < saltCount; salt++) {
+            String subPartitionKey = FanoutHashingUtils.getSubPartitionKey(message.getPartitionKey(), salt);
+            replicas.add(KV.of(subPartitionKey, new DocumentMessage(message.getDocument(), subPartitionKey,
+                    message.getDocumentLevel(), message.getOpCode(), message.getQuery(), message.getTable(),
+                    message.shouldTombstone(), message.isRuleActive())));
+        }
+    }
+}
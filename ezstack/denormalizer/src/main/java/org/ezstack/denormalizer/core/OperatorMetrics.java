@@ -0,0 +1,63 @@
+package org.ezstack.denormalizer.core;
+
+import org.apache.samza.metrics.Counter;
+import org.apache.samza.metrics.Gauge;
+import org.apache.samza.metrics.MetricsRegistry;
+import org.apache.samza.metrics.Timer;
+import org.apache.samza.storage.kv.KeyValueStore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The metrics of one operator, registered in Samza's {@link MetricsRegistry} under the operator's class name. Counters
+ * that are broken down by rule table are registered once overall and once as "table.{table}.{name}" for each table,
+ * the first time the table is seen.
+ */
+public class OperatorMetrics {
+
+    private final MetricsRegistry _registry;
+    private final String _group;
+    private final Map<String, Counter> _counters = new HashMap<>();
+
+    public OperatorMetrics(MetricsRegistry registry, Class<?> operator) {
+        _registry = checkNotNull(registry, "registry");
+        _group = operator.getName();
+    }
+
+    public Counter counter(String name) {
+        return _counters.computeIfAbsent(name, n -> _registry.newCounter(_group, n));
+    }
+
+    public Timer timer(String name) {
+        return _registry.newTimer(_group, name);
+    }
+
+    public <T> Gauge<T> gauge(String name, T value) {
+        return _registry.newGauge(_group, name, value);
+    }
+
+    /**
+     * Adds to a counter, both overall and for the table.
+     */
+    public void inc(String table, String name, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        counter(name).inc(delta);
+        counter("table." + table + "." + name).inc(delta);
+    }
+
+    public void inc(String table, String name) {
+        inc(table, name, 1);
+    }
+
+    /**
+     * Wraps a store so that the time spent in it is recorded in "{storeName}-{operation}-ns" timers.
+     */
+    public <K, V> KeyValueStore<K, V> timed(KeyValueStore<K, V> store, String storeName) {
+        return new TimedKeyValueStore<>(store, this, storeName);
+    }
+}
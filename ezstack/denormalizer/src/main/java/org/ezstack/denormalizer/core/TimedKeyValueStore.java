@@ -0,0 +1,159 @@
+package org.ezstack.denormalizer.core;
+
+import org.apache.samza.metrics.Timer;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link KeyValueStore} that records how long each operation on the store it wraps takes, in nanoseconds. Scans are
+ * timed from opening the iterator until it is closed, counting only the time spent in the iterator itself.
+ */
+public class TimedKeyValueStore<K, V> implements KeyValueStore<K, V> {
+
+    private final KeyValueStore<K, V> _store;
+    private final Timer _getTimer;
+    private final Timer _putTimer;
+    private final Timer _deleteTimer;
+    private final Timer _scanTimer;
+
+    public TimedKeyValueStore(KeyValueStore<K, V> store, OperatorMetrics metrics, String storeName) {
+        _store = checkNotNull(store, "store");
+        _getTimer = metrics.timer(storeName + "-get-ns");
+        _putTimer = metrics.timer(storeName + "-put-ns");
+        _deleteTimer = metrics.timer(storeName + "-delete-ns");
+        _scanTimer = metrics.timer(storeName + "-scan-ns");
+    }
+
+    @Override
+    public V get(K key) {
+        long start = System.nanoTime();
+        try {
+            return _store.get(key);
+        } finally {
+            _getTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        long start = System.nanoTime();
+        try {
+            return _store.getAll(keys);
+        } finally {
+            _getTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void put(K key, V value) {
+        long start = System.nanoTime();
+        try {
+            _store.put(key, value);
+        } finally {
+            _putTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void putAll(List<Entry<K, V>> entries) {
+        long start = System.nanoTime();
+        try {
+            _store.putAll(entries);
+        } finally {
+            _putTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void delete(K key) {
+        long start = System.nanoTime();
+        try {
+            _store.delete(key);
+        } finally {
+            _deleteTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void deleteAll(List<K> keys) {
+        long start = System.nanoTime();
+        try {
+            _store.deleteAll(keys);
+        } finally {
+            _deleteTimer.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public KeyValueIterator<K, V> range(K from, K to) {
+        long start = System.nanoTime();
+        return new TimedIterator(_store.range(from, to), System.nanoTime() - start);
+    }
+
+    @Override
+    public KeyValueIterator<K, V> all() {
+        long start = System.nanoTime();
+        return new TimedIterator(_store.all(), System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        _store.close();
+    }
+
+    @Override
+    public void flush() {
+        _store.flush();
+    }
+
+    private class TimedIterator implements KeyValueIterator<K, V> {
+        private final KeyValueIterator<K, V> _iterator;
+        private long _elapsed;
+
+        TimedIterator(KeyValueIterator<K, V> iterator, long elapsed) {
+            _iterator = iterator;
+            _elapsed = elapsed;
+        }
+
+        @Override
+        public boolean hasNext() {
+            long start = System.nanoTime();
+            try {
+                return _iterator.hasNext();
+            } finally {
+                _elapsed += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            long start = System.nanoTime();
+            try {
+                return _iterator.next();
+            } finally {
+                _elapsed += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void remove() {
+            _iterator.remove();
+        }
+
+        @Override
+        public void close() {
+            long start = System.nanoTime();
+            try {
+                _iterator.close();
+            } finally {
+                _scanTimer.update(_elapsed + System.nanoTime() - start);
+            }
+        }
+    }
+}
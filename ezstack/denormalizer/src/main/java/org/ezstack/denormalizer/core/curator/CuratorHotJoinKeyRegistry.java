@@ -0,0 +1,136 @@
+package org.ezstack.denormalizer.core.curator;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AbstractService;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.ezstack.denormalizer.model.HotJoinKeyRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps hot partition keys in ZooKeeper as "hotKeysPath/partitionKey" nodes holding their salt count.
+ */
+public class CuratorHotJoinKeyRegistry extends AbstractService implements HotJoinKeyRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CuratorHotJoinKeyRegistry.class);
+
+    private final static int BASE_RETRY_SLEEP_TYPE_IN_MS = 1000;
+    private final static int MAX_CURATOR_RETRIES = 3;
+
+    private final String _hotKeysPath;
+    private final CuratorFramework _client;
+    private final TreeCache _hotKeyCache;
+
+    // <partition key, salt count>
+    private final Map<String, Integer> _saltCounts = new ConcurrentHashMap<>();
+
+    public CuratorHotJoinKeyRegistry(String zookeeperHosts, String hotKeysPath) {
+        _hotKeysPath = checkNotNull(hotKeysPath, "hotKeysPath");
+
+        _client = CuratorFrameworkFactory.newClient(zookeeperHosts,
+                new ExponentialBackoffRetry(BASE_RETRY_SLEEP_TYPE_IN_MS, MAX_CURATOR_RETRIES));
+
+        _hotKeyCache = new TreeCache(_client, _hotKeysPath);
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            _hotKeyCache.getListenable().addListener(this::updateForEvent);
+            _client.start();
+            _hotKeyCache.start();
+        } catch (Exception e) {
+            notifyFailed(e);
+            throw new RuntimeException(e);
+        }
+
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            _client.close();
+            _hotKeyCache.close();
+        } catch (Exception e) {
+            notifyFailed(e);
+            throw e;
+        }
+
+        notifyStopped();
+    }
+
+    private void updateForEvent(CuratorFramework client, TreeCacheEvent event) {
+        switch (event.getType()) {
+            //fall through
+            case NODE_ADDED:
+            case NODE_UPDATED:
+                ChildData childData = event.getData();
+                if (ZKPaths.split(childData.getPath()).size() != 2) {
+                    // this is the parent
+                    return;
+                }
+
+                try {
+                    _saltCounts.put(ZKPaths.getNodeFromPath(childData.getPath()), parseSaltCount(childData.getData()));
+                } catch (NumberFormatException e) {
+                    LOG.error("Ignoring hot join key {} with a corrupt salt count", childData.getPath());
+                }
+                return;
+            case INITIALIZED:
+                return;
+            default:
+                LOG.error("Zookeeper cache is experiencing issues");
+                LOG.error(event.toString());
+        }
+    }
+
+    private static int parseSaltCount(byte[] data) {
+        return Integer.parseInt(new String(data, Charsets.UTF_8));
+    }
+
+    @Override
+    public int getSaltCount(String partitionKey) {
+        return _saltCounts.getOrDefault(partitionKey, 1);
+    }
+
+    @Override
+    public int markHot(String partitionKey, int saltCount) {
+        checkArgument(saltCount > 1, "saltCount must be greater than 1");
+
+        String path = ZKPaths.makePath(_hotKeysPath, partitionKey);
+
+        try {
+            _client.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT)
+                    .forPath(path, Integer.toString(saltCount).getBytes(Charsets.UTF_8));
+            LOG.info("Split hot join key {} across {} sub-partitions", partitionKey, saltCount);
+        } catch (KeeperException.NodeExistsException e) {
+            try {
+                saltCount = parseSaltCount(_client.getData().forPath(path));
+            } catch (Exception readException) {
+                throw new RuntimeException("Failed to read hot join key", readException);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to mark hot join key", e);
+        }
+
+        _saltCounts.put(partitionKey, saltCount);
+        return saltCount;
+    }
+}
@@ -1,8 +1,8 @@
 package org.ezstack.denormalizer.core.curator;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.MoreObjects;
-import com.google.common.collect.HashMultimap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.AbstractService;
 import org.apache.curator.framework.CuratorFramework;
@@ -14,41 +14,78 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.ezstack.denormalizer.model.DocumentProjection;
+import org.ezstack.denormalizer.model.QueryLevel;
 import org.ezstack.denormalizer.model.RuleIndexer;
 import org.ezstack.denormalizer.model.RuleIndexPair;
+import org.ezstack.denormalizer.model.RulePredicateIndex;
+import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.Rule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * Indexes the rules kept in ZooKeeper. Rules that are removed are retired: they are dropped from the index and
+ * listed by {@link #getRetiredRules()} until they are deleted, once every partition has acknowledged each step of
+ * retiring them. Deleted rules are only remembered by their table, see {@link #isDeleted}.
+ *
+ * The tasks of a container share one indexer for the rules under a path, see {@link #acquire}, and read it through a
+ * {@link TaskRuleIndexer} of their own. Rules are acknowledged for each partition registered with
+ * {@link #registerPartition}.
+ */
 public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
 
+    public static final String RETIREMENT_DIR = "retirement";
+    public static final String UNINDEXED_STEP = "unindexed";
+    public static final String PURGED_STEP = "purged";
+
     private static final Logger LOG = LoggerFactory.getLogger(CuratorRuleIndexer.class);
 
     private final static int BASE_RETRY_SLEEP_TYPE_IN_MS = 1000;
     private final static int MAX_CURATOR_RETRIES = 3;
+    private final static int MAX_MISSING_TABLES = 10000;
 
     private static final ObjectMapper _mapper = new ObjectMapper();
 
-    private volatile HashMultimap<String, RuleIndexPair> _ruleIndex;
+    // the indexers the tasks of this container share, by ZooKeeper hosts and rules path
+    private static final Map<String, CuratorRuleIndexer> SHARED_INDEXERS = new HashMap<>();
+
+    private volatile Map<String, RulePredicateIndex> _ruleIndex;
+    private volatile Map<String, Set<Rule>> _rulesByJoin;
+    private volatile Map<String, DocumentProjection> _projections;
     private final String _rulesPath;
-    private final String _partitionId;
+    // the partitions pending and retired rules are acknowledged for
+    private final Set<String> _partitionIds = ConcurrentHashMap.newKeySet();
+    // the tasks that acquired the indexer and have not released it, guarded by SHARED_INDEXERS
+    private int _users;
 
     private final CuratorFramework _client;
     private final TreeCache _ruleCache;
 
     // <rule table name, rule itself>
     private volatile ConcurrentHashMap<String, Rule> _rules;
+    private final Map<String, Rule> _retiredRules = new ConcurrentHashMap<>();
+    private final Set<String> _deletedTables = ConcurrentHashMap.newKeySet();
+    // tables ZooKeeper had no rule for when last asked, so that they are not asked about for every document
+    private final Cache<String, Boolean> _missingTables = CacheBuilder.newBuilder()
+            .maximumSize(MAX_MISSING_TABLES)
+            .expireAfterWrite(1, TimeUnit.SECONDS)
+            .build();
 
-    public CuratorRuleIndexer(String zookeeperHosts, String rulesPath, String instanceId) {
+    private CuratorRuleIndexer(String zookeeperHosts, String rulesPath) {
         _rulesPath = checkNotNull(rulesPath, "rulesPath");
-        _partitionId = checkNotNull(instanceId, "partitionId");
 
         _client = CuratorFrameworkFactory.newClient(zookeeperHosts,
                 new ExponentialBackoffRetry(BASE_RETRY_SLEEP_TYPE_IN_MS, MAX_CURATOR_RETRIES));
@@ -56,8 +93,47 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
         _ruleCache = new TreeCache(_client, _rulesPath);
 
         _rules = new ConcurrentHashMap<>();
-        _ruleIndex = HashMultimap.create();
+        _ruleIndex = Collections.emptyMap();
+        _rulesByJoin = Collections.emptyMap();
+        _projections = Collections.emptyMap();
+
+    }
 
+    /**
+     * The indexer that the tasks of this container share for the rules under the path. It is started for the first
+     * task that acquires it, and stopped once every task that acquired it has released it.
+     */
+    public static CuratorRuleIndexer acquire(String zookeeperHosts, String rulesPath) {
+        synchronized (SHARED_INDEXERS) {
+            CuratorRuleIndexer indexer = SHARED_INDEXERS.computeIfAbsent(zookeeperHosts + rulesPath,
+                    key -> new CuratorRuleIndexer(zookeeperHosts, rulesPath));
+            if (indexer._users++ == 0) {
+                indexer.startAsync().awaitRunning();
+            }
+            return indexer;
+        }
+    }
+
+    public static void release(CuratorRuleIndexer indexer) {
+        synchronized (SHARED_INDEXERS) {
+            if (--indexer._users == 0) {
+                SHARED_INDEXERS.values().remove(indexer);
+                indexer.stopAsync().awaitTerminated();
+            }
+        }
+    }
+
+    /**
+     * Acknowledges pending and retired rules for the partition from now on, and the ones that already are.
+     */
+    public synchronized void registerPartition(String partitionId) {
+        _partitionIds.add(checkNotNull(partitionId, "partitionId"));
+        _rules.values().forEach(rule -> acknowledgeRuleIfPending(rule, partitionId));
+        _retiredRules.keySet().forEach(ruleTable -> acknowledgeRetirement(ruleTable, UNINDEXED_STEP, partitionId));
+    }
+
+    public synchronized void unregisterPartition(String partitionId) {
+        _partitionIds.remove(partitionId);
     }
 
     @Override
@@ -87,7 +163,7 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
         notifyStopped();
     }
 
-    private void acknowledgeRuleIfPending(Rule rule) {
+    private void acknowledgeRuleIfPending(Rule rule, String partitionId) {
         if (!rule.getStatus().equals(Rule.RuleStatus.PENDING)) {
             return;
         }
@@ -96,11 +172,11 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
             _client.create()
                     .creatingParentsIfNeeded()
                     .withMode(CreateMode.PERSISTENT)
-                    .forPath(ZKPaths.makePath(_rulesPath, rule.getTable(), "denormalizer", _partitionId));
+                    .forPath(ZKPaths.makePath(_rulesPath, rule.getTable(), "denormalizer", partitionId));
 
         } catch (Exception e) {
             if (e instanceof KeeperException.NodeExistsException) {
-                LOG.error("Already acknowledged rule with table {} for partition id {}", rule.getTable(), _partitionId);
+                LOG.error("Already acknowledged rule with table {} for partition id {}", rule.getTable(), partitionId);
                 return;
             }
             LOG.error(e.toString());
@@ -108,6 +184,25 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
         }
     }
 
+    /**
+     * Records that the partition has finished a step of retiring the rule with the given table.
+     */
+    public void acknowledgeRetirement(String ruleTable, String step, String partitionId) {
+        try {
+            _client.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT)
+                    .forPath(ZKPaths.makePath(_rulesPath, ruleTable, RETIREMENT_DIR, step, partitionId));
+        } catch (KeeperException.NodeExistsException e) {
+            // acknowledged before, the rule is retired once
+        } catch (KeeperException.NoNodeException e) {
+            LOG.info("Rule with table {} was deleted before it was acknowledged as {}", ruleTable, step);
+        } catch (Exception e) {
+            LOG.error(e.toString());
+            throw new RuntimeException("Failed to acknowledge retirement of rule", e);
+        }
+    }
+
     private synchronized void handleAddOrUpdateEvent(TreeCacheEvent event) {
         ChildData childData = event.getData();
         int pathLength = ZKPaths.split(childData.getPath()).size();
@@ -119,9 +214,30 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
 
         try {
             Rule rule = _mapper.readValue(childData.getData(), Rule.class);
-            _rules.put(rule.getTable(), rule);
+            _missingTables.invalidate(rule.getTable());
+            if (rule.getStatus() == Rule.RuleStatus.DELETED) {
+                _rules.remove(rule.getTable());
+                _retiredRules.remove(rule.getTable());
+                _deletedTables.add(rule.getTable());
+            } else if (rule.getStatus() == Rule.RuleStatus.RETIRED) {
+                _rules.remove(rule.getTable());
+                _retiredRules.put(rule.getTable(), rule);
+                _deletedTables.remove(rule.getTable());
+            } else {
+                _rules.put(rule.getTable(), rule);
+                _retiredRules.remove(rule.getTable());
+                _deletedTables.remove(rule.getTable());
+            }
             _ruleIndex = getRuleIndex(_rules.values());
-            acknowledgeRuleIfPending(rule);
+            _rulesByJoin = getRulesByJoin(_rules.values());
+            _projections = getProjections(_rules.values(), _rulesByJoin);
+            for (String partitionId : _partitionIds) {
+                acknowledgeRuleIfPending(rule, partitionId);
+                // documents are no longer sent to the rule once the index without it is in use
+                if (rule.getStatus() == Rule.RuleStatus.RETIRED) {
+                    acknowledgeRetirement(rule.getTable(), UNINDEXED_STEP, partitionId);
+                }
+            }
             LOG.info("Received update for rule with table {}. Current status is {}", rule.getTable(), rule.getStatus());
         } catch (IOException e) {
             LOG.error(e.toString());
@@ -129,6 +245,24 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
         }
     }
 
+    private synchronized void handleRemoveEvent(TreeCacheEvent event) {
+        List<String> path = ZKPaths.split(event.getData().getPath());
+
+        if (path.size() != 2) {
+            return;
+        }
+
+        String table = path.get(1);
+        _retiredRules.remove(table);
+        _deletedTables.remove(table);
+        if (_rules.remove(table) != null) {
+            _ruleIndex = getRuleIndex(_rules.values());
+            _rulesByJoin = getRulesByJoin(_rules.values());
+            _projections = getProjections(_rules.values(), _rulesByJoin);
+        }
+        LOG.info("Rule with table {} was deleted", table);
+    }
+
     private void updateTableForEvent(CuratorFramework client, TreeCacheEvent event) {
         switch (event.getType()) {
             //fall through
@@ -136,6 +270,9 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
             case NODE_UPDATED:
                 handleAddOrUpdateEvent(event);
                 return;
+            case NODE_REMOVED:
+                handleRemoveEvent(event);
+                return;
             case INITIALIZED:
                 return;
             default:
@@ -149,8 +286,62 @@ public class CuratorRuleIndexer extends AbstractService implements RuleIndexer {
         return ImmutableSet.copyOf(_rules.values());
     }
 
+    /**
+     * Looks the rule up in ZooKeeper itself if the cache does not have it yet, since documents may be sent to a rule
+     * by a partition whose cache saw it first. A table that ZooKeeper has no rule for is not looked up again for a
+     * second, unless the cache sees its rule first.
+     */
+    @Override
+    public Rule getRule(String ruleTable) {
+        Rule rule = _rules.get(ruleTable);
+        if (rule == null) {
+            rule = _retiredRules.get(ruleTable);
+        }
+        if (rule != null || _deletedTables.contains(ruleTable) || _missingTables.getIfPresent(ruleTable) != null) {
+            return rule;
+        }
+
+        try {
+            rule = _mapper.readValue(_client.getData().forPath(ZKPaths.makePath(_rulesPath, ruleTable)), Rule.class);
+            return rule.getStatus() == Rule.RuleStatus.DELETED ? null : rule;
+        } catch (KeeperException.NoNodeException e) {
+            _missingTables.put(ruleTable, true);
+            return null;
+        } catch (Exception e) {
+            LOG.error(e.toString());
+            throw new RuntimeException("Failed to read rule", e);
+        }
+    }
+
+    @Override
+    public Set<Rule> getRulesSharingJoin(Rule rule) {
+        return RuleIndexer.getRulesSharingJoin(_rulesByJoin, rule);
+    }
+
+    @Override
+    public DocumentProjection getProjection(Rule rule, QueryLevel level) {
+        return RuleIndexer.getProjection(_projections, rule, level);
+    }
+
+    @Override
+    public boolean isDeleted(String ruleTable) {
+        return _deletedTables.contains(ruleTable);
+    }
+
+    @Override
+    public Set<Rule> getRetiredRules() {
+        return ImmutableSet.copyOf(_retiredRules.values());
+    }
+
     @Override
     public Set<RuleIndexPair> getApplicableRulesForTable(String table) {
-        return MoreObjects.firstNonNull(_ruleIndex.get(table), Collections.emptySet());
+        RulePredicateIndex index = _ruleIndex.get(table);
+        return index == null ? Collections.emptySet() : index.getRules();
+    }
+
+    @Override
+    public Collection<RuleIndexPair> getCandidateRulesForDocument(Document document) {
+        RulePredicateIndex index = _ruleIndex.get(document.getTable());
+        return index == null ? Collections.emptyList() : index.getCandidates(document);
     }
 }
@@ -0,0 +1,114 @@
+package org.ezstack.denormalizer.core.curator;
+
+import com.google.common.util.concurrent.AbstractService;
+import org.ezstack.denormalizer.model.DocumentProjection;
+import org.ezstack.denormalizer.model.QueryLevel;
+import org.ezstack.denormalizer.model.RuleIndexPair;
+import org.ezstack.denormalizer.model.RuleIndexer;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Rule;
+
+import java.util.Collection;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The rules as a single task sees them, read from the {@link CuratorRuleIndexer} that the tasks of the container
+ * share, so that a container keeps one ZooKeeper client and one copy of the rule index however many tasks and
+ * operators it runs. Retirement is acknowledged for the task's partition.
+ */
+public class TaskRuleIndexer extends AbstractService implements RuleIndexer {
+
+    private final String _zookeeperHosts;
+    private final String _rulesPath;
+    private final String _partitionId;
+    private final boolean _acknowledgeRules;
+    private CuratorRuleIndexer _indexer;
+
+    /**
+     * @param acknowledgeRules whether to acknowledge pending and retired rules for the partition, which only the
+     *                         indexer that decides which rules documents are sent to should do
+     */
+    public TaskRuleIndexer(String zookeeperHosts, String rulesPath, String partitionId, boolean acknowledgeRules) {
+        _zookeeperHosts = checkNotNull(zookeeperHosts, "zookeeperHosts");
+        _rulesPath = checkNotNull(rulesPath, "rulesPath");
+        _partitionId = checkNotNull(partitionId, "partitionId");
+        _acknowledgeRules = acknowledgeRules;
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            _indexer = CuratorRuleIndexer.acquire(_zookeeperHosts, _rulesPath);
+            if (_acknowledgeRules) {
+                _indexer.registerPartition(_partitionId);
+            }
+        } catch (Exception e) {
+            notifyFailed(e);
+            throw e;
+        }
+
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            if (_acknowledgeRules) {
+                _indexer.unregisterPartition(_partitionId);
+            }
+            CuratorRuleIndexer.release(_indexer);
+        } catch (Exception e) {
+            notifyFailed(e);
+            throw e;
+        }
+
+        notifyStopped();
+    }
+
+    @Override
+    public Set<Rule> getRules() {
+        return _indexer.getRules();
+    }
+
+    @Override
+    public Set<RuleIndexPair> getApplicableRulesForTable(String table) {
+        return _indexer.getApplicableRulesForTable(table);
+    }
+
+    @Override
+    public Collection<RuleIndexPair> getCandidateRulesForDocument(Document document) {
+        return _indexer.getCandidateRulesForDocument(document);
+    }
+
+    @Override
+    public Set<Rule> getRulesSharingJoin(Rule rule) {
+        return _indexer.getRulesSharingJoin(rule);
+    }
+
+    @Override
+    public DocumentProjection getProjection(Rule rule, QueryLevel level) {
+        return _indexer.getProjection(rule, level);
+    }
+
+    @Override
+    public Rule getRule(String ruleTable) {
+        return _indexer.getRule(ruleTable);
+    }
+
+    @Override
+    public boolean isDeleted(String ruleTable) {
+        return _indexer.isDeleted(ruleTable);
+    }
+
+    @Override
+    public Set<Rule> getRetiredRules() {
+        return _indexer.getRetiredRules();
+    }
+
+    @Override
+    public void acknowledgeRetirement(String ruleTable, String step) {
+        _indexer.acknowledgeRetirement(ruleTable, step, _partitionId);
+    }
+}
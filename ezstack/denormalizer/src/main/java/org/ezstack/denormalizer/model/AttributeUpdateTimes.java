@@ -0,0 +1,70 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.WritePriority;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When each top level attribute of a document was last changed, and on which {@link WritePriority} lane. The updates
+ * of one lane are applied in the order the lane delivers them, whatever their timestamps, but the two lanes are not
+ * ordered relative to each other. An update is only kept from changing an attribute that the other lane has changed
+ * with a newer update. Removed attributes keep their time as well, so that a late update does not bring them back.
+ */
+public class AttributeUpdateTimes {
+
+    // the update time in millis, shifted left to make room for the ordinal of the lane in the lowest bit
+    private final Map<String, Long> _times;
+
+    public AttributeUpdateTimes() {
+        this(null);
+    }
+
+    @JsonCreator
+    public AttributeUpdateTimes(@JsonProperty("times") Map<String, Long> times) {
+        _times = times == null ? new HashMap<>() : new HashMap<>(times);
+    }
+
+    /**
+     * @return true if the other lane changed the attribute with an update made after the given time
+     */
+    public boolean isChangedAfter(String attribute, WritePriority lane, long updateAtMillis) {
+        Long time = _times.get(attribute);
+        return time != null && getLane(time) != lane && getMillis(time) > updateAtMillis;
+    }
+
+    /**
+     * Records that an update on the lane changed the attribute. The clocks of different writers can put a lane's
+     * updates out of order, so the attribute keeps the latest time of the lane's updates to it.
+     *
+     * @return true if the recorded time changed
+     */
+    public boolean setChanged(String attribute, WritePriority lane, long updateAtMillis) {
+        Long time = _times.get(attribute);
+        if (time != null && getLane(time) == lane) {
+            updateAtMillis = Math.max(updateAtMillis, getMillis(time));
+        }
+
+        long changedTime = (updateAtMillis << 1) | lane.ordinal();
+        if (time != null && time == changedTime) {
+            return false;
+        }
+        _times.put(attribute, changedTime);
+        return true;
+    }
+
+    private static WritePriority getLane(long time) {
+        return WritePriority.values()[(int) (time & 1)];
+    }
+
+    private static long getMillis(long time) {
+        return time >> 1;
+    }
+
+    @JsonProperty("times")
+    public Map<String, Long> getTimes() {
+        return _times;
+    }
+}
@@ -0,0 +1,96 @@
+package org.ezstack.denormalizer.model;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.QueryResult;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Hashes what a document would look like once it is written, so that writes that would not change it can be told
+ * apart. Map entries are hashed in key order and sets in no order, so equal content always has the same hash.
+ *
+ * Documents embedded in a join result are hashed without their version and update times, which change on every
+ * update of the document even when the attributes the join keeps from it do not.
+ */
+public class ContentHasher {
+
+    private ContentHasher() {
+    }
+
+    public static long hash(Document document) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putDocument(hasher, document, true);
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Hashes only the key and attributes of the document, leaving out its version and update times.
+     */
+    public static long hashAttributes(Document document) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putDocument(hasher, document, false);
+        return hasher.hash().asLong();
+    }
+
+    private static void putDocument(Hasher hasher, Document document, boolean includeVersion) {
+        hasher.putChar('d');
+        putString(hasher, document.getTable());
+        putString(hasher, document.getKey());
+        if (includeVersion) {
+            hasher.putInt(document.getVersion());
+            putString(hasher, document.getFirstUpdateAt());
+            putString(hasher, document.getLastUpdateAt());
+        }
+        putValue(hasher, document.getData());
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putChar('n');
+        } else {
+            hasher.putChar('s').putInt(value.length()).putString(value, Charsets.UTF_8);
+        }
+    }
+
+    private static void putValue(Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putChar('n');
+        } else if (value instanceof String) {
+            putString(hasher, (String) value);
+        } else if (value instanceof Number) {
+            // integers and longs of the same value are written the same way
+            putString(hasher.putChar('#'), value.toString());
+        } else if (value instanceof Boolean) {
+            hasher.putChar('b').putBoolean((Boolean) value);
+        } else if (value instanceof Document) {
+            putDocument(hasher, (Document) value, false);
+        } else if (value instanceof QueryResult) {
+            putValue(hasher, ((QueryResult) value).getQueryResults());
+        } else if (value instanceof Map) {
+            hasher.putChar('m').putInt(((Map<?, ?>) value).size());
+            new TreeMap<>((Map<?, ?>) value).forEach((key, entryValue) -> {
+                putString(hasher, key.toString());
+                putValue(hasher, entryValue);
+            });
+        } else if (value instanceof Set) {
+            long sum = 0;
+            for (Object element : (Set<?>) value) {
+                Hasher elementHasher = Hashing.murmur3_128().newHasher();
+                putValue(elementHasher, element);
+                sum += elementHasher.hash().asLong();
+            }
+            hasher.putChar('u').putInt(((Set<?>) value).size()).putLong(sum);
+        } else if (value instanceof Collection) {
+            hasher.putChar('l').putInt(((Collection<?>) value).size());
+            ((Collection<?>) value).forEach(element -> putValue(hasher, element));
+        } else {
+            putString(hasher.putChar('?'), value.toString());
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package org.ezstack.denormalizer.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.ezstack.ezapp.datastore.api.Document;
 import org.ezstack.ezapp.datastore.api.Query;
+import org.ezstack.ezapp.datastore.api.Rule;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -16,8 +18,18 @@ public class DocumentMessage {
     private final Query _query;
     private final String _table;
     private final boolean _shouldTombstone;
+    private final boolean _ruleActive;
 
 
+    public DocumentMessage(Document document, String partitionKey, QueryLevel level, OpCode opCode, Query query,
+                           String table, Boolean shouldTombstone) {
+        this(document, partitionKey, level, opCode, query, table, shouldTombstone, false);
+    }
+
+    /**
+     * @param query      the query of the rule, or null to leave it to the receiver to look the rule up by its table
+     * @param ruleActive whether the rule was done bootstrapping when the message was sent, or null if unknown
+     */
     @JsonCreator
     public DocumentMessage(@JsonProperty("document") Document document,
                            @JsonProperty("partitionKey") String partitionKey,
@@ -25,14 +37,16 @@ public class DocumentMessage {
                            @JsonProperty("opCode") OpCode opCode,
                            @JsonProperty("query") Query query,
                            @JsonProperty("table") String table,
-                           @JsonProperty("shouldTombstone") Boolean shouldTombstone) {
+                           @JsonProperty("shouldTombstone") Boolean shouldTombstone,
+                           @JsonProperty("ruleActive") Boolean ruleActive) {
         _document = checkNotNull(document);
         _partitionKey = checkNotNull(partitionKey);
         _level = checkNotNull(level);
         _opCode = checkNotNull(opCode);
-        _query = checkNotNull(query);
+        _query = query;
         _table = checkNotNull(table);
         _shouldTombstone = checkNotNull(shouldTombstone);
+        _ruleActive = ruleActive != null && ruleActive;
     }
 
     public Document getDocument() {
@@ -51,10 +65,28 @@ public class DocumentMessage {
         return _opCode;
     }
 
+    /**
+     * The query of the rule, if the sender embedded it in the message. Receivers should use {@link #resolveQuery}.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public Query getQuery() {
         return _query;
     }
 
+    /**
+     * The query of the rule as the rule indexer has it, so that its compiled filters are reused across messages,
+     * or the query embedded in the message if the indexer does not know the rule.
+     *
+     * @return the query, or null if the rule was deleted, or is unknown and the message was sent without it
+     */
+    public Query resolveQuery(RuleIndexer ruleIndexer) {
+        if (ruleIndexer.isDeleted(_table)) {
+            return null;
+        }
+        Rule rule = ruleIndexer.getRule(_table);
+        return rule == null ? _query : rule.getQuery();
+    }
+
     public String getTable() {
         return _table;
     }
@@ -63,4 +95,9 @@ public class DocumentMessage {
     public boolean shouldTombstone() {
         return _shouldTombstone;
     }
+
+    @JsonProperty("ruleActive")
+    public boolean isRuleActive() {
+        return _ruleActive;
+    }
 }
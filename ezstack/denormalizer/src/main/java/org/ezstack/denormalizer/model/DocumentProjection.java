@@ -0,0 +1,129 @@
+package org.ezstack.denormalizer.model;
+
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Filter;
+import org.ezstack.ezapp.datastore.api.JoinAttribute;
+import org.ezstack.ezapp.datastore.api.Query;
+import org.ezstack.ezapp.datastore.api.Rule;
+import org.ezstack.ezapp.datastore.api.SearchType;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of a document that a set of rules read at one level of their join: what their projections keep,
+ * and what their join attributes, filters and aggregations are on. Since rules that share a join share its index,
+ * a document is cut down to what all of them read before it is sent to the joiner.
+ *
+ * A rule without included attributes keeps everything but what it excludes, so the projection is either the
+ * attributes to keep, or the attributes to drop when any of the rules keeps everything else.
+ */
+public class DocumentProjection {
+
+    private static final DocumentProjection ALL_ATTRIBUTES = new DocumentProjection(null, Collections.emptySet());
+
+    // null if all attributes but the excluded ones are kept
+    private final Set<String> _includeAttributes;
+    private final Set<String> _excludeAttributes;
+
+    private DocumentProjection(Set<String> includeAttributes, Set<String> excludeAttributes) {
+        _includeAttributes = includeAttributes;
+        _excludeAttributes = excludeAttributes;
+    }
+
+    public static DocumentProjection forRules(Collection<Rule> rules, QueryLevel level) {
+        Set<String> includeAttributes = new HashSet<>();
+        Set<String> excludeAttributes = null;
+
+        for (Rule rule : rules) {
+            Query query = level == QueryLevel.OUTER ? rule.getQuery() : rule.getQuery().getJoin();
+            if (query == null) {
+                continue;
+            }
+
+            Set<String> readAttributes = getReadAttributes(rule.getQuery(), query, level);
+
+            if (!query.getIncludeAttributes().isEmpty()) {
+                includeAttributes.addAll(query.getIncludeAttributes());
+                includeAttributes.addAll(readAttributes);
+                continue;
+            }
+
+            Set<String> dropped = new HashSet<>(query.getExcludeAttributes());
+            dropped.removeAll(readAttributes);
+            if (excludeAttributes == null) {
+                excludeAttributes = dropped;
+            } else {
+                excludeAttributes.retainAll(dropped);
+            }
+        }
+
+        if (excludeAttributes == null) {
+            return new DocumentProjection(includeAttributes, null);
+        }
+
+        excludeAttributes.removeAll(includeAttributes);
+        return excludeAttributes.isEmpty() ? ALL_ATTRIBUTES : new DocumentProjection(null, excludeAttributes);
+    }
+
+    private static Set<String> getReadAttributes(Query outerQuery, Query query, QueryLevel level) {
+        Set<String> attributes = new HashSet<>();
+
+        for (Filter filter : query.getFilters()) {
+            attributes.add(filter.getAttribute());
+        }
+
+        for (SearchType searchType : query.getSearchTypes()) {
+            if (searchType.getAttributeOn() != null) {
+                attributes.add(searchType.getAttributeOn());
+            }
+        }
+
+        for (JoinAttribute joinAttribute : outerQuery.getJoinAttributes()) {
+            attributes.add(level == QueryLevel.OUTER ? joinAttribute.getOuterAttribute()
+                    : joinAttribute.getInnerAttribute());
+        }
+
+        return attributes;
+    }
+
+    /**
+     * @return true if the projection keeps every attribute, in which case {@link #apply} returns documents as they are
+     */
+    public boolean isAll() {
+        return _includeAttributes == null && _excludeAttributes.isEmpty();
+    }
+
+    /**
+     * A copy of the document with only the attributes of the projection, leaving the document itself as it is.
+     * Attribute values are shared with the document.
+     */
+    public Document apply(Document document) {
+        if (isAll()) {
+            return document;
+        }
+
+        Map<String, Object> data = new LinkedHashMap<>();
+
+        if (_includeAttributes != null) {
+            for (String attribute : _includeAttributes) {
+                Object value = document.getData().get(attribute);
+                if (value != null) {
+                    data.put(attribute, value);
+                }
+            }
+            return document.withData(data);
+        }
+
+        for (Map.Entry<String, Object> attribute : document.getData().entrySet()) {
+            if (!_excludeAttributes.contains(attribute.getKey())) {
+                data.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return document.withData(data);
+    }
+}
@@ -10,7 +10,9 @@ import org.ezstack.ezapp.datastore.api.Rule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Set;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.stream.Collectors;
 
 
@@ -18,28 +20,99 @@ public class FanoutHashingUtils {
 
     private static final Logger log = LoggerFactory.getLogger(FanoutHashingUtils.class);
 
+    // partition keys are hex, so they never contain the separator
+    private static final char SALT_SEPARATOR = '#';
 
-    public static String getPartitionKey(Document document, QueryLevel queryLevel, Rule rule) {
+
+    /**
+     * The partition key of a document for a rule. Rules without a join partition their documents by key, each rule on
+     * its own, and so do rules with a join unless {@code sharedJoinPartitioning} is set. With it, the documents of a
+     * join are partitioned by their join values and the {@link #getJoinSignature join signature}, so rules that join
+     * the same tables on the same attributes share the partition key, and with it the join index.
+     */
+    public static String getPartitionKey(Document document, QueryLevel queryLevel, Rule rule,
+                                         boolean sharedJoinPartitioning) {
+        Query query = rule.getQuery();
+
+        if (query.getJoin() == null || !sharedJoinPartitioning) {
+            return getRulePartitionKey(document, queryLevel, rule.getTable(), query);
+        }
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(getJoinSignature(query), Charsets.UTF_8);
+        putJoinValues(hasher, document, queryLevel, getSortedJoinAttributes(query));
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * The partition key of a document for a rule that is partitioned on its own.
+     */
+    public static String getRulePartitionKey(Document document, QueryLevel queryLevel, String ruleTable, Query query) {
 
         Hasher hasher = Hashing.murmur3_128().newHasher();
 
-        hasher.putString(rule.getTable(), Charsets.UTF_8);
+        hasher.putString(ruleTable, Charsets.UTF_8);
 
-        if (rule.getQuery().getJoin() == null) {
+        if (query.getJoin() == null) {
             hasher.putString("|", Charsets.UTF_8);
             hasher.putString(document.getKey(), Charsets.UTF_8);
         } else {
-            Set<JoinAttribute> joinAtts = rule.getQuery().getJoinAttributes();
-
-            joinAtts
-                    .stream()
-                    .map(queryLevel == QueryLevel.OUTER ? JoinAttribute::getOuterAttribute : JoinAttribute::getInnerAttribute)
-                    .forEach(att -> {
-                        hasher.putString("|", Charsets.UTF_8);
-                        hasher.putString(document.getValue(att).toString(), Charsets.UTF_8);
-            });
+            putJoinValues(hasher, document, queryLevel, query.getJoinAttributes());
         }
 
         return hasher.hash().toString();
     }
+
+    /**
+     * What identifies a join regardless of the rule it is for: the outer and inner tables and the attributes they are
+     * joined on. Filters, projections and search types are left out, since they are applied to the join's output.
+     */
+    public static String getJoinSignature(Query query) {
+        return query.getTable() + "|" + query.getJoin().getTable() + "|" + getSortedJoinAttributes(query)
+                .stream()
+                .map(att -> att.getOuterAttribute() + "=" + att.getInnerAttribute())
+                .collect(Collectors.joining(","));
+    }
+
+    // the join values are hashed in the same order for every rule that shares the join
+    private static List<JoinAttribute> getSortedJoinAttributes(Query query) {
+        return query.getJoinAttributes()
+                .stream()
+                .sorted(Comparator.comparing(JoinAttribute::getOuterAttribute)
+                        .thenComparing(JoinAttribute::getInnerAttribute))
+                .collect(Collectors.toList());
+    }
+
+    private static void putJoinValues(Hasher hasher, Document document, QueryLevel queryLevel,
+                                      Collection<JoinAttribute> joinAtts) {
+        joinAtts
+                .stream()
+                .map(queryLevel == QueryLevel.OUTER ? JoinAttribute::getOuterAttribute : JoinAttribute::getInnerAttribute)
+                .forEach(att -> {
+                    hasher.putString("|", Charsets.UTF_8);
+                    hasher.putString(document.getValue(att).toString(), Charsets.UTF_8);
+        });
+    }
+
+    /**
+     * The sub-partition of a hot partition key that an outer document belongs to. Sub-partition 0 is the partition
+     * key itself, which is where the documents of the key lived before it was split.
+     */
+    public static String getSaltedPartitionKey(String partitionKey, Document document, int saltCount) {
+        if (saltCount <= 1) {
+            return partitionKey;
+        }
+
+        return getSubPartitionKey(partitionKey, Hashing.consistentHash(
+                Hashing.murmur3_128().hashString(document.getKey(), Charsets.UTF_8), saltCount));
+    }
+
+    public static String getSubPartitionKey(String partitionKey, int salt) {
+        return salt == 0 ? partitionKey : partitionKey + SALT_SEPARATOR + salt;
+    }
+
+    public static boolean isSubPartitionKey(String partitionKey) {
+        return partitionKey.indexOf(SALT_SEPARATOR) >= 0;
+    }
 }
@@ -0,0 +1,24 @@
+package org.ezstack.denormalizer.model;
+
+import com.google.common.util.concurrent.Service;
+
+/**
+ * The partition keys of joins whose outer side is split across salted sub-partitions, shared by every task so that
+ * they all route the documents of a key the same way.
+ */
+public interface HotJoinKeyRegistry extends Service {
+
+    /**
+     * @return the number of sub-partitions the outer side of the partition key is split across, which is 1 unless
+     * the key has been marked hot
+     */
+    int getSaltCount(String partitionKey);
+
+    /**
+     * Splits the partition key across the given number of sub-partitions. A key is only ever split once, so the salt
+     * count of a key that is already hot is left as it is.
+     *
+     * @return the salt count the key ended up with
+     */
+    int markHot(String partitionKey, int saltCount);
+}
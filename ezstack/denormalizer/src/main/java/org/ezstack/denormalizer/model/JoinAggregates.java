@@ -0,0 +1,83 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.QueryHelper;
+import org.ezstack.ezapp.datastore.api.SearchType;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The aggregations of the rules that share the join of one partition key, kept up to date over its inner documents
+ * so that they do not have to be recomputed from every inner document whenever one of them changes. Each rule has
+ * its own {@link RuleAggregates}, over the inner documents that satisfy its filters.
+ */
+public class JoinAggregates {
+
+    // every inner document of the partition key, so that the aggregations are dropped along with the last of them
+    private long _documentCount;
+    private final Map<String, RuleAggregates> _rules;
+
+    public JoinAggregates(long documentCount) {
+        this(documentCount, null);
+    }
+
+    @JsonCreator
+    public JoinAggregates(@JsonProperty("documentCount") long documentCount,
+                          @JsonProperty("rules") Map<String, RuleAggregates> rules) {
+        _documentCount = documentCount;
+        _rules = rules == null ? new HashMap<>() : new HashMap<>(rules);
+    }
+
+    public static boolean hasAggregations(Set<SearchType> searchTypes) {
+        return QueryHelper.safeSet(searchTypes).stream().anyMatch(searchType -> searchType.getType() != SearchType.Type.SEARCH);
+    }
+
+    /**
+     * @return the aggregations of the rule with the given table, or null if they are not kept yet
+     */
+    public RuleAggregates getRule(String ruleTable) {
+        return _rules.get(ruleTable);
+    }
+
+    public void putRule(String ruleTable, RuleAggregates aggregates) {
+        _rules.put(ruleTable, aggregates);
+    }
+
+    /**
+     * @return true if the aggregations of any of the rules were removed
+     */
+    public boolean removeRules(Collection<String> ruleTables) {
+        return _rules.keySet().removeAll(ruleTables);
+    }
+
+    public void add(Document document) {
+        _documentCount++;
+        _rules.values().forEach(aggregates -> aggregates.add(document));
+    }
+
+    public void remove(Document document) {
+        _documentCount--;
+        _rules.values().forEach(aggregates -> aggregates.remove(document));
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return _documentCount <= 0;
+    }
+
+    @JsonProperty("documentCount")
+    public long getDocumentCount() {
+        return _documentCount;
+    }
+
+    @JsonProperty("rules")
+    public Map<String, RuleAggregates> getRules() {
+        return _rules;
+    }
+}
@@ -0,0 +1,178 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import org.ezstack.ezapp.datastore.api.Document;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the join store holds for a single document at one level of a join: the latest version of the document, the
+ * versions that were deleted before they arrived, and the {@link FanoutHashingUtils#getJoinSignature join signature}
+ * of the entry, so that it can be purged once no rule uses the join.
+ * The tombstones share a watermark, the time the latest of them was added, so that they can be dropped once they are
+ * too old to still be waiting for their version.
+ *
+ * Entries used to hold the {@link ContentHasher} hashes of what was last written for the document. Those are kept by
+ * {@link JoinQueryIndex} in a store of their own now, and are dropped from entries as they are read.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@JsonIgnoreProperties({"contentHashes", "contentHash"})
+public class JoinIndexEntry {
+
+    private Document _document;
+    private final Set<Integer> _tombstones;
+    private Long _tombstonedAt;
+    private String _joinSignature;
+    // written by a rule that keeps its own join index, when joins are not shared
+    private String _ruleTable;
+
+    public JoinIndexEntry() {
+        this(null, null);
+    }
+
+    public JoinIndexEntry(Document document, Set<Integer> tombstones) {
+        this(document, tombstones, null);
+    }
+
+    public JoinIndexEntry(Document document, Set<Integer> tombstones, Long tombstonedAt) {
+        this(document, tombstones, tombstonedAt, null, null);
+    }
+
+    @JsonCreator
+    public JoinIndexEntry(@JsonProperty("document") Document document,
+                          @JsonProperty("tombstones") Set<Integer> tombstones,
+                          @JsonProperty("tombstonedAt") Long tombstonedAt,
+                          @JsonProperty("joinSignature") String joinSignature,
+                          @JsonProperty("ruleTable") String ruleTable) {
+        _document = document;
+        _tombstones = MoreObjects.firstNonNull(tombstones, new HashSet<>());
+        _tombstonedAt = _tombstones.isEmpty() ? null : tombstonedAt;
+        _joinSignature = joinSignature;
+        _ruleTable = ruleTable;
+    }
+
+    @JsonProperty("document")
+    public Document getDocument() {
+        return _document;
+    }
+
+    public void setDocument(Document document) {
+        _document = document;
+    }
+
+    @JsonProperty("tombstones")
+    public Set<Integer> getTombstones() {
+        return Collections.unmodifiableSet(_tombstones);
+    }
+
+    public void addTombstone(int version, long now) {
+        _tombstones.add(version);
+        _tombstonedAt = now;
+    }
+
+    /**
+     * @return true if the version was tombstoned, in which case the tombstone is used up
+     */
+    public boolean removeTombstone(int version) {
+        if (!_tombstones.remove(version)) {
+            return false;
+        }
+        if (_tombstones.isEmpty()) {
+            _tombstonedAt = null;
+        }
+        return true;
+    }
+
+    /**
+     * The time the latest tombstone was added, or null if there are none or they were written without one.
+     */
+    @JsonProperty("tombstonedAt")
+    public Long getTombstonedAt() {
+        return _tombstonedAt;
+    }
+
+    /**
+     * Gives tombstones that were written without a watermark the current time as theirs, so that they expire in time.
+     *
+     * @return true if the entry changed
+     */
+    public boolean stampTombstones(long now) {
+        if (_tombstones.isEmpty() || _tombstonedAt != null) {
+            return false;
+        }
+        _tombstonedAt = now;
+        return true;
+    }
+
+    /**
+     * Drops the tombstones if they were all added before the given time, or if they have no watermark and
+     * {@code expiredBefore} is {@link Long#MAX_VALUE}.
+     *
+     * @return the number of tombstones dropped
+     */
+    public int expireTombstones(long expiredBefore) {
+        if (_tombstones.isEmpty()) {
+            return 0;
+        }
+
+        boolean expired = _tombstonedAt == null ? expiredBefore == Long.MAX_VALUE : _tombstonedAt < expiredBefore;
+        if (!expired) {
+            return 0;
+        }
+
+        int count = _tombstones.size();
+        _tombstones.clear();
+        _tombstonedAt = null;
+        return count;
+    }
+
+    @JsonProperty("joinSignature")
+    public String getJoinSignature() {
+        return _joinSignature;
+    }
+
+    public void setJoinSignature(String joinSignature) {
+        _joinSignature = joinSignature;
+    }
+
+    /**
+     * The table of the rule that keeps this entry in its own join index, if joins are not shared and the entry
+     * recorded it.
+     */
+    @JsonProperty("ruleTable")
+    public String getRuleTable() {
+        return _ruleTable;
+    }
+
+    public void setRuleTable(String ruleTable) {
+        _ruleTable = ruleTable;
+    }
+
+    /**
+     * Adds what another entry for the same document holds to this one, keeping the later version of the document.
+     */
+    public void merge(JoinIndexEntry other) {
+        if (other._document != null
+                && (_document == null || other._document.getVersion() > _document.getVersion())) {
+            _document = other._document;
+        }
+
+        if (!other._tombstones.isEmpty()) {
+            _tombstones.addAll(other._tombstones);
+            _tombstonedAt = _tombstonedAt == null ? other._tombstonedAt :
+                    other._tombstonedAt == null ? _tombstonedAt : Math.max(_tombstonedAt, other._tombstonedAt);
+        }
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return _document == null && _tombstones.isEmpty();
+    }
+}
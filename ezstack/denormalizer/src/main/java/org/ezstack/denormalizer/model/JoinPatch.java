@@ -0,0 +1,55 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.Document;
+
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The change a single inner document makes to the join result of the outer documents it is joined with: the inner
+ * document is replaced (or removed, if it is null) in the embedded documents, and the aggregations are overwritten.
+ */
+public class JoinPatch {
+
+    private final String _joinAttributeName;
+    private final String _innerKey;
+    private final Document _innerDocument;
+    private final boolean _includeDocuments;
+    private final Map<String, Object> _aggregations;
+
+    @JsonCreator
+    public JoinPatch(@JsonProperty("joinAttributeName") String joinAttributeName,
+                     @JsonProperty("innerKey") String innerKey,
+                     @JsonProperty("innerDocument") Document innerDocument,
+                     @JsonProperty("includeDocuments") boolean includeDocuments,
+                     @JsonProperty("aggregations") Map<String, Object> aggregations) {
+        _joinAttributeName = checkNotNull(joinAttributeName, "joinAttributeName");
+        _innerKey = checkNotNull(innerKey, "innerKey");
+        _innerDocument = innerDocument;
+        _includeDocuments = includeDocuments;
+        _aggregations = checkNotNull(aggregations, "aggregations");
+    }
+
+    public String getJoinAttributeName() {
+        return _joinAttributeName;
+    }
+
+    public String getInnerKey() {
+        return _innerKey;
+    }
+
+    public Document getInnerDocument() {
+        return _innerDocument;
+    }
+
+    public boolean includeDocuments() {
+        return _includeDocuments;
+    }
+
+    public Map<String, Object> getAggregations() {
+        return _aggregations;
+    }
+}
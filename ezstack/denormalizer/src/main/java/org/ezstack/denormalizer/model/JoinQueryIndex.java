@@ -1,136 +1,561 @@
 package org.ezstack.denormalizer.model;
 
-import com.fasterxml.jackson.annotation.JsonCreator;
-import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
-import com.google.common.collect.ImmutableList;
+import org.apache.samza.storage.kv.Entry;
+import org.apache.samza.storage.kv.KeyValueIterator;
+import org.apache.samza.storage.kv.KeyValueStore;
 import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Filter;
+import org.ezstack.ezapp.datastore.api.Query;
+import org.ezstack.ezapp.datastore.api.SearchType;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import static com.google.common.base.Preconditions.checkArgument;
-
+/**
+ * The documents on both sides of a join that share a partition key. Each document is stored as its own
+ * {@link JoinIndexEntry} under "partitionKey|level|documentKey", so a message only reads and writes the entry it
+ * changes, plus a prefix scan over the level it needs to join against. Rules that share the join share the index when
+ * they share its partition keys, in which case it holds every document that satisfies any of them, and they leave out
+ * the ones that do not satisfy them as they read it. The aggregations the rules ask for are kept up to date over the
+ * inner documents as {@link JoinAggregates} under the partition key.
+ *
+ * Tombstones older than {@link #expireTombstonesBefore} are dropped from the entries the index reads as it reads them,
+ * and {@link #sweepTombstones} drops them from entries that are not being read. Entries record the signature of their
+ * join, or the table of their rule when the rules of a join each keep their own index, which
+ * {@link #purgeRetiredRules} deletes them by once they are no longer used.
+ *
+ * The hash of what each rule last wrote for a document is kept apart from the entries, in a store of its own under
+ * "partitionKey|ruleTable|level|documentKey", so that recording a hash does not rewrite the entry.
+ */
 public class JoinQueryIndex {
 
-    @JsonProperty("outerDocs")
-    private final Map<String, Document> _outerDocs;
+    private static final char SEPARATOR = '|';
+    // partition keys are hex, so every key sorts before this
+    private static final String KEYS_END = "g";
+
+    private final KeyValueStore<String, JoinIndexEntry> _store;
+    private final KeyValueStore<String, JoinAggregates> _aggregateStore;
+    private final KeyValueStore<String, Long> _hashStore;
+    private final String _partitionKey;
+    private final String _joinSignature;
+    private final String _ruleTable;
+    private JoinAggregates _aggregates;
+    private boolean _aggregatesLoaded;
+    // the entries this index has read, so that they are only read once however many times they are used
+    private final Map<String, JoinIndexEntry> _entries = new HashMap<>();
+    private long _tombstonesExpireBefore = Long.MIN_VALUE;
+    private int _expiredTombstones;
+    private int _addedTombstones;
+    private int _usedTombstones;
+    private int _scannedEntries;
+
+    public JoinQueryIndex(KeyValueStore<String, JoinIndexEntry> store, String partitionKey) {
+        this(store, null, null, partitionKey, null, null);
+    }
+
+    /**
+     * @param aggregateStore where the aggregations of the rules are kept, or null to not keep them
+     * @param hashStore where the hashes of what the rules last wrote are kept, or null to not keep them
+     * @param joinSignature the signature of the join the partition key belongs to, which is recorded in the entries
+     *                      written, or null if the rules of the join do not share its partition keys
+     * @param ruleTable the table of the rule the partition key belongs to if they do not, which is recorded instead
+     */
+    public JoinQueryIndex(KeyValueStore<String, JoinIndexEntry> store,
+                          KeyValueStore<String, JoinAggregates> aggregateStore,
+                          KeyValueStore<String, Long> hashStore,
+                          String partitionKey, String joinSignature, String ruleTable) {
+        _store = checkNotNull(store, "store");
+        _aggregateStore = aggregateStore;
+        _hashStore = hashStore;
+        _partitionKey = checkNotNull(partitionKey, "partitionKey");
+        _joinSignature = joinSignature;
+        _ruleTable = ruleTable;
+    }
+
+    /**
+     * @return true if the document is the indexed version of it, because it was newer than the indexed one and
+     * replaced it, or because another rule that shares the join already indexed the same version
+     */
+    public boolean putDocument(Document document, QueryLevel queryLevel) {
+        String key = getKey(_partitionKey, queryLevel, document.getKey());
+        JoinIndexEntry entry = getEntry(key);
+
+        if (entry.removeTombstone(document.getVersion())) {
+            _usedTombstones++;
+            putOrDelete(key, entry);
+            return false;
+        }
+
+        Document indexedDocument = entry.getDocument();
+
+        if (indexedDocument != null && document.getVersion() < indexedDocument.getVersion()) {
+            return false;
+        }
+
+        if (indexedDocument != null && document.getVersion() == indexedDocument.getVersion()) {
+            // the version may have been indexed before a rule that reads more of it joined the index
+            document = withMissingAttributes(indexedDocument, document);
+            if (document == indexedDocument) {
+                return true;
+            }
+        }
+
+        entry.setDocument(document);
+        put(key, entry);
 
-    @JsonProperty("innerDocs")
-    private final Map<String, Document> _innerDocs;
+        if (queryLevel == QueryLevel.INNER) {
+            updateAggregates(indexedDocument, document);
+        }
+        return true;
+    }
 
-    @JsonProperty("innerTombstones")
-    private final Map<String, Set<Integer>> _innerTombstones;
+    /**
+     * The indexed document with the attributes only the given copy of the same version has, or the indexed document
+     * itself if there are none. Documents are projected before they are indexed, so copies can differ in those.
+     */
+    private static Document withMissingAttributes(Document indexedDocument, Document document) {
+        if (indexedDocument.getData().keySet().containsAll(document.getData().keySet())) {
+            return indexedDocument;
+        }
 
-    @JsonProperty("outerTombstones")
-    private final Map<String, Set<Integer>> _outerTombstones;
+        Map<String, Object> data = new LinkedHashMap<>(document.getData());
+        data.putAll(indexedDocument.getData());
+        return indexedDocument.withData(data);
+    }
 
-    private Document _modifiedDocument;
-    private QueryLevel _modifiedLevel;
-    private boolean _isModified;
+    public void deleteDocument(Document document, QueryLevel queryLevel, boolean shouldTombstone) {
+        String key = getKey(_partitionKey, queryLevel, document.getKey());
+        JoinIndexEntry entry = getEntry(key);
 
-    public JoinQueryIndex() {
-        _outerDocs = new LinkedHashMap<>();
-        _innerDocs = new LinkedHashMap<>();
-        _innerTombstones = new HashMap<>();
-        _outerTombstones = new HashMap<>();
-        _isModified = false;
+        Document indexedDocument = entry.getDocument();
 
+        if (shouldTombstone) {
+            entry.addTombstone(document.getVersion(), System.currentTimeMillis());
+            _addedTombstones++;
+        }
+        entry.setDocument(null);
+
+        putOrDelete(key, entry);
+
+        if (queryLevel == QueryLevel.INNER && indexedDocument != null) {
+            updateAggregates(indexedDocument, null);
+        }
     }
 
-    @JsonCreator
-    private JoinQueryIndex(@JsonProperty("outerDocs") Map<String, Document> outerDocs,
-                           @JsonProperty("innerDocs") Map<String, Document> innerDocs,
-                           @JsonProperty("innerTombstones") Map<String, Set<Integer>> innerTombstones,
-                           @JsonProperty("outerTombstones") Map<String, Set<Integer>> outerTombstones) {
-        _outerDocs = checkNotNull(outerDocs, "outerDocs");
-        _innerDocs = checkNotNull(innerDocs, "innerDocs");
-        _innerTombstones = checkNotNull(innerTombstones, "innerTombstones");
-        _outerTombstones = checkNotNull(outerTombstones, "outerTombstones");
-        _isModified = false;
+    /**
+     * Makes the index drop tombstones added before the given time from the entries it reads from now on.
+     * {@link Long#MAX_VALUE} drops all of them, which is what a rule that is done bootstrapping wants, since only
+     * bootstrapped documents can arrive after their deletion.
+     */
+    public void expireTombstonesBefore(long expiredBefore) {
+        _tombstonesExpireBefore = expiredBefore;
+    }
 
+    /**
+     * @return the number of tombstones this index has dropped because they expired
+     */
+    public int getExpiredTombstones() {
+        return _expiredTombstones;
     }
 
-    public void putDocument(Document document, QueryLevel queryLevel) {
+    /**
+     * @return the number of tombstones this index has added for deleted documents
+     */
+    public int getAddedTombstones() {
+        return _addedTombstones;
+    }
 
-        checkArgument(!_isModified, "Query Index can only be modified once");
+    /**
+     * @return the number of documents this index has not stored because their version was tombstoned
+     */
+    public int getUsedTombstones() {
+        return _usedTombstones;
+    }
 
-        Map<String, Set<Integer>> tombstoneMap = queryLevel == QueryLevel.OUTER ? _outerTombstones : _innerTombstones;
-        Set<Integer> tombstonesForKey = MoreObjects.firstNonNull(tombstoneMap.get(document.getKey()), Collections.emptySet());
-        if (tombstonesForKey.contains(document.getVersion())) {
-            tombstonesForKey.remove(document.getVersion());
-            tombstoneMap.put(document.getKey(), tombstonesForKey);
+    /**
+     * @return the number of store entries this index has read in scans of a level
+     */
+    public int getScannedEntries() {
+        return _scannedEntries;
+    }
+
+    /**
+     * Records the hash of what a rule last wrote for an indexed document. The hash is recorded before the write is
+     * made, so a write that then fails would leave it behind, and the retried write would be skipped. The hash store
+     * is therefore kept without a changelog, which empties it whenever the job restarts, and writes that failed are
+     * only retried after a restart.
+     *
+     * @return false if the hash is the one already recorded, which means the write would not change anything
+     */
+    public boolean updateContentHash(QueryLevel queryLevel, String documentKey, String ruleTable, long contentHash) {
+        String key = getKey(_partitionKey, queryLevel, documentKey);
+        if (_hashStore == null || getEntry(key).getDocument() == null) {
+            return true;
+        }
+
+        String hashKey = getHashKey(key, ruleTable);
+        Long recordedHash = _hashStore.get(hashKey);
+        if (recordedHash != null && recordedHash == contentHash) {
+            return false;
+        }
+
+        _hashStore.put(hashKey, contentHash);
+        return true;
+    }
+
+    /**
+     * @return the aggregations of a rule over the inner documents that satisfy its inner filters, or null if the rule
+     * asks for none or they are not kept. They are computed from the inner documents the first time they are needed.
+     */
+    public RuleAggregates getAggregates(String ruleTable, Query query) {
+        Set<SearchType> searchTypes = query.getJoin().getSearchTypes();
+        if (_aggregateStore == null || !JoinAggregates.hasAggregations(searchTypes)) {
+            return null;
+        }
+
+        JoinAggregates aggregates = loadAggregates();
+        RuleAggregates ruleAggregates = aggregates == null ? null : aggregates.getRule(ruleTable);
+        Set<Filter> filters = query.getJoin().getFilters();
+
+        if (ruleAggregates == null || !ruleAggregates.isFor(searchTypes, filters)) {
+            List<Document> innerDocs = getDocuments(QueryLevel.INNER);
+            if (aggregates == null) {
+                aggregates = new JoinAggregates(innerDocs.size());
+                _aggregates = aggregates;
+            }
+
+            ruleAggregates = new RuleAggregates(searchTypes, filters);
+            innerDocs.forEach(ruleAggregates::add);
+            aggregates.putRule(ruleTable, ruleAggregates);
+            putAggregates(aggregates);
+        }
+
+        return ruleAggregates;
+    }
+
+    private JoinAggregates loadAggregates() {
+        if (!_aggregatesLoaded) {
+            _aggregates = _aggregateStore == null ? null : _aggregateStore.get(_partitionKey);
+            _aggregatesLoaded = true;
+        }
+        return _aggregates;
+    }
+
+    // the aggregations of every rule that shares the join follow the inner documents, whichever rule changed them
+    private void updateAggregates(Document indexedDocument, Document document) {
+        JoinAggregates aggregates = loadAggregates();
+        if (aggregates == null) {
+            // computed from the inner documents once a rule needs them
             return;
         }
 
-        Map<String, Document> mapForInsert = queryLevel == QueryLevel.OUTER ? _outerDocs : _innerDocs;
+        if (indexedDocument != null) {
+            aggregates.remove(indexedDocument);
+        }
+        if (document != null) {
+            aggregates.add(document);
+        }
+        putAggregates(aggregates);
+    }
 
-        Document indexedDocument = mapForInsert.get(document.getKey());
+    private void putAggregates(JoinAggregates aggregates) {
+        if (aggregates.isEmpty()) {
+            _aggregateStore.delete(_partitionKey);
+            _aggregates = null;
+        } else {
+            _aggregateStore.put(_partitionKey, aggregates);
+        }
+    }
 
-        if (indexedDocument == null || document.getVersion() > indexedDocument.getVersion()) {
-            mapForInsert.put(document.getKey(), document);
-            _modifiedDocument = document;
-            _modifiedLevel = queryLevel;
-            _isModified = true;
+    // rebuilt from the imported documents when next needed
+    private void resetAggregates() {
+        if (_aggregateStore != null) {
+            _aggregateStore.delete(_partitionKey);
         }
+        _aggregates = null;
+        _aggregatesLoaded = true;
     }
 
-    public void deleteDocument(Document document, QueryLevel queryLevel, boolean shouldTombstone) {
-        checkArgument(!_isModified, "Query Index can only be modified once");
+    /**
+     * Writes the documents and tombstones of an index that was stored as a single blob into the per document layout.
+     */
+    public void importLegacyIndex(LegacyJoinQueryIndex legacyIndex) {
+        _entries.clear();
+        importLevel(QueryLevel.OUTER, legacyIndex.getOuterDocs(), legacyIndex.getOuterTombstones());
+        importLevel(QueryLevel.INNER, legacyIndex.getInnerDocs(), legacyIndex.getInnerTombstones());
+        resetAggregates();
+    }
 
-        _modifiedDocument = document;
-        _modifiedLevel = queryLevel;
-        _isModified = true;
+    private void importLevel(QueryLevel queryLevel, Map<String, Document> documents, Map<String, Set<Integer>> tombstones) {
+        // the old layout did not record when tombstones were added, so they expire counting from the import
+        long now = System.currentTimeMillis();
 
-        if (shouldTombstone) {
-            if (queryLevel == QueryLevel.OUTER) {
-                Set<Integer> tombstones = MoreObjects.firstNonNull(_outerTombstones.get(document.getKey()), new HashSet<>());
-                tombstones.add(document.getVersion());
-                _outerTombstones.put(document.getKey(), tombstones);
+        documents.forEach((documentKey, document) -> mergeEntry(getKey(_partitionKey, queryLevel, documentKey),
+                new JoinIndexEntry(document, tombstones.get(documentKey), now)));
+
+        tombstones.forEach((documentKey, versions) -> {
+            if (!documents.containsKey(documentKey) && !versions.isEmpty()) {
+                mergeEntry(getKey(_partitionKey, queryLevel, documentKey), new JoinIndexEntry(null, versions, now));
+            }
+        });
+    }
+
+    private void mergeEntry(String key, JoinIndexEntry imported) {
+        JoinIndexEntry entry = getEntry(key);
+        entry.merge(imported);
+        putOrDelete(key, entry);
+    }
+
+    public List<Document> getDocuments(QueryLevel queryLevel) {
+        String prefix = getPrefix(_partitionKey, queryLevel);
+        // every key with the prefix sorts before the prefix with its trailing separator incremented
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (SEPARATOR + 1);
+
+        List<Document> documents = new ArrayList<>();
+        List<String> expiredKeys = new ArrayList<>();
+        KeyValueIterator<String, JoinIndexEntry> entries = _store.range(prefix, end);
+        try {
+            while (entries.hasNext()) {
+                Entry<String, JoinIndexEntry> entry = entries.next();
+                _scannedEntries++;
+                if (_entries.putIfAbsent(entry.getKey(), entry.getValue()) == null && expireTombstones(entry.getValue())) {
+                    expiredKeys.add(entry.getKey());
+                }
+                if (entry.getValue().getDocument() != null) {
+                    documents.add(entry.getValue().getDocument());
+                }
+            }
+        } finally {
+            entries.close();
+        }
+
+        // written once the iterator is closed, since the store is not changed while it is being iterated
+        expiredKeys.forEach(key -> putOrDelete(key, _entries.get(key)));
+
+        return documents;
+    }
+
+    private JoinIndexEntry getEntry(String key) {
+        JoinIndexEntry entry = _entries.get(key);
+        if (entry == null) {
+            entry = MoreObjects.firstNonNull(_store.get(key), new JoinIndexEntry());
+            _entries.put(key, entry);
+        }
+        // checked on every access, since the expiry can move on while an entry is held
+        if (expireTombstones(entry)) {
+            putOrDelete(key, entry);
+        }
+        return entry;
+    }
+
+    private boolean expireTombstones(JoinIndexEntry entry) {
+        int expired = entry.expireTombstones(_tombstonesExpireBefore);
+        _expiredTombstones += expired;
+        return expired > 0;
+    }
+
+    /**
+     * Drops expired tombstones from the entries of a store, and gives those without a watermark one.
+     */
+    public static StoreSweep sweepTombstones(KeyValueStore<String, JoinIndexEntry> store, String startAfter,
+                                             int maxEntries, long expiredBefore) {
+        long now = System.currentTimeMillis();
+
+        return sweep(store, startAfter, maxEntries, (key, entry, sweep) -> {
+            int expired = entry.expireTombstones(expiredBefore);
+            boolean changed = expired > 0 || entry.stampTombstones(now);
+            sweep._expiredTombstones += expired;
+            sweep._remainingTombstones += entry.getTombstones().size();
+            return changed;
+        });
+    }
+
+    /**
+     * Purges what retired rules left in a store. Entries of joins that no other rule uses are deleted, along with the
+     * aggregations of their partition keys, and entries of joins that other rules still share only lose the hashes and
+     * aggregations of the retired rules. Entries a retired rule keeps in its own join index, when joins are not
+     * shared, are deleted as well. The hashes of the retired rules are deleted along with the entries they are for.
+     *
+     * @param retiredRuleTables the tables of the retired rules, by the signature of their join
+     * @param usedJoinSignatures the signatures of the joins of the rules that are not retired
+     */
+    public static StoreSweep purgeRetiredRules(KeyValueStore<String, JoinIndexEntry> store,
+                                               KeyValueStore<String, JoinAggregates> aggregateStore,
+                                               KeyValueStore<String, Long> hashStore,
+                                               String startAfter, int maxEntries,
+                                               Map<String, Set<String>> retiredRuleTables,
+                                               Set<String> usedJoinSignatures) {
+        Set<String> allRetiredTables = new HashSet<>();
+        retiredRuleTables.values().forEach(allRetiredTables::addAll);
+
+        Set<String> deletedPartitionKeys = new HashSet<>();
+        Set<String> sharedPartitionKeys = new HashSet<>();
+
+        StoreSweep result = sweep(store, startAfter, maxEntries, (key, entry, sweep) -> {
+            String partitionKey = key.substring(0, key.indexOf(SEPARATOR));
+            String joinSignature = entry.getJoinSignature();
+
+            boolean retired = joinSignature == null ?
+                    entry.getRuleTable() != null && allRetiredTables.contains(entry.getRuleTable()) :
+                    retiredRuleTables.containsKey(joinSignature) && !usedJoinSignatures.contains(joinSignature);
+
+            if (joinSignature != null && retiredRuleTables.containsKey(joinSignature)) {
+                retiredRuleTables.get(joinSignature).forEach(ruleTable -> hashStore.delete(getHashKey(key, ruleTable)));
+            } else if (retired) {
+                hashStore.delete(getHashKey(key, entry.getRuleTable()));
+            }
+
+            if (retired) {
+                entry.setDocument(null);
+                entry.expireTombstones(Long.MAX_VALUE);
+                deletedPartitionKeys.add(partitionKey);
+                return true;
+            }
+
+            if (joinSignature == null || !retiredRuleTables.containsKey(joinSignature)) {
+                return false;
+            }
+
+            sharedPartitionKeys.add(partitionKey);
+            return false;
+        });
+
+        deletedPartitionKeys.forEach(aggregateStore::delete);
+
+        sharedPartitionKeys.removeAll(deletedPartitionKeys);
+        for (String partitionKey : sharedPartitionKeys) {
+            JoinAggregates aggregates = aggregateStore.get(partitionKey);
+            if (aggregates != null && aggregates.removeRules(allRetiredTables)) {
+                aggregateStore.put(partitionKey, aggregates);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Visits the entries of a store in key order, starting after the given key, so that a large store can be swept a
+     * part at a time. Entries that the visitor changes are written back once the iterator is closed.
+     *
+     * @return what the sweep did, and the key to continue from, which is null once the end of the store is reached
+     */
+    private static StoreSweep sweep(KeyValueStore<String, JoinIndexEntry> store, String startAfter, int maxEntries,
+                                    EntryVisitor visitor) {
+        StoreSweep sweep = new StoreSweep();
+        Map<String, JoinIndexEntry> changedEntries = new HashMap<>();
+
+        KeyValueIterator<String, JoinIndexEntry> entries = startAfter == null ? store.all() :
+                store.range(startAfter + '\0', KEYS_END);
+        try {
+            while (entries.hasNext() && sweep._visitedEntries < maxEntries) {
+                Entry<String, JoinIndexEntry> entry = entries.next();
+                sweep._visitedEntries++;
+                sweep._lastKey = entry.getKey();
+
+                if (visitor.visit(entry.getKey(), entry.getValue(), sweep)) {
+                    changedEntries.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            if (!entries.hasNext()) {
+                sweep._lastKey = null;
+            }
+        } finally {
+            entries.close();
+        }
+
+        changedEntries.forEach((key, entry) -> {
+            if (entry.isEmpty()) {
+                store.delete(key);
+                sweep._deletedEntries++;
             } else {
-                Set<Integer> tombstones = MoreObjects.firstNonNull(_innerTombstones.get(document.getKey()), new HashSet<>());
-                tombstones.add(document.getVersion());
-                _innerTombstones.put(document.getKey(), tombstones);
+                store.put(key, entry);
             }
+        });
+
+        return sweep;
+    }
+
+    private interface EntryVisitor {
+        /**
+         * @return true if the entry was changed
+         */
+        boolean visit(String key, JoinIndexEntry entry, StoreSweep sweep);
+    }
+
+    private void put(String key, JoinIndexEntry entry) {
+        if (_joinSignature != null) {
+            entry.setJoinSignature(_joinSignature);
+        } else if (_ruleTable != null) {
+            entry.setRuleTable(_ruleTable);
         }
+        _store.put(key, entry);
+    }
 
-        if (queryLevel == QueryLevel.OUTER) {
-            _outerDocs.remove(document.getKey());
+    private void putOrDelete(String key, JoinIndexEntry entry) {
+        if (entry.isEmpty()) {
+            _store.delete(key);
         } else {
-            _innerDocs.remove(document.getKey());
+            put(key, entry);
         }
     }
 
-    @JsonIgnore
-    public List<Document> getEffectedDocumentsOuter() {
-        if (!_isModified) {
-            return Collections.emptyList();
+    /**
+     * What a single {@link #sweepTombstones} or {@link #purgeRetiredRules} call did.
+     */
+    public static class StoreSweep {
+        private int _visitedEntries;
+        private int _expiredTombstones;
+        private int _remainingTombstones;
+        private int _deletedEntries;
+        private String _lastKey;
+
+        public int getVisitedEntries() {
+            return _visitedEntries;
         }
 
-        if (_modifiedLevel == QueryLevel.OUTER) {
-            return ImmutableList.of(_modifiedDocument);
+        public int getExpiredTombstones() {
+            return _expiredTombstones;
         }
 
-        return _outerDocs.entrySet().stream().map(Map.Entry::getValue).collect(Collectors.toList());
-    }
+        /**
+         * The tombstones left in the visited entries.
+         */
+        public int getRemainingTombstones() {
+            return _remainingTombstones;
+        }
+
+        /**
+         * The entries that were left empty, and so were deleted.
+         */
+        public int getDeletedEntries() {
+            return _deletedEntries;
+        }
 
-    @JsonIgnore
-    public List<Document> getEffectedDocumentsInner() {
-        if (!_isModified) {
-            return Collections.emptyList();
+        public String getLastKey() {
+            return _lastKey;
         }
+    }
+
+    private static String getPrefix(String partitionKey, QueryLevel queryLevel) {
+        return partitionKey + SEPARATOR + queryLevel.name() + SEPARATOR;
+    }
 
-        return _innerDocs.entrySet().stream().map(Map.Entry::getValue).collect(Collectors.toList());
+    public static String getKey(String partitionKey, QueryLevel queryLevel, String documentKey) {
+        return getPrefix(partitionKey, queryLevel) + documentKey;
     }
 
-    // This is necessary because samza has a deserialized cache, which means that a we need to clear out metadata
-    // after each use
-    public void refresh() {
-        _isModified = false;
-        _modifiedLevel = null;
-        _modifiedDocument = null;
+    // partitionKey|ruleTable|level|documentKey, from the key of the entry the hash is for
+    private static String getHashKey(String key, String ruleTable) {
+        int partitionKeyEnd = key.indexOf(SEPARATOR);
+        return key.substring(0, partitionKeyEnd + 1) + ruleTable + key.substring(partitionKeyEnd);
     }
 }
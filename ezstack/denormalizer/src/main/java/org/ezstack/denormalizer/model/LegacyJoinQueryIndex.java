@@ -0,0 +1,53 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.Document;
+
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The single blob per partition key that the join store used to hold. It is only read, in order to move existing
+ * indexes over to the per document layout of {@link JoinQueryIndex}.
+ */
+public class LegacyJoinQueryIndex {
+
+    private final Map<String, Document> _outerDocs;
+    private final Map<String, Document> _innerDocs;
+    private final Map<String, Set<Integer>> _innerTombstones;
+    private final Map<String, Set<Integer>> _outerTombstones;
+
+    @JsonCreator
+    public LegacyJoinQueryIndex(@JsonProperty("outerDocs") Map<String, Document> outerDocs,
+                                @JsonProperty("innerDocs") Map<String, Document> innerDocs,
+                                @JsonProperty("innerTombstones") Map<String, Set<Integer>> innerTombstones,
+                                @JsonProperty("outerTombstones") Map<String, Set<Integer>> outerTombstones) {
+        _outerDocs = checkNotNull(outerDocs, "outerDocs");
+        _innerDocs = checkNotNull(innerDocs, "innerDocs");
+        _innerTombstones = checkNotNull(innerTombstones, "innerTombstones");
+        _outerTombstones = checkNotNull(outerTombstones, "outerTombstones");
+    }
+
+    @JsonProperty("outerDocs")
+    public Map<String, Document> getOuterDocs() {
+        return _outerDocs;
+    }
+
+    @JsonProperty("innerDocs")
+    public Map<String, Document> getInnerDocs() {
+        return _innerDocs;
+    }
+
+    @JsonProperty("innerTombstones")
+    public Map<String, Set<Integer>> getInnerTombstones() {
+        return _innerTombstones;
+    }
+
+    @JsonProperty("outerTombstones")
+    public Map<String, Set<Integer>> getOuterTombstones() {
+        return _outerTombstones;
+    }
+}
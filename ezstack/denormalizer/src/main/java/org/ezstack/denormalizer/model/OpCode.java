@@ -3,5 +3,10 @@ package org.ezstack.denormalizer.model;
 public enum OpCode {
     UPDATE,
     REMOVE,
-    REMOVE_AND_DELETE
+    REMOVE_AND_DELETE,
+    // the document no longer satisfies the rule, but stays in the join index for the other rules that share it
+    DETACH,
+    // the outer document belongs to another sub-partition of its hot join key, which it has been sent to, so it is
+    // removed here without deleting its join result
+    MOVE
 }
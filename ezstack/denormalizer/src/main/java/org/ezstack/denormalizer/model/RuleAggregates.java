@@ -0,0 +1,102 @@
+package org.ezstack.denormalizer.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Filter;
+import org.ezstack.ezapp.datastore.api.FilterPredicates;
+import org.ezstack.ezapp.datastore.api.QueryHelper;
+import org.ezstack.ezapp.datastore.api.QueryResult;
+import org.ezstack.ezapp.datastore.api.RunningAggregation;
+import org.ezstack.ezapp.datastore.api.SearchType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The aggregations one rule asks for, kept up to date over the inner documents of a partition key that satisfy the
+ * rule's inner filters. The filters are kept with the aggregations, so that documents can be added and removed
+ * whichever rule sharing the join changed them.
+ */
+public class RuleAggregates {
+
+    private final Set<Filter> _filters;
+    private Predicate<Document> _filterPredicate;
+    // inner documents the aggregations are over, whether or not they have the aggregated attributes
+    private long _documentCount;
+    private final Map<String, RunningAggregation> _aggregations;
+
+    public RuleAggregates(Set<SearchType> searchTypes, Set<Filter> filters) {
+        this(filters, 0, QueryHelper.safeSet(searchTypes)
+                .stream()
+                .filter(searchType -> searchType.getType() != SearchType.Type.SEARCH)
+                .collect(Collectors.toMap(SearchType::toString, RunningAggregation::new)));
+    }
+
+    @JsonCreator
+    public RuleAggregates(@JsonProperty("filters") Set<Filter> filters,
+                          @JsonProperty("documentCount") long documentCount,
+                          @JsonProperty("aggregations") Map<String, RunningAggregation> aggregations) {
+        _filters = QueryHelper.safeSet(filters);
+        _documentCount = documentCount;
+        _aggregations = new HashMap<>(checkNotNull(aggregations, "aggregations"));
+    }
+
+    /**
+     * @return true if these are the aggregations of the search types over documents that satisfy the filters, which
+     * stops a stale state from being used if a rule is recreated with different aggregations or filters
+     */
+    public boolean isFor(Set<SearchType> searchTypes, Set<Filter> filters) {
+        return _filters.equals(QueryHelper.safeSet(filters)) && _aggregations.keySet().equals(QueryHelper.safeSet(searchTypes)
+                .stream()
+                .filter(searchType -> searchType.getType() != SearchType.Type.SEARCH)
+                .map(SearchType::toString)
+                .collect(Collectors.toSet()));
+    }
+
+    public void add(Document document) {
+        if (matches(document)) {
+            _documentCount++;
+            _aggregations.values().forEach(aggregation -> aggregation.add(document));
+        }
+    }
+
+    public void remove(Document document) {
+        if (matches(document)) {
+            _documentCount--;
+            _aggregations.values().forEach(aggregation -> aggregation.remove(document));
+        }
+    }
+
+    private boolean matches(Document document) {
+        if (_filterPredicate == null) {
+            _filterPredicate = FilterPredicates.compileAll(_filters);
+        }
+        return _filterPredicate.test(document);
+    }
+
+    public void addTo(QueryResult queryResult) {
+        _aggregations.values().forEach(aggregation ->
+                queryResult.addAggregation(aggregation.getSearchType(), aggregation.getResult()));
+    }
+
+    @JsonProperty("filters")
+    public Set<Filter> getFilters() {
+        return _filters;
+    }
+
+    @JsonProperty("documentCount")
+    public long getDocumentCount() {
+        return _documentCount;
+    }
+
+    @JsonProperty("aggregations")
+    public Map<String, RunningAggregation> getAggregations() {
+        return _aggregations;
+    }
+}
@@ -30,4 +30,9 @@ public class RuleIndexPair {
         return Objects.equal(_rule, that.getRule()) &&
                 _queryLevel == that.getLevel();
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(_rule, _queryLevel);
+    }
 }
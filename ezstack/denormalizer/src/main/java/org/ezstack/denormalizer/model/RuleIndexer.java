@@ -1,11 +1,18 @@
 package org.ezstack.denormalizer.model;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Service;
 import org.ezstack.denormalizer.model.RuleIndexPair;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Query;
 import org.ezstack.ezapp.datastore.api.Rule;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public interface RuleIndexer extends Service {
@@ -14,7 +21,50 @@ public interface RuleIndexer extends Service {
 
     Set<RuleIndexPair> getApplicableRulesForTable(String table);
 
-    default HashMultimap<String, RuleIndexPair> getRuleIndex(Collection<Rule> rules) {
+    /**
+     * The rules for the document's table that the document could satisfy. These still need to be checked against
+     * the document, but rules whose indexed predicate the document fails are left out.
+     */
+    Collection<RuleIndexPair> getCandidateRulesForDocument(Document document);
+
+    /**
+     * The rules that join the same tables on the same attributes as the given one, itself included, which share its
+     * join index.
+     */
+    Set<Rule> getRulesSharingJoin(Rule rule);
+
+    /**
+     * What documents of the rule are cut down to at the given level, which for a rule with a join is what every rule
+     * that shares the join reads, see {@link DocumentProjection#forRules}.
+     */
+    DocumentProjection getProjection(Rule rule, QueryLevel level);
+
+    /**
+     * The rule with the given table, whether it is indexed or retired, or null if there is none.
+     */
+    Rule getRule(String ruleTable);
+
+    /**
+     * The rules that were retired, whose state is being reclaimed. They are no longer indexed.
+     */
+    default Set<Rule> getRetiredRules() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return true if the rule with the given table was retired and then deleted, see {@link Rule.RuleStatus#DELETED}
+     */
+    default boolean isDeleted(String ruleTable) {
+        return false;
+    }
+
+    /**
+     * Records that this partition has finished a step of retiring the rule with the given table.
+     */
+    default void acknowledgeRetirement(String ruleTable, String step) {
+    }
+
+    default Map<String, RulePredicateIndex> getRuleIndex(Collection<Rule> rules) {
         HashMultimap<String, RuleIndexPair> index = HashMultimap.create();
 
         for (Rule rule : rules) {
@@ -25,6 +75,76 @@ public interface RuleIndexer extends Service {
             }
         }
 
-        return index;
+        ImmutableMap.Builder<String, RulePredicateIndex> predicateIndexes = ImmutableMap.builder();
+        index.asMap().forEach((table, pairs) -> predicateIndexes.put(table, new RulePredicateIndex(pairs)));
+
+        return predicateIndexes.build();
+    }
+
+    default Map<String, Set<Rule>> getRulesByJoin(Collection<Rule> rules) {
+        HashMultimap<String, Rule> rulesByJoin = HashMultimap.create();
+
+        for (Rule rule : rules) {
+            if (rule.getQuery().getJoin() != null) {
+                rulesByJoin.put(FanoutHashingUtils.getJoinSignature(rule.getQuery()), rule);
+            }
+        }
+
+        ImmutableMap.Builder<String, Set<Rule>> builder = ImmutableMap.builder();
+        rulesByJoin.asMap().forEach((joinSignature, joinRules) -> builder.put(joinSignature, ImmutableSet.copyOf(joinRules)));
+
+        return builder.build();
+    }
+
+    /**
+     * Builds the projections {@link #getProjection} returns when the rules change, once for each join and level and
+     * once for each rule without a join, so that they are not built again for every document.
+     */
+    default Map<String, DocumentProjection> getProjections(Collection<Rule> rules, Map<String, Set<Rule>> rulesByJoin) {
+        Map<String, DocumentProjection> projections = new HashMap<>();
+
+        for (Rule rule : rules) {
+            if (rule.getQuery().getJoin() == null) {
+                projections.put(getProjectionKey(rule, QueryLevel.OUTER),
+                        DocumentProjection.forRules(ImmutableSet.of(rule), QueryLevel.OUTER));
+            }
+        }
+
+        rulesByJoin.values().forEach(joinRules -> {
+            Rule rule = joinRules.iterator().next();
+            for (QueryLevel level : QueryLevel.values()) {
+                projections.put(getProjectionKey(rule, level), DocumentProjection.forRules(joinRules, level));
+            }
+        });
+
+        return ImmutableMap.copyOf(projections);
+    }
+
+    /**
+     * Looks up the projection of a rule in what {@link #getProjections} built, building it for the rule alone if it
+     * is not among them.
+     */
+    static DocumentProjection getProjection(Map<String, DocumentProjection> projections, Rule rule, QueryLevel level) {
+        DocumentProjection projection = projections.get(getProjectionKey(rule, level));
+        return projection == null ? DocumentProjection.forRules(ImmutableSet.of(rule), level) : projection;
+    }
+
+    // table names cannot contain the separator, so the keys of rules without a join never clash with those of joins
+    static String getProjectionKey(Rule rule, QueryLevel level) {
+        Query query = rule.getQuery();
+        return level.name() + "|"
+                + (query.getJoin() == null ? rule.getTable() : FanoutHashingUtils.getJoinSignature(query));
+    }
+
+    /**
+     * Looks up the rules that share a join in what {@link #getRulesByJoin} built, falling back to the rule alone if
+     * it is not among them.
+     */
+    static Set<Rule> getRulesSharingJoin(Map<String, Set<Rule>> rulesByJoin, Rule rule) {
+        if (rule.getQuery().getJoin() == null) {
+            return ImmutableSet.of(rule);
+        }
+        Set<Rule> rules = rulesByJoin.get(FanoutHashingUtils.getJoinSignature(rule.getQuery()));
+        return rules == null ? ImmutableSet.of(rule) : rules;
     }
 }
@@ -0,0 +1,187 @@
+package org.ezstack.denormalizer.model;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import org.ezstack.ezapp.datastore.api.DataType;
+import org.ezstack.ezapp.datastore.api.Document;
+import org.ezstack.ezapp.datastore.api.Filter;
+import org.ezstack.ezapp.datastore.api.JoinAttribute;
+import org.ezstack.ezapp.datastore.api.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Narrows the rules of a table down to the ones a document could satisfy, without evaluating every rule. Each rule is
+ * indexed under a single one of its predicates, chosen in order of selectivity:
+ * <ol>
+ *   <li>an equality filter, looked up by the document's value for the attribute</li>
+ *   <li>a range filter, looked up in a sorted map of its bound</li>
+ *   <li>any other attribute the rule needs a value for, looked up by whether the document has the attribute</li>
+ * </ol>
+ * Rules without any of these are always candidates. Candidates are a superset of the matching rules, and still have
+ * to be checked against all of their filters.
+ */
+public class RulePredicateIndex {
+
+    private final Set<RuleIndexPair> _rules;
+    private final List<RuleIndexPair> _unindexed = new ArrayList<>();
+    private final Map<String, ListMultimap<Object, RuleIndexPair>> _equalityIndex = new HashMap<>();
+    private final Map<String, RangeIndex> _rangeIndex = new HashMap<>();
+    private final ListMultimap<String, RuleIndexPair> _presenceIndex = ArrayListMultimap.create();
+
+    public RulePredicateIndex(Collection<RuleIndexPair> rules) {
+        _rules = ImmutableSet.copyOf(rules);
+        _rules.forEach(this::index);
+    }
+
+    public Set<RuleIndexPair> getRules() {
+        return _rules;
+    }
+
+    public List<RuleIndexPair> getCandidates(Document document) {
+        List<RuleIndexPair> candidates = new ArrayList<>(_unindexed);
+
+        _equalityIndex.forEach((attribute, rulesByValue) -> {
+            Object value = document.getValue(attribute);
+            if (value != null) {
+                candidates.addAll(rulesByValue.get(normalize(value)));
+            }
+        });
+
+        _rangeIndex.forEach((attribute, rangeIndex) -> {
+            Object value = document.getValue(attribute);
+            if (value != null) {
+                rangeIndex.addCandidates(value, candidates);
+            }
+        });
+
+        _presenceIndex.asMap().forEach((attribute, rules) -> {
+            if (document.getValue(attribute) != null) {
+                candidates.addAll(rules);
+            }
+        });
+
+        return candidates;
+    }
+
+    /**
+     * The part of the rule's query that a document at the pair's level has to satisfy.
+     */
+    public static Query getQueryForLevel(RuleIndexPair pair) {
+        return pair.getLevel() == QueryLevel.OUTER ? pair.getRule().getQuery() : pair.getRule().getQuery().getJoin();
+    }
+
+    private void index(RuleIndexPair pair) {
+        Set<Filter> filters = getQueryForLevel(pair).getFilters();
+
+        for (Filter filter : filters) {
+            if (filter.getOp() == Filter.Operation.EQ) {
+                _equalityIndex.computeIfAbsent(filter.getAttribute(), attribute -> ArrayListMultimap.create())
+                        .put(normalize(filter.getValue()), pair);
+                return;
+            }
+        }
+
+        for (Filter filter : filters) {
+            if (filter.getOp() != Filter.Operation.NOT_EQ && RangeIndex.getComparableValue(filter.getValue()) != null) {
+                _rangeIndex.computeIfAbsent(filter.getAttribute(), attribute -> new RangeIndex())
+                        .put(filter, pair);
+                return;
+            }
+        }
+
+        // a filter of any kind fails on a missing attribute, and so does the join
+        if (!filters.isEmpty()) {
+            _presenceIndex.put(filters.iterator().next().getAttribute(), pair);
+            return;
+        }
+
+        Set<JoinAttribute> joinAttributes = pair.getRule().getQuery().getJoinAttributes();
+        if (!joinAttributes.isEmpty()) {
+            JoinAttribute joinAttribute = joinAttributes.iterator().next();
+            _presenceIndex.put(pair.getLevel() == QueryLevel.OUTER ?
+                    joinAttribute.getOuterAttribute() : joinAttribute.getInnerAttribute(), pair);
+            return;
+        }
+
+        _unindexed.add(pair);
+    }
+
+    // numbers that are equal in value share a key, so that the lookup does not depend on how they were parsed
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return d == Math.rint(d) && Math.abs(d) < Long.MAX_VALUE ? (Object) (long) d : (Object) d;
+        }
+        return value;
+    }
+
+    /**
+     * Rules indexed by the bound of a range filter on one attribute, separately for each kind of comparable value.
+     * Lower bounds (gt, gte) are candidates for any value at or above the bound, and upper bounds (lt, lte) for any
+     * value at or below it.
+     */
+    private static class RangeIndex {
+        private final Map<DataType.JsonTypes, NavigableMap<Comparable, List<RuleIndexPair>>> _lowerBounds = new HashMap<>();
+        private final Map<DataType.JsonTypes, NavigableMap<Comparable, List<RuleIndexPair>>> _upperBounds = new HashMap<>();
+
+        void put(Filter filter, RuleIndexPair pair) {
+            boolean isLowerBound = filter.getOp() == Filter.Operation.GT || filter.getOp() == Filter.Operation.GTE;
+
+            (isLowerBound ? _lowerBounds : _upperBounds)
+                    .computeIfAbsent(getKind(filter.getValue()), kind -> new TreeMap<>())
+                    .computeIfAbsent(getComparableValue(filter.getValue()), bound -> new ArrayList<>())
+                    .add(pair);
+        }
+
+        void addCandidates(Object value, List<RuleIndexPair> candidates) {
+            Comparable comparable = getComparableValue(value);
+            if (comparable == null) {
+                return;
+            }
+
+            DataType.JsonTypes kind = getKind(value);
+
+            NavigableMap<Comparable, List<RuleIndexPair>> lowerBounds = _lowerBounds.get(kind);
+            if (lowerBounds != null) {
+                lowerBounds.headMap(comparable, true).values().forEach(candidates::addAll);
+            }
+
+            NavigableMap<Comparable, List<RuleIndexPair>> upperBounds = _upperBounds.get(kind);
+            if (upperBounds != null) {
+                upperBounds.tailMap(comparable, true).values().forEach(candidates::addAll);
+            }
+        }
+
+        // all numbers are compared as doubles; rounding never reorders two numbers, so no candidate is missed
+        static Comparable getComparableValue(Object value) {
+            switch (DataType.getDataType(value)) {
+                case INTEGER:
+                case LONG:
+                case DOUBLE:
+                    return ((Number) value).doubleValue();
+                case STRING:
+                case BOOLEAN:
+                    return (Comparable) value;
+                default:
+                    return null;
+            }
+        }
+
+        private static DataType.JsonTypes getKind(Object value) {
+            DataType.JsonTypes type = DataType.getDataType(value);
+            return type == DataType.JsonTypes.INTEGER || type == DataType.JsonTypes.LONG ? DataType.JsonTypes.DOUBLE : type;
+        }
+    }
+}
@@ -17,7 +17,8 @@ public enum TombstoningPolicy {
             case TOMBSTONE_ALL:
                 return true;
             case BASED_ON_RULE:
-                return rule.getStatus() != Rule.RuleStatus.ACTIVE && rule.getStatus() != Rule.RuleStatus.INACTIVE;
+                return rule.getStatus() != Rule.RuleStatus.ACTIVE && rule.getStatus() != Rule.RuleStatus.INACTIVE
+                        && rule.getStatus() != Rule.RuleStatus.RETIRED;
             default:
                 throw new NullPointerException("Tombstoning policy cannot be null");
         }
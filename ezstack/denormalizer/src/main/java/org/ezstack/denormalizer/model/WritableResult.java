@@ -8,20 +8,29 @@ public class WritableResult {
 
     public enum Action {
         INDEX,
-        DELETE
+        DELETE,
+        /** Applies the {@link JoinPatch} to the already indexed document */
+        PATCH
     }
 
     private final Document _document;
     private final String _table;
     private final Action _action;
+    private final JoinPatch _patch;
+
+    public WritableResult(Document document, String table, Action action) {
+        this(document, table, action, null);
+    }
 
     @JsonCreator
     public WritableResult(@JsonProperty("document") Document document,
                           @JsonProperty("table") String table,
-                          @JsonProperty("action") Action action) {
+                          @JsonProperty("action") Action action,
+                          @JsonProperty("patch") JoinPatch patch) {
         _document = document;
         _table = table;
         _action = action;
+        _patch = patch;
     }
 
     public Document getDocument() {
@@ -35,4 +44,8 @@ public class WritableResult {
     public Action getAction() {
         return _action;
     }
+
+    public JoinPatch getPatch() {
+        return _patch;
+    }
 }
@@ -0,0 +1,13 @@
+package org.ezstack.denormalizer.serde;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.serializers.SerdeFactory;
+import org.ezstack.denormalizer.model.AttributeUpdateTimes;
+
+public class AttributeUpdateTimesSerdeFactory implements SerdeFactory<AttributeUpdateTimes> {
+
+    @Override
+    public SmileSerde<AttributeUpdateTimes> getSerde(String name, Config config) {
+        return SmileSerde.of(AttributeUpdateTimes.class, config);
+    }
+}
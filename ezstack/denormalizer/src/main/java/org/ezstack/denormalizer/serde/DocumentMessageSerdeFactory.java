@@ -6,7 +6,7 @@ import org.ezstack.denormalizer.model.DocumentMessage;
 
 public class DocumentMessageSerdeFactory implements SerdeFactory<DocumentMessage> {
     @Override
-    public JsonSerdeV3<DocumentMessage> getSerde(String name, Config config) {
-        return new JsonSerdeV3<>(DocumentMessage.class);
+    public SmileSerde<DocumentMessage> getSerde(String name, Config config) {
+        return SmileSerde.of(DocumentMessage.class, config);
     }
 }
@@ -6,7 +6,7 @@ import org.ezstack.ezapp.datastore.api.Document;
 
 public class DocumentSerdeFactory implements SerdeFactory<Document> {
     @Override
-    public JsonSerdeV3<Document> getSerde(String name, Config config) {
-        return new JsonSerdeV3<>(Document.class);
+    public SmileSerde<Document> getSerde(String name, Config config) {
+        return SmileSerde.of(Document.class, config);
     }
 }
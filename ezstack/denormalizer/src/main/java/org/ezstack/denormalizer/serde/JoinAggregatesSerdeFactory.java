@@ -0,0 +1,13 @@
+package org.ezstack.denormalizer.serde;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.serializers.SerdeFactory;
+import org.ezstack.denormalizer.model.JoinAggregates;
+
+public class JoinAggregatesSerdeFactory implements SerdeFactory<JoinAggregates> {
+
+    @Override
+    public SmileSerde<JoinAggregates> getSerde(String name, Config config) {
+        return SmileSerde.of(JoinAggregates.class, config);
+    }
+}
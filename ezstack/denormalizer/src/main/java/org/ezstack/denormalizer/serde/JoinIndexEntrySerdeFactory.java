@@ -0,0 +1,13 @@
+package org.ezstack.denormalizer.serde;
+
+import org.apache.samza.config.Config;
+import org.apache.samza.serializers.SerdeFactory;
+import org.ezstack.denormalizer.model.JoinIndexEntry;
+
+public class JoinIndexEntrySerdeFactory implements SerdeFactory<JoinIndexEntry> {
+
+    @Override
+    public SmileSerde<JoinIndexEntry> getSerde(String name, Config config) {
+        return SmileSerde.of(JoinIndexEntry.class, config);
+    }
+}
@@ -2,12 +2,12 @@ package org.ezstack.denormalizer.serde;
 
 import org.apache.samza.config.Config;
 import org.apache.samza.serializers.SerdeFactory;
-import org.ezstack.denormalizer.model.JoinQueryIndex;
+import org.ezstack.denormalizer.model.LegacyJoinQueryIndex;
 
-public class JoinQueryIndexSerdeFactory implements SerdeFactory<JoinQueryIndex> {
+public class JoinQueryIndexSerdeFactory implements SerdeFactory<LegacyJoinQueryIndex> {
     
     @Override
-    public JsonSerdeV3<JoinQueryIndex> getSerde(String name, Config config) {
-        return new JsonSerdeV3<>(JoinQueryIndex.class);
+    public SmileSerde<LegacyJoinQueryIndex> getSerde(String name, Config config) {
+        return SmileSerde.of(LegacyJoinQueryIndex.class, config);
     }
 }
@@ -9,7 +9,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A serializer for UTF-8 encoded JSON strings. org.ezstack.denormalizer.serde.JsonSerdeV3 differs from JsonSerde in that:
@@ -56,8 +56,7 @@ public class JsonSerdeV3<T> implements Serde<T> {
     public byte[] toBytes(T obj) {
         if (obj != null) {
             try {
-                String str = mapper.writeValueAsString(obj);
-                return str.getBytes("UTF-8");
+                return mapper.writeValueAsBytes(obj);
             } catch (Exception e) {
                 throw new SamzaException("Error serializing data.", e);
             }
@@ -68,21 +67,14 @@ public class JsonSerdeV3<T> implements Serde<T> {
 
     public T fromBytes(byte[] bytes) {
         if (bytes != null) {
-            String str;
-            try {
-                str = new String(bytes, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new SamzaException("Error deserializing data", e);
-            }
-
             try {
                 if (clazz != null) {
-                    return mapper.readValue(str, clazz);
+                    return mapper.readValue(bytes, clazz);
                 } else {
-                    return mapper.readValue(str, new TypeReference<T>() { });
+                    return mapper.readValue(bytes, new TypeReference<T>() { });
                 }
             } catch (Exception e) {
-                LOG.debug("Error deserializing data: " + str, e);
+                LOG.debug("Error deserializing data: " + new String(bytes, StandardCharsets.UTF_8), e);
                 throw new SamzaException("Error deserializing data", e);
             }
         } else {
@@ -0,0 +1,87 @@
+package org.ezstack.denormalizer.serde;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.apache.samza.SamzaException;
+import org.apache.samza.config.Config;
+import org.apache.samza.serializers.Serde;
+
+import java.io.ByteArrayOutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A serializer for the denormalizer's stores and internal streams. Values are written as a format version byte
+ * followed by Smile, Jackson's binary JSON, which back-references repeated field names instead of writing them out
+ * again. Values that start with '{' are plain UTF-8 JSON written by {@link JsonSerdeV3}, and are still read, so existing
+ * stores, changelogs and streams do not need to be rebuilt.
+ *
+ * <p>Writing Smile can be turned off with {@link #WRITE_BINARY}, so that jobs that only understand JSON can keep
+ * reading a stream until they have been upgraded.
+ *
+ * @param <T> the type of the POJO being (de)serialized.
+ */
+public class SmileSerde<T> implements Serde<T> {
+
+    public static final String WRITE_BINARY = "denormalizer.binarySerde";
+
+    static final byte FORMAT_SMILE = 1;
+    private static final byte FORMAT_JSON = '{';
+
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    private final Class<T> _clazz;
+    private final boolean _writeBinary;
+
+    public SmileSerde(Class<T> clazz, boolean writeBinary) {
+        _clazz = checkNotNull(clazz, "clazz");
+        _writeBinary = writeBinary;
+    }
+
+    public static <T> SmileSerde<T> of(Class<T> clazz, Config config) {
+        return new SmileSerde<>(clazz, config.getBoolean(WRITE_BINARY, true));
+    }
+
+    @Override
+    public byte[] toBytes(T obj) {
+        if (obj == null) {
+            return null;
+        }
+
+        try {
+            if (!_writeBinary) {
+                return JSON_MAPPER.writeValueAsBytes(obj);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            out.write(FORMAT_SMILE);
+            SMILE_MAPPER.writeValue(out, obj);
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new SamzaException("Error serializing data.", e);
+        }
+    }
+
+    @Override
+    public T fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+
+        try {
+            switch (bytes[0]) {
+                case FORMAT_SMILE:
+                    return SMILE_MAPPER.readValue(bytes, 1, bytes.length - 1, _clazz);
+                case FORMAT_JSON:
+                    return JSON_MAPPER.readValue(bytes, _clazz);
+                default:
+                    throw new SamzaException("Unknown serialization format: " + bytes[0]);
+            }
+        } catch (SamzaException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SamzaException("Error deserializing data", e);
+        }
+    }
+}
@@ -6,8 +6,10 @@ import com.google.inject.name.Names;
 import org.ezstack.ezapp.common.lifecycle.GuavaManagedService;
 import org.ezstack.ezapp.common.lifecycle.LifeCycleRegistry;
 import org.ezstack.ezapp.datastore.api.DataReader;
+import org.ezstack.ezapp.datastore.api.RuleTableDeleter;
 import org.ezstack.ezapp.datastore.api.RulesManager;
 import org.ezstack.ezapp.datastore.core.DefaultDataReader;
+import org.ezstack.ezapp.datastore.core.ElasticSearchRuleTableDeleter;
 import org.ezstack.ezapp.datastore.db.elasticsearch.ElasticSearchConfiguration;
 import org.ezstack.ezapp.datastore.db.elasticsearch.ElasticSearchDataReaderDAO;
 import org.ezstack.ezapp.datastore.db.elasticsearch.TransportAddressConfig;
@@ -30,10 +32,12 @@ public class ReaderModule extends PrivateModule {
         requireBinding(Key.get(RulesManager.class));
 
         bind(DataReader.class).to(DefaultDataReader.class).asEagerSingleton();
+        bind(RuleTableDeleter.class).to(ElasticSearchRuleTableDeleter.class).asEagerSingleton();
         bind(String.class).annotatedWith(Names.named("clusterName")).toInstance(_elasticSearchConfiguration.getClusterName());
         bind(new TypeLiteral<List<TransportAddressConfig>>(){}).annotatedWith(Names.named("transportAddresses"))
                 .toInstance(firstNonNull(_elasticSearchConfiguration.getTransportAddresses(), Collections.emptyList()));
         expose(DataReader.class);
+        expose(RuleTableDeleter.class);
     }
 
     @Provides
@@ -0,0 +1,25 @@
+package org.ezstack.ezapp.datastore.core;
+
+import com.google.inject.Inject;
+import org.ezstack.ezapp.datastore.api.RuleTableDeleter;
+import org.ezstack.ezapp.datastore.db.elasticsearch.ElasticSearchDataReaderDAO;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Deletes the Elasticsearch index of a rule table, which the denormalizer names after the table.
+ */
+public class ElasticSearchRuleTableDeleter implements RuleTableDeleter {
+
+    private final ElasticSearchDataReaderDAO _dataReaderDAO;
+
+    @Inject
+    public ElasticSearchRuleTableDeleter(ElasticSearchDataReaderDAO dataReaderDAO) {
+        _dataReaderDAO = checkNotNull(dataReaderDAO, "dataReaderDAO");
+    }
+
+    @Override
+    public void deleteRuleTable(String ruleTable) {
+        _dataReaderDAO.deleteIndex(ruleTable);
+    }
+}
@@ -77,6 +77,14 @@ public class ElasticSearchDataReaderDAO extends AbstractService {
         }
     }
 
+    public void deleteIndex(String index) {
+        try {
+            _client.admin().indices().prepareDelete(index).get();
+        } catch (IndexNotFoundException e) {
+            // already deleted
+        }
+    }
+
     public QueryResult getDocuments(long scrollInMillis, int batchSize, RuleExecutor ruleExecutor) {
         return new ElasticQueryParser(scrollInMillis, batchSize, ruleExecutor, _client).getDocuments();
     }
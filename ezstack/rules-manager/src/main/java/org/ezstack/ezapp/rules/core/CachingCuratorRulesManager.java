@@ -121,6 +121,16 @@ public class CachingCuratorRulesManager extends AbstractService implements Rules
         }
     }
 
+    private void handleRemoveEvent(TreeCacheEvent event) {
+        List<String> path = ZKPaths.split(event.getData().getPath());
+
+        // only the rule's own node matters, acknowledgements under it are removed along with it
+        if (path.size() == 2) {
+            _rules.remove(path.get(1));
+            LOG.info("Rule with table {} was removed", path.get(1));
+        }
+    }
+
     private ImmutableTable<String, String, Set<Rule>> getActiveRuleIndex() {
         LOG.info("Building rule index");
         Table<String, String, Set<Rule>> table = HashBasedTable.create();
@@ -147,6 +157,9 @@ public class CachingCuratorRulesManager extends AbstractService implements Rules
             case NODE_UPDATED:
                 handleAddOrUpdateEvent(event);
                 return;
+            case NODE_REMOVED:
+                handleRemoveEvent(event);
+                return;
             case INITIALIZED:
                 return;
             default:
@@ -179,7 +192,7 @@ public class CachingCuratorRulesManager extends AbstractService implements Rules
 
     @Override
     public void removeRule(String ruleTable) {
-        throw new UnsupportedOperationException();
+        _consistentRulesManager.removeRule(ruleTable);
     }
 
     @Override
@@ -7,6 +7,7 @@ import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.ezstack.ezapp.datastore.api.Rule;
 import org.ezstack.ezapp.datastore.api.RuleAlreadyExistsException;
 import org.ezstack.ezapp.datastore.api.RulesManager;
@@ -80,25 +81,63 @@ public class CuratorRulesManager extends AbstractService implements RulesManager
 
         } catch (Exception e) {
             if (e instanceof KeeperException.NodeExistsException) {
+                replaceDeletedRule(rule);
+                return;
+            }
+            LOG.error(e.toString());
+            throw new RuntimeException("Failed to create rule", e);
+        }
+    }
+
+    // takes the place of a deleted rule with the same table, unless the rule was changed in the meantime
+    private void replaceDeletedRule(Rule rule) throws RuleAlreadyExistsException {
+        String rulePath = ZKPaths.makePath(_rulesPath, rule.getTable());
+        try {
+            Stat stat = new Stat();
+            Rule existingRule = _mapper.readValue(_client.getData().storingStatIn(stat).forPath(rulePath), Rule.class);
+            if (existingRule.getStatus() != Rule.RuleStatus.DELETED) {
                 throw new RuleAlreadyExistsException(rule.getTable());
             }
+            _client.setData().withVersion(stat.getVersion()).forPath(rulePath, _mapper.writeValueAsBytes(rule));
+        } catch (RuleAlreadyExistsException e) {
+            throw e;
+        } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+            throw new RuleAlreadyExistsException(rule.getTable());
+        } catch (Exception e) {
             LOG.error(e.toString());
             throw new RuntimeException("Failed to create rule", e);
         }
     }
 
+    /**
+     * Retires a rule by marking it retired. The rule is removed once the denormalizer has acknowledged that it
+     * dropped the rule and purged its state, and its table has been deleted.
+     */
     @Override
     public void removeRule(String ruleTable) {
-        throw new UnsupportedOperationException();
+        writeRuleStatus(getExistingRule(ruleTable), Rule.RuleStatus.RETIRED);
     }
 
     @Override
     public void setRuleStatus(String ruleTable, Rule.RuleStatus status) {
+        checkArgument(status != Rule.RuleStatus.RETIRED && status != Rule.RuleStatus.DELETED,
+                "Rules are retired and deleted by removing them");
+        Rule rule = getExistingRule(ruleTable);
+        checkArgument(rule.getStatus() != Rule.RuleStatus.RETIRED, "Rule is retired");
+
+        writeRuleStatus(rule, status);
+    }
+
+    private Rule getExistingRule(String ruleTable) {
         Rule rule = getRule(ruleTable);
         if (rule == null) {
             throw new IllegalArgumentException("Rule does not exist");
         }
+        return rule;
+    }
 
+    private void writeRuleStatus(Rule rule, Rule.RuleStatus status) {
+        String ruleTable = rule.getTable();
         try {
             _client.setData()
                     .forPath(ZKPaths.makePath(_rulesPath, ruleTable),
@@ -112,7 +151,9 @@ public class CuratorRulesManager extends AbstractService implements RulesManager
     @Override
     public Rule getRule(String ruleTable) {
         try {
-            return _mapper.readValue(_client.getData().forPath(ZKPaths.makePath(_rulesPath, ruleTable)), Rule.class);
+            Rule rule = _mapper.readValue(_client.getData().forPath(ZKPaths.makePath(_rulesPath, ruleTable)),
+                    Rule.class);
+            return rule.getStatus() == Rule.RuleStatus.DELETED ? null : rule;
         } catch (Exception e) {
             if (e instanceof KeeperException.NoNodeException) {
                 return null;
@@ -133,6 +174,7 @@ public class CuratorRulesManager extends AbstractService implements RulesManager
                             throw new RuntimeException(e);
                         }
                     })
+                    .filter(rule -> rule.getStatus() != Rule.RuleStatus.DELETED)
                     .collect(Collectors.toSet());
         } catch (KeeperException.NoNodeException e) {
             return Collections.emptySet();
@@ -27,6 +27,7 @@ import org.apache.kafka.connect.json.JsonSerializer;
 import org.apache.zookeeper.KeeperException;
 import org.ezstack.bootstrap.client.BootstrapClient;
 import org.ezstack.ezapp.datastore.api.Rule;
+import org.ezstack.ezapp.datastore.api.RuleTableDeleter;
 import org.ezstack.ezapp.datastore.api.RulesManager;
 import org.ezstack.ezapp.datastore.api.ShutdownMessage;
 import org.slf4j.Logger;
@@ -54,6 +55,12 @@ public class LocalRulesMonitor extends AbstractService {
     private static final int TRANSACTION_TIMEOUT_CONFIG = 3000;
     private static final String ACKS_CONFIG = "all";
 
+    // the steps of retiring a rule, each acknowledged under /rules/{table}/retirement
+    private static final String RETIREMENT_DIR = "retirement";
+    private static final String UNINDEXED_DIR = "unindexed";
+    private static final String PURGED_DIR = "purged";
+    private static final String DELETED_NODE = "deleted";
+
     private static final int ZK_SESSION_TIMEOUT_IN_MS = 15 * 1000;
     private static final int ZK_CONNECTION_TIMEOUT_IN_MS = 10 * 1000;
 
@@ -70,6 +77,7 @@ public class LocalRulesMonitor extends AbstractService {
     private final String _rulesPath;
     private final String _bootstrapperPath;
     private final BootstrapClient _bootstrapClient;
+    private final RuleTableDeleter _ruleTableDeleter;
 
     private CuratorFramework _curator;
 
@@ -77,7 +85,8 @@ public class LocalRulesMonitor extends AbstractService {
 
     LocalRulesMonitor(RulesManager rulesManager, CuratorFactory curatorFactory, String bootstrapServers,
                       int partitionCount, int replicationFactor, String bootstrapTopicName, String shutdownTopicName,
-                      String rulesPath, String bootstrapperPath, BootstrapClient bootstrapClient) {
+                      String rulesPath, String bootstrapperPath, BootstrapClient bootstrapClient,
+                      RuleTableDeleter ruleTableDeleter) {
         _rulesManager = checkNotNull(rulesManager, "rulesManager");
         _curatorFactory = checkNotNull(curatorFactory, "curatorFactory");
         _kafkaBootstrapServers = checkNotNull(bootstrapServers, "bootstrapServers");
@@ -86,6 +95,7 @@ public class LocalRulesMonitor extends AbstractService {
         _rulesPath = checkNotNull(rulesPath, "rulesPath");
         _bootstrapperPath = checkNotNull(bootstrapperPath, "bootstrapperPath");
         _bootstrapClient = checkNotNull(bootstrapClient, "bootstrapClient");
+        _ruleTableDeleter = checkNotNull(ruleTableDeleter, "ruleTableDeleter");
 
         checkArgument(partitionCount > 0);
         checkArgument(replicationFactor > 0);
@@ -173,6 +183,7 @@ public class LocalRulesMonitor extends AbstractService {
             acceptAcknowledgedRules();
             scheduleAcceptedRules();
             activateBootstrappedRules();
+            retireRemovedRules();
 
         } catch (Exception e) {
             notifyFailed(e);
@@ -191,6 +202,8 @@ public class LocalRulesMonitor extends AbstractService {
                         }
                     } catch (KeeperException.NoNodeException e) {
                         LOG.info("Still waiting for rule {} to be acknowledged", rule.toString());
+                    } catch (IllegalArgumentException e) {
+                        LOG.info("Rule {} was retired before it was accepted", rule.getTable());
                     } catch (Exception e) {
                         notifyFailed(e);
                         throw new RuntimeException(e);
@@ -243,6 +256,10 @@ public class LocalRulesMonitor extends AbstractService {
                     _curator.delete().deletingChildrenIfNeeded().forPath(ZKPaths.makePath(_bootstrapperPath, child));
                     break;
                 }
+                // rules that were retired while they were bootstrapping are left to be retired
+                rules = rules.stream()
+                        .filter(rule -> isStatus(rule.getTable(), Rule.RuleStatus.BOOTSTRAPPING))
+                        .collect(Collectors.toSet());
                 List<CuratorOp> ops = getCuratorOpsForStatusSetters(rules, Rule.RuleStatus.ACTIVE);
                 ops.add(_curator.transactionOp().setData().forPath(ZKPaths.makePath(_bootstrapperPath, child), "[]".getBytes(Charsets.UTF_8)));
                 _curator.transaction().forOperations(ops);
@@ -250,6 +267,51 @@ public class LocalRulesMonitor extends AbstractService {
         }
     }
 
+    private boolean isStatus(String ruleTable, Rule.RuleStatus status) {
+        Rule rule = _rulesManager.getRule(ruleTable);
+        return rule != null && rule.getStatus() == status;
+    }
+
+    private boolean isAcknowledgedByAllPartitions(String path) throws Exception {
+        try {
+            return _curator.getChildren().forPath(path).size() == _partitionCount;
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes retired rules once every denormalizer partition has dropped the rule from its index and purged its
+     * join state. The rule's table is deleted first, and that is acknowledged as well, so that a failure in between
+     * does not delete it again. The rule's node is then left as {@link Rule.RuleStatus#DELETED}, without its
+     * acknowledgements, so that the denormalizer keeps dropping documents that were sent to the rule before.
+     */
+    private void retireRemovedRules() throws Exception {
+        for (Rule rule : _rulesManager.getRules(Rule.RuleStatus.RETIRED)) {
+            String retirementPath = ZKPaths.makePath(_rulesPath, rule.getTable(), RETIREMENT_DIR);
+
+            if (!isAcknowledgedByAllPartitions(ZKPaths.makePath(retirementPath, UNINDEXED_DIR))
+                    || !isAcknowledgedByAllPartitions(ZKPaths.makePath(retirementPath, PURGED_DIR))) {
+                LOG.info("Still waiting for rule {} to be retired", rule.getTable());
+                continue;
+            }
+
+            String deletedPath = ZKPaths.makePath(retirementPath, DELETED_NODE);
+            if (_curator.checkExists().forPath(deletedPath) == null) {
+                _ruleTableDeleter.deleteRuleTable(rule.getTable());
+                _curator.create().forPath(deletedPath);
+            }
+
+            String rulePath = ZKPaths.makePath(_rulesPath, rule.getTable());
+            _curator.transaction().forOperations(getCuratorOpsForStatusSetters(Collections.singleton(rule),
+                    Rule.RuleStatus.DELETED));
+            for (String child : _curator.getChildren().forPath(rulePath)) {
+                _curator.delete().deletingChildrenIfNeeded().forPath(ZKPaths.makePath(rulePath, child));
+            }
+            LOG.info("Retired rule with table {}", rule.getTable());
+        }
+    }
+
     @Override
     protected void doStop() {
         try {
@@ -7,6 +7,7 @@ import org.ezstack.bootstrap.client.BootstrapClient;
 import org.ezstack.ezapp.common.guice.SelfHostAndPort;
 import org.ezstack.ezapp.common.lifecycle.GuavaManagedService;
 import org.ezstack.ezapp.common.lifecycle.LifeCycleRegistry;
+import org.ezstack.ezapp.datastore.api.RuleTableDeleter;
 import org.ezstack.ezapp.datastore.api.RulesManager;
 import org.ezstack.ezapp.rules.api.BootstrapperPath;
 import org.ezstack.ezapp.rules.api.ConsistentRulesManager;
@@ -26,11 +27,11 @@ public class RulesMonitor extends LeaderService {
                         @Named("kafkaBootstrapServers") String bootstrapServers, @Named("bootstrapTopicName") String bootstrapTopicName,
                         @Named("shutdownTopicName") String shutdownTopicName, @RulesPath String rulesPath,
                         @BootstrapperPath String bootstrapperPath,
-                        BootstrapClient bootstrapClient) {
+                        BootstrapClient bootstrapClient, RuleTableDeleter ruleTableDeleter) {
         super(curatorFactory, LEADER_DIR, hostAndPort.toString(), SERVICE_NAME,
                 1, TimeUnit.MINUTES, () -> new LocalRulesMonitor(rulesManager, curatorFactory,
                         bootstrapServers, partitionCount, replicationFactor, bootstrapTopicName, shutdownTopicName,
-                        rulesPath, bootstrapperPath, bootstrapClient));
+                        rulesPath, bootstrapperPath, bootstrapClient, ruleTableDeleter));
 
         lifecycle.manage(new GuavaManagedService(this));
     }
@@ -31,6 +31,7 @@ import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.rest.RestStatus;
 import org.ezstack.samza.elasticsearch.system.indexrequest.WriteRequestFactory;
@@ -109,12 +110,15 @@ public class ElasticsearchSystemProducer implements SystemProducer {
       @Override
       public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
         boolean hasFatalError = false;
-        //Do not consider version conficts to be errors. Ignore old versions
+        //Do not consider version conficts of versioned writes to be errors. Ignore old versions
         if (response.hasFailures()) {
           for (BulkItemResponse itemResp : response.getItems()) {
             if (itemResp.isFailed()) {
-              if (itemResp.getFailure().getStatus().equals(RestStatus.CONFLICT)) {
+              if (isVersionConflict(itemResp)) {
                 LOGGER.info("Failed to index document in Elasticsearch: " + itemResp.getFailureMessage());
+              } else if (isMissingDocumentForUpdate(itemResp)) {
+                // the document was deleted after the update was produced, so there is nothing left to update
+                LOGGER.info("Failed to update document in Elasticsearch: " + itemResp.getFailureMessage());
               } else {
                 hasFatalError = true;
                 LOGGER.error("Failed to index document in Elasticsearch: " + itemResp.getFailureMessage());
@@ -153,6 +157,16 @@ public class ElasticsearchSystemProducer implements SystemProducer {
               } else {
                 metrics.updates.inc();
               }
+            } else if (resp instanceof UpdateResponse) {
+              sent += 1;
+              DocWriteResponse.Result result = ((UpdateResponse) resp).getResult();
+              if (result == DocWriteResponse.Result.CREATED) {
+                metrics.inserts.inc();
+              } else if (result == DocWriteResponse.Result.DELETED) {
+                metrics.deletes.inc();
+              } else if (result == DocWriteResponse.Result.UPDATED) {
+                metrics.updates.inc();
+              }
             } else if (resp instanceof DeleteResponse) {
               sent += 1;
               if (((DeleteResponse) resp).status() == RestStatus.OK) {
@@ -171,6 +185,17 @@ public class ElasticsearchSystemProducer implements SystemProducer {
     sourceBulkProcessor.put(source, bulkProcessorFactory.getBulkProcessor(client, listener));
   }
 
+  // updates are not versioned, so a conflict means the update kept racing other writes and was never applied
+  private static boolean isVersionConflict(BulkItemResponse itemResp) {
+    return itemResp.getOpType() != DocWriteRequest.OpType.UPDATE
+            && itemResp.getFailure().getStatus().equals(RestStatus.CONFLICT);
+  }
+
+  private static boolean isMissingDocumentForUpdate(BulkItemResponse itemResp) {
+    return itemResp.getOpType() == DocWriteRequest.OpType.UPDATE
+            && itemResp.getFailure().getStatus().equals(RestStatus.NOT_FOUND);
+  }
+
   @Override
   public void send(String source, OutgoingMessageEnvelope envelope) {
     DocWriteRequest writeRequest = writeRequestFactory.getWriteRequest(envelope);
@@ -23,10 +23,18 @@ import org.apache.samza.SamzaException;
 import org.apache.samza.system.OutgoingMessageEnvelope;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Requests;
 import com.google.common.base.Optional;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -48,6 +56,12 @@ import java.util.Map;
  *     passed on without serialising.
  *   </li>
  *   <li>
+ *     For the "update" op code the message is a {@link Map} with a painless "script" source, its "params" and
+ *     optionally an "upsert" document that is indexed as is if the document does not exist yet. Updates cannot
+ *     be versioned, so the script is responsible for any version checks. An update that races another write to
+ *     the document is retried against the new version, up to {@link #UPDATE_RETRIES_ON_CONFLICT} times.
+ *   </li>
+ *   <li>
  *     The routing key is set from {@link String} representation of the
  *     {@link OutgoingMessageEnvelope#getPartitionKey()} from {@link Object#toString()} if provided.
  *   </li>
@@ -55,6 +69,11 @@ import java.util.Map;
  */
 public class DefaultWriteRequestFactory implements WriteRequestFactory {
 
+  /**
+   * How many times Elasticsearch reruns an update script when the document changed between reading and writing it.
+   */
+  public static final int UPDATE_RETRIES_ON_CONFLICT = 3;
+
   @Override
   public DocWriteRequest getWriteRequest(OutgoingMessageEnvelope envelope) {
     DocWriteRequest writeRequest = getRequest(envelope);
@@ -78,10 +97,9 @@ public class DefaultWriteRequestFactory implements WriteRequestFactory {
     String type = parts[1];
 
     if (parts.length == 2) {
-      return Requests.indexRequest(index)
+      return setSource(Requests.indexRequest(index)
               .type(type)
-              .id(envelope.getKey().toString())
-              .source(getSource(envelope));
+              .id(envelope.getKey().toString()), envelope);
     }
 
     DocWriteRequest request;
@@ -93,13 +111,17 @@ public class DefaultWriteRequestFactory implements WriteRequestFactory {
                 .id(envelope.getKey().toString());
         break;
       case "index":
-        request = Requests.indexRequest(index)
+        request = setSource(Requests.indexRequest(index)
                 .type(type)
-                .id(envelope.getKey().toString())
-                .source(getSource(envelope));
+                .id(envelope.getKey().toString()), envelope);
         break;
+      case "update":
+        if (parts.length > 3) {
+          throw new SamzaException("Updates cannot be versioned");
+        }
+        return getUpdateRequest(index, type, envelope);
       default:
-        throw new SamzaException("Invalid Op Code, must be 'delete' or 'index'");
+        throw new SamzaException("Invalid Op Code, must be 'delete', 'index' or 'update'");
     }
 
     if (parts.length == 3) {
@@ -135,6 +157,34 @@ public class DefaultWriteRequestFactory implements WriteRequestFactory {
 
   }
 
+  private UpdateRequest getUpdateRequest(String index, String type, OutgoingMessageEnvelope envelope) {
+    Map source = getSource(envelope);
+
+    Object script = source.get("script");
+    if (!(script instanceof String)) {
+      throw new SamzaException("An update must provide a script");
+    }
+
+    Map<String, Object> params = source.get("params") instanceof Map ? (Map<String, Object>) source.get("params")
+            : Collections.emptyMap();
+
+    UpdateRequest request = new UpdateRequest(index, type, envelope.getKey().toString())
+            .script(new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, (String) script, params))
+            .retryOnConflict(UPDATE_RETRIES_ON_CONFLICT);
+
+    Object upsert = source.get("upsert");
+    if (upsert instanceof Map) {
+      request.upsert((Map) upsert);
+    } else if (upsert instanceof byte[]) {
+      request.upsert((byte[]) upsert, getXContentType((byte[]) upsert));
+    } else if (upsert instanceof BytesReference) {
+      byte[] bytes = BytesReference.toBytes((BytesReference) upsert);
+      request.upsert(bytes, getXContentType(bytes));
+    }
+
+    return request;
+  }
+
   private Optional<String> getRoutingKey(OutgoingMessageEnvelope envelope) {
     Object partitionKey = envelope.getPartitionKey();
     if (partitionKey == null) {
@@ -143,6 +193,28 @@ public class DefaultWriteRequestFactory implements WriteRequestFactory {
     return Optional.of(partitionKey.toString());
   }
 
+  private IndexRequest setSource(IndexRequest request, OutgoingMessageEnvelope envelope) {
+    Object message = envelope.getMessage();
+    if (message instanceof byte[]) {
+      return request.source((byte[]) message, getXContentType((byte[]) message));
+    } else if (message instanceof BytesReference) {
+      BytesReference bytes = (BytesReference) message;
+      return request.source(bytes, getXContentType(XContentFactory.xContentType(bytes)));
+    }
+    return request.source(getSource(envelope));
+  }
+
+  private XContentType getXContentType(byte[] bytes) {
+    return getXContentType(XContentFactory.xContentType(bytes));
+  }
+
+  private XContentType getXContentType(XContentType xContentType) {
+    if (xContentType == null) {
+      throw new SamzaException("Unable to detect the content type of the message");
+    }
+    return xContentType;
+  }
+
   private Map getSource(OutgoingMessageEnvelope envelope) {
     Object message = envelope.getMessage();
     if (message instanceof Map) {
@@ -8,6 +8,7 @@ import org.ezstack.ezapp.querybus.QueryBusConfiguration;
 import org.ezstack.ezapp.rules.RulesManagerConfiguration;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class EZConfiguration extends Configuration {
@@ -35,6 +36,10 @@ public class EZConfiguration extends Configuration {
     @JsonProperty("rulesManager")
     private RulesManagerConfiguration _rulesManagerConfiguration;
 
+    // document write requests per second from a single client, identified by its user or address. 0 means unlimited
+    @Min(0)
+    @JsonProperty("clientRequestsPerSecond")
+    private double _clientRequestsPerSecond = 0;
 
 
     public WriterConfiguration getWriterConfiguration() {
@@ -52,4 +57,8 @@ public class EZConfiguration extends Configuration {
     public RulesManagerConfiguration getRulesManagerConfiguration() {
         return _rulesManagerConfiguration;
     }
+
+    public double getClientRequestsPerSecond() {
+        return _clientRequestsPerSecond;
+    }
 }
@@ -10,6 +10,9 @@ import org.ezstack.ezapp.querybus.api.QueryBusPublisher;
 import org.ezstack.ezapp.web.exceptionmappers.IllegalArgumentExceptionMapper;
 import org.ezstack.ezapp.web.exceptionmappers.JsonProcessingExceptionMapper;
 import org.ezstack.ezapp.web.exceptionmappers.RuleAlreadyExistsExceptionMapper;
+import org.ezstack.ezapp.web.exceptionmappers.WriteRejectedExceptionMapper;
+import org.ezstack.ezapp.web.filters.ClientRateLimitFilter;
+import org.ezstack.ezapp.web.resources.BulkWriteLanes;
 import org.ezstack.ezapp.web.resources.DataStoreResource1;
 import org.ezstack.ezapp.web.resources.EZHealthCheck;
 import io.dropwizard.Application;
@@ -17,8 +20,16 @@ import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import org.ezstack.ezapp.datastore.api.DataWriter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+
 public class EZService extends Application<EZConfiguration> {
 
+    private static final int BULK_WRITE_LANES = 32;
+    private static final int BULK_WRITE_LANE_QUEUE_SIZE = 1024;
+
     private EZConfiguration _configuration;
     private Environment _environment;
     private Injector _injector;
@@ -52,10 +63,26 @@ public class EZService extends Application<EZConfiguration> {
         environment.jersey().register(new IllegalArgumentExceptionMapper());
         environment.jersey().register(new RuleAlreadyExistsExceptionMapper());
         environment.jersey().register(new JsonProcessingExceptionMapper());
+        environment.jersey().register(new WriteRejectedExceptionMapper());
+
+        if (configuration.getClientRequestsPerSecond() > 0) {
+            environment.jersey().register(new ClientRateLimitFilter(configuration.getClientRequestsPerSecond(),
+                    environment.metrics()));
+        }
+
+        List<ExecutorService> bulkWriteLanes = new ArrayList<>(BULK_WRITE_LANES);
+        for (int lane = 0; lane < BULK_WRITE_LANES; lane++) {
+            bulkWriteLanes.add(environment.lifecycle().executorService("bulk-writer-" + lane + "-%d")
+                    .minThreads(1)
+                    .maxThreads(1)
+                    .workQueue(new ArrayBlockingQueue<>(BULK_WRITE_LANE_QUEUE_SIZE))
+                    .rejectedExecutionHandler(BulkWriteLanes.WAIT_FOR_ROOM)
+                    .build());
+        }
 
         environment.jersey().register(new DataStoreResource1(_injector.getInstance(DataWriter.class),
                 _injector.getInstance(DataReader.class), _injector.getInstance(QueryBusPublisher.class),
-                _injector.getInstance(RulesManager.class)));
+                _injector.getInstance(RulesManager.class), new BulkWriteLanes(bulkWriteLanes)));
 
     }
 
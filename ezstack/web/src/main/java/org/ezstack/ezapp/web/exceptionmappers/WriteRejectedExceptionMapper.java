@@ -0,0 +1,34 @@
+package org.ezstack.ezapp.web.exceptionmappers;
+
+import io.dropwizard.jersey.errors.ErrorMessage;
+import org.ezstack.ezapp.datastore.api.WriteRejectedException;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.util.concurrent.TimeUnit;
+
+@Provider
+public class WriteRejectedExceptionMapper implements ExceptionMapper<WriteRejectedException> {
+
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    @Override
+    public Response toResponse(WriteRejectedException e) {
+        return tooManyRequests(WriteRejectedException.class.getName(), e.getMessage(), e.getRetryAfterMillis());
+    }
+
+    public static Response tooManyRequests(String exceptionType, String message, long retryAfterMillis) {
+        // Retry-After is in whole seconds, so round up to avoid telling clients to retry before a token is available
+        long retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999));
+
+        return Response.status(TOO_MANY_REQUESTS)
+                .header("X-EZ-Exception", exceptionType)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .entity(new ErrorMessage(TOO_MANY_REQUESTS, message))
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .build();
+    }
+}
@@ -0,0 +1,89 @@
+package org.ezstack.ezapp.web.filters;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.ezstack.ezapp.datastore.api.WriteRejectedException;
+import org.ezstack.ezapp.datastore.core.TokenBucket;
+import org.ezstack.ezapp.web.exceptionmappers.WriteRejectedExceptionMapper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits the rate of document write requests from each client with a token bucket per client. Clients are identified
+ * by the name they authenticated as, or by their address if they did not authenticate, never by anything the request
+ * says about itself. A bulk request counts as a single request, the documents in it are limited per table by the
+ * writer. Searches and rule changes are not limited.
+ */
+@Provider
+public class ClientRateLimitFilter implements ContainerRequestFilter {
+
+    // beyond this many clients the least recently seen are forgotten, so many distinct addresses cannot exhaust memory
+    private static final int MAX_CLIENTS = 100000;
+
+    private final LoadingCache<String, TokenBucket> _clientBuckets;
+    private final Meter _admittedMeter;
+    private final Meter _rejectedMeter;
+
+    @Context
+    private HttpServletRequest _servletRequest;
+
+    public ClientRateLimitFilter(double clientRequestsPerSecond, MetricRegistry metricRegistry) {
+        checkArgument(clientRequestsPerSecond > 0, "Client requests per second must be > 0");
+        checkNotNull(metricRegistry, "metricRegistry");
+
+        // idle clients are forgotten so the number of buckets stays bounded
+        _clientBuckets = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CLIENTS)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(CacheLoader.from(client -> new TokenBucket(clientRequestsPerSecond)));
+
+        _admittedMeter = metricRegistry.meter("org.ezstack.ezapp.web.ClientRateLimitFilter.admitted");
+        _rejectedMeter = metricRegistry.meter("org.ezstack.ezapp.web.ClientRateLimitFilter.rejected");
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        if (!isWrite(requestContext)) {
+            return;
+        }
+
+        String client = getClient(requestContext);
+
+        long retryAfterMillis = _clientBuckets.getUnchecked(client).tryAcquire();
+        if (retryAfterMillis > 0) {
+            _rejectedMeter.mark();
+            requestContext.abortWith(WriteRejectedExceptionMapper.tooManyRequests(WriteRejectedException.class.getName(),
+                    "Write rate limit exceeded for client " + client, retryAfterMillis));
+            return;
+        }
+
+        _admittedMeter.mark();
+    }
+
+    private String getClient(ContainerRequestContext requestContext) {
+        SecurityContext securityContext = requestContext.getSecurityContext();
+        Principal principal = securityContext != null ? securityContext.getUserPrincipal() : null;
+        return principal != null ? "user:" + principal.getName() : "address:" + _servletRequest.getRemoteAddr();
+    }
+
+    private static boolean isWrite(ContainerRequestContext requestContext) {
+        String method = requestContext.getMethod();
+        String path = requestContext.getUriInfo().getPath();
+        return (HttpMethod.POST.equals(method) || HttpMethod.PUT.equals(method))
+                && !path.contains("_search") && !path.contains("_rule");
+    }
+}
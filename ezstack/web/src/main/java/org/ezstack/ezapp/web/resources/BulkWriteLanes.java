@@ -0,0 +1,55 @@
+package org.ezstack.ezapp.web.resources;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs bulk writes on single threaded lanes, picking the lane from the document's table and key so that writes to
+ * the same document run one at a time and in the order they were submitted. Writes without a key go to the lanes in
+ * turn. The lanes are expected to have bounded queues that make submitters wait for room, see {@link #WAIT_FOR_ROOM}.
+ */
+public class BulkWriteLanes {
+
+    /**
+     * Waits for room in the queue of a full executor instead of rejecting the task, so that writers are slowed down
+     * to the rate the lanes write at.
+     */
+    public static final RejectedExecutionHandler WAIT_FOR_ROOM = (task, executor) -> {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("bulk writer is shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for room in the bulk writer", e);
+        }
+    };
+
+    private final List<ExecutorService> _lanes;
+    private final AtomicInteger _nextLane = new AtomicInteger();
+
+    /**
+     * @param lanes executors that each run tasks on a single thread, in the order they were submitted
+     */
+    public BulkWriteLanes(List<ExecutorService> lanes) {
+        checkArgument(!lanes.isEmpty(), "lanes");
+        _lanes = ImmutableList.copyOf(lanes);
+    }
+
+    public <T> Future<T> submit(String table, String key, Callable<T> write) {
+        int lane = key == null || key.isEmpty()
+                ? _nextLane.getAndIncrement()
+                : 31 * String.valueOf(table).hashCode() + key.hashCode();
+        return _lanes.get(Math.floorMod(lane, _lanes.size())).submit(write);
+    }
+}
@@ -1,6 +1,11 @@
 package org.ezstack.ezapp.web.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.Futures;
 import org.ezstack.ezapp.datastore.api.*;
 import org.ezstack.ezapp.querybus.api.QueryBusPublisher;
 import org.ezstack.ezapp.web.api.response.BulkResponse;
@@ -9,7 +14,15 @@ import org.ezstack.ezapp.web.api.response.WriteResponse;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Jersey resource for accessing EZapp's {@link DataWriter}, {@link DataReader}, and {@link RulesManager}.
@@ -21,17 +34,23 @@ import java.util.*;
 @Produces(MediaType.APPLICATION_JSON)
 public class DataStoreResource1 {
 
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    private static final ObjectMapper _mapper = new ObjectMapper();
+
     private final DataWriter _dataWriter;
     private final DataReader _dataReader;
     private final QueryBusPublisher _queryBusPublisher;
     private final RulesManager _rulesManager;
+    private final BulkWriteLanes _bulkWriteLanes;
 
     public DataStoreResource1(DataWriter dataWriter, DataReader dataReader, QueryBusPublisher queryBusPublisher,
-                              RulesManager rulesManager) {
+                              RulesManager rulesManager, BulkWriteLanes bulkWriteLanes) {
         _dataWriter = dataWriter;
         _dataReader = dataReader;
         _queryBusPublisher = queryBusPublisher;
         _rulesManager = rulesManager;
+        _bulkWriteLanes = bulkWriteLanes;
     }
 
     @POST
@@ -40,8 +59,9 @@ public class DataStoreResource1 {
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
     public WriteResponse create(@PathParam("table") String table,
+                                @QueryParam("priority") @DefaultValue("interactive") WritePriority priority,
                                 Map<String, Object> json) {
-        return new WriteResponse(_dataWriter.create(table, json));
+        return new WriteResponse(_dataWriter.create(table, json, priority));
     }
 
     @POST
@@ -51,8 +71,9 @@ public class DataStoreResource1 {
     @Produces(MediaType.APPLICATION_JSON)
     public WriteResponse create(@PathParam("table") String table,
                                 @PathParam("key") String key,
+                                @QueryParam("priority") @DefaultValue("interactive") WritePriority priority,
                                 Map<String, Object> json) {
-        return new WriteResponse(_dataWriter.create(table, key, json));
+        return new WriteResponse(_dataWriter.create(table, key, json, priority));
     }
 
     @PUT
@@ -62,8 +83,9 @@ public class DataStoreResource1 {
     @Produces(MediaType.APPLICATION_JSON)
     public WriteResponse update(@PathParam("table") String table,
                                 @PathParam("key") String key,
+                                @QueryParam("priority") @DefaultValue("interactive") WritePriority priority,
                                 Map<String, Object> json) {
-        return new WriteResponse(_dataWriter.update(table, key, json));
+        return new WriteResponse(_dataWriter.update(table, key, json, priority));
     }
 
     @GET
@@ -95,49 +117,123 @@ public class DataStoreResource1 {
     @Timed
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public BulkResponse bulkWrite(List<BulkDocument> bulkDocuments) {
+    public BulkResponse bulkWrite(@QueryParam("priority") @DefaultValue("bulk") WritePriority priority,
+                                  List<BulkDocument> bulkDocuments) {
         BulkResponse bulkResponse = new BulkResponse();
 
         for (BulkDocument doc : bulkDocuments) {
-            switch (doc.getOpType()) {
-                case CREATE:
+            Object result = writeBulkDocument(doc, priority);
+            if (result instanceof WriteResponse) {
+                bulkResponse.addItem(result);
+            } else {
+                bulkResponse.addToErrorCount();
+                bulkResponse.addErrorMessage(result);
+            }
+        }
+
+        return bulkResponse;
+    }
+
+    /**
+     * Streaming variant of the bulk endpoint for newline delimited JSON. Documents are parsed one at a time and
+     * written while the rest of the body is still being read, with at most {@code maxInFlight} documents from
+     * the request held in memory. One result line is streamed back per input document, in input order. Lines for
+     * the same document are written in the order they appear in.
+     */
+    @POST
+    @Path("_bulk/")
+    @Timed
+    @Consumes(APPLICATION_NDJSON)
+    @Produces(APPLICATION_NDJSON)
+    public StreamingOutput streamingBulkWrite(@QueryParam("maxInFlight") @DefaultValue("256") int maxInFlight,
+                                              @QueryParam("priority") @DefaultValue("bulk") WritePriority priority,
+                                              InputStream input) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be > 0");
+
+        return output -> {
+            Deque<Future<Object>> inFlight = new ArrayDeque<>(maxInFlight);
+
+            try (MappingIterator<BulkDocument> documents = _mapper.readerFor(BulkDocument.class).readValues(input)) {
+                while (true) {
                     try {
-                        if (doc.getKey() == null || doc.getKey().isEmpty()) {
-                            bulkResponse.addItem(create(doc.getTable(), doc.getDocument()));
-                        } else {
-                            bulkResponse.addItem(create(doc.getTable(), doc.getKey(), doc.getDocument()));
+                        if (!documents.hasNextValue()) {
+                            break;
                         }
-                    } catch (Exception e) {
-                        bulkResponse.addToErrorCount();
-                        bulkResponse.addErrorMessage(
-                                BulkResponse.createGenericErrorMessage("failed to create document", doc));
+                        BulkDocument doc = documents.nextValue();
+                        inFlight.add(_bulkWriteLanes.submit(doc.getTable(), doc.getKey(),
+                                () -> writeBulkDocument(doc, priority)));
+                    } catch (JsonMappingException e) {
+                        // the document could not be bound, but the parser can resume at the next one
+                        inFlight.add(Futures.immediateFuture(
+                                BulkResponse.createGenericErrorMessage("invalid bulk document: " + e.getOriginalMessage(), null)));
+                    } catch (JsonProcessingException e) {
+                        // malformed json, there is no way to tell where the next document starts
+                        inFlight.add(Futures.immediateFuture(
+                                BulkResponse.createGenericErrorMessage("malformed bulk body: " + e.getOriginalMessage(), null)));
+                        break;
                     }
 
-                    break;
-                case UPDATE:
-                    try {
-                        if (doc.getKey() == null || doc.getKey().isEmpty()) {
-                            bulkResponse.addToErrorCount();
-                            bulkResponse.addErrorMessage(
-                                    BulkResponse.createGenericErrorMessage("failed to update document due to missing key", doc));
-                        } else {
-                            bulkResponse.addItem(update(doc.getTable(), doc.getKey(), doc.getDocument()));
-                        }
-                    } catch (Exception e) {
-                        bulkResponse.addToErrorCount();
-                        bulkResponse.addErrorMessage(
-                                BulkResponse.createGenericErrorMessage("failed to update document", doc));
+                    if (inFlight.size() >= maxInFlight) {
+                        writeBulkResult(inFlight.poll(), output);
                     }
-                    break;
-                default:
-                    bulkResponse.addToErrorCount();
-                    bulkResponse.addErrorMessage(
-                            BulkResponse.createGenericErrorMessage("unkown bulk operation", doc));
-                    break;
+                }
+            } finally {
+                while (!inFlight.isEmpty()) {
+                    writeBulkResult(inFlight.poll(), output);
+                }
             }
+        };
+    }
+
+    private void writeBulkResult(Future<Object> result, OutputStream output) throws IOException {
+        Object line;
+        try {
+            line = result.get();
+        } catch (ExecutionException e) {
+            line = BulkResponse.createGenericErrorMessage("failed to write bulk document", null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            line = BulkResponse.createGenericErrorMessage("interrupted while writing bulk document", null);
+        }
+        output.write(_mapper.writeValueAsBytes(line));
+        output.write('\n');
+        output.flush();
+    }
+
+    /**
+     * @return the {@link WriteResponse} if the document was written, otherwise an error message
+     */
+    private Object writeBulkDocument(BulkDocument doc, WritePriority priority) {
+        if (doc.getOpType() == null) {
+            return BulkResponse.createGenericErrorMessage("missing bulk operation", doc);
         }
 
-        return bulkResponse;
+        switch (doc.getOpType()) {
+            case CREATE:
+                try {
+                    if (doc.getKey() == null || doc.getKey().isEmpty()) {
+                        return create(doc.getTable(), priority, doc.getDocument());
+                    }
+                    return create(doc.getTable(), doc.getKey(), priority, doc.getDocument());
+                } catch (WriteRejectedException e) {
+                    return BulkResponse.createGenericErrorMessage(e.getMessage(), doc);
+                } catch (Exception e) {
+                    return BulkResponse.createGenericErrorMessage("failed to create document", doc);
+                }
+            case UPDATE:
+                if (doc.getKey() == null || doc.getKey().isEmpty()) {
+                    return BulkResponse.createGenericErrorMessage("failed to update document due to missing key", doc);
+                }
+                try {
+                    return update(doc.getTable(), doc.getKey(), priority, doc.getDocument());
+                } catch (WriteRejectedException e) {
+                    return BulkResponse.createGenericErrorMessage(e.getMessage(), doc);
+                } catch (Exception e) {
+                    return BulkResponse.createGenericErrorMessage("failed to update document", doc);
+                }
+            default:
+                return BulkResponse.createGenericErrorMessage("unkown bulk operation", doc);
+        }
     }
 
     @POST
@@ -161,6 +257,15 @@ public class DataStoreResource1 {
         return SuccessResponse.instance();
     }
 
+    @DELETE
+    @Path("_rule/_table/{ruleTable}")
+    @Timed
+    @Produces(MediaType.APPLICATION_JSON)
+    public SuccessResponse removeRule(@PathParam("ruleTable") String ruleTable) {
+        _rulesManager.removeRule(ruleTable);
+        return SuccessResponse.instance();
+    }
+
     @GET
     @Path("_rule/_table/{ruleTable}")
     @Timed
@@ -1,9 +1,13 @@
 package org.ezstack.ezapp.datastore;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import org.ezstack.ezapp.datastore.api.KeyGenerator;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
 
 public class WriterConfiguration {
 
@@ -19,6 +23,11 @@ public class WriterConfiguration {
     @JsonProperty("writerTopicName")
     private String _writerTopicName;
 
+    // interactive writes are published here, and read by the denormalizer ahead of the bulk writes on writerTopicName
+    @NotEmpty
+    @JsonProperty("priorityWriterTopicName")
+    private String _priorityWriterTopicName = "priority-documents";
+
     @NotNull
     @JsonProperty("writerTopicPartitionCount")
     private Integer _writerTopicPartitionCount;
@@ -31,6 +40,33 @@ public class WriterConfiguration {
     @JsonProperty("writerTopicReplicationFactor")
     private Integer _writerTopicReplicationFactor;
 
+    // updates to the same document that arrive within this window are merged into one, 0 disables coalescing
+    @Min(0)
+    @JsonProperty("coalescingWindowInMillis")
+    private long _coalescingWindowInMillis = 0;
+
+    // how keys are generated for documents created without one, overridable per table
+    @NotNull
+    @JsonProperty("defaultKeyGenerator")
+    private KeyGenerator _defaultKeyGenerator = KeyGenerator.RANDOM;
+
+    @NotNull
+    @JsonProperty("tableKeyGenerators")
+    private Map<String, KeyGenerator> _tableKeyGenerators = new HashMap<>();
+
+    // admission control, where 0 means unlimited. Writes over a limit are rejected rather than queued
+    @Min(0)
+    @JsonProperty("maxInFlightWrites")
+    private int _maxInFlightWrites = 0;
+
+    @Min(0)
+    @JsonProperty("defaultTableWritesPerSecond")
+    private double _defaultTableWritesPerSecond = 0;
+
+    @NotNull
+    @JsonProperty("tableWritesPerSecond")
+    private Map<String, Double> _tableWritesPerSecond = new HashMap<>();
+
     public String getBootstrapServers() {
         return _bootstrapServers;
     }
@@ -43,6 +79,10 @@ public class WriterConfiguration {
         return _writerTopicName;
     }
 
+    public String getPriorityWriterTopicName() {
+        return _priorityWriterTopicName;
+    }
+
     public int getWriterTopicPartitionCount() {
         return _writerTopicPartitionCount;
     }
@@ -54,4 +94,28 @@ public class WriterConfiguration {
     public int getWriterTopicReplicationFactor() {
         return _writerTopicReplicationFactor;
     }
+
+    public long getCoalescingWindowInMillis() {
+        return _coalescingWindowInMillis;
+    }
+
+    public KeyGenerator getDefaultKeyGenerator() {
+        return _defaultKeyGenerator;
+    }
+
+    public Map<String, KeyGenerator> getTableKeyGenerators() {
+        return _tableKeyGenerators;
+    }
+
+    public int getMaxInFlightWrites() {
+        return _maxInFlightWrites;
+    }
+
+    public double getDefaultTableWritesPerSecond() {
+        return _defaultTableWritesPerSecond;
+    }
+
+    public Map<String, Double> getTableWritesPerSecond() {
+        return _tableWritesPerSecond;
+    }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.ezstack.ezapp.datastore;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.PrivateModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
@@ -7,9 +8,14 @@ import com.google.inject.name.Named;
 import org.ezstack.ezapp.common.lifecycle.GuavaManagedService;
 import org.ezstack.ezapp.common.lifecycle.LifeCycleRegistry;
 import org.ezstack.ezapp.datastore.api.DataWriter;
+import org.ezstack.ezapp.datastore.api.KeyGenerator;
 import org.ezstack.ezapp.datastore.core.DefaultDataWriter;
+import org.ezstack.ezapp.datastore.core.UpdateCoalescer;
+import org.ezstack.ezapp.datastore.core.WriteAdmissionController;
 import org.ezstack.ezapp.datastore.db.kafka.KafkaDataWriterDAO;
 
+import java.util.Map;
+
 public class WriterModule extends PrivateModule {
 
     private final WriterConfiguration _configuration;
@@ -29,15 +35,33 @@ public class WriterModule extends PrivateModule {
                                                  @Named("producerName") String producerName,
                                                  @Named("documentTopicPartitionCount") int documentTopicPartitionCount,
                                                  @Named("documentTopic") String documentTopic,
+                                                 @Named("priorityDocumentTopic") String priorityDocumentTopic,
                                                  @Named("zookeeperHosts") String zookeeperHosts,
                                                  @Named("documentTopicReplicationFactor") int documentTopicReplicationFactor,
                                                  LifeCycleRegistry lifeCycleRegistry) {
-        KafkaDataWriterDAO kafkaDataWriterDAO = new KafkaDataWriterDAO(bootstrapServers, producerName, documentTopic,
+        KafkaDataWriterDAO kafkaDataWriterDAO = new KafkaDataWriterDAO(bootstrapServers, producerName, documentTopic, priorityDocumentTopic,
                 zookeeperHosts, documentTopicPartitionCount, documentTopicReplicationFactor);
         lifeCycleRegistry.manage(new GuavaManagedService(kafkaDataWriterDAO));
         return kafkaDataWriterDAO;
     }
 
+    @Provides
+    @Singleton
+    UpdateCoalescer provideUpdateCoalescer(KafkaDataWriterDAO kafkaDataWriterDAO,
+                                           @Named("coalescingWindowInMillis") long coalescingWindowInMillis,
+                                           LifeCycleRegistry lifeCycleRegistry) {
+        UpdateCoalescer updateCoalescer = new UpdateCoalescer(kafkaDataWriterDAO, coalescingWindowInMillis);
+        lifeCycleRegistry.manage(new GuavaManagedService(updateCoalescer));
+        return updateCoalescer;
+    }
+
+    @Provides
+    @Singleton
+    WriteAdmissionController provideWriteAdmissionController(MetricRegistry metricRegistry) {
+        return new WriteAdmissionController(_configuration.getMaxInFlightWrites(),
+                _configuration.getDefaultTableWritesPerSecond(), _configuration.getTableWritesPerSecond(), metricRegistry);
+    }
+
     @Provides
     @Singleton
     @Named("bootstrapServers")
@@ -66,6 +90,13 @@ public class WriterModule extends PrivateModule {
         return _configuration.getWriterTopicName();
     }
 
+    @Provides
+    @Singleton
+    @Named("priorityDocumentTopic")
+    String providePriorityDocumentTopic() {
+        return _configuration.getPriorityWriterTopicName();
+    }
+
     @Provides
     @Singleton
     @Named("zookeeperHosts")
@@ -79,4 +110,25 @@ public class WriterModule extends PrivateModule {
     int provideDocumentTopicReplicationFactor() {
         return _configuration.getWriterTopicReplicationFactor();
     }
+
+    @Provides
+    @Singleton
+    @Named("coalescingWindowInMillis")
+    long provideCoalescingWindowInMillis() {
+        return _configuration.getCoalescingWindowInMillis();
+    }
+
+    @Provides
+    @Singleton
+    @Named("defaultKeyGenerator")
+    KeyGenerator provideDefaultKeyGenerator() {
+        return _configuration.getDefaultKeyGenerator();
+    }
+
+    @Provides
+    @Singleton
+    @Named("tableKeyGenerators")
+    Map<String, KeyGenerator> provideTableKeyGenerators() {
+        return _configuration.getTableKeyGenerators();
+    }
 }
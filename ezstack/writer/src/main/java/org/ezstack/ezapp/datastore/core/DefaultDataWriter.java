@@ -1,38 +1,94 @@
 package org.ezstack.ezapp.datastore.core;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import org.ezstack.ezapp.datastore.api.DataWriter;
+import org.ezstack.ezapp.datastore.api.FieldOperation;
+import org.ezstack.ezapp.datastore.api.KeyGenerator;
 import org.ezstack.ezapp.datastore.api.Update;
-import org.ezstack.ezapp.datastore.db.kafka.KafkaDataWriterDAO;
+import org.ezstack.ezapp.datastore.api.WritePriority;
 
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 public class DefaultDataWriter implements DataWriter {
 
-    private final KafkaDataWriterDAO _dataWriterDAO;
+    private final UpdateCoalescer _updateCoalescer;
+    private final WriteAdmissionController _admissionController;
+    private final KeyGenerator _defaultKeyGenerator;
+    private final Map<String, KeyGenerator> _tableKeyGenerators;
 
     @Inject
-    public DefaultDataWriter(KafkaDataWriterDAO dataWriterDAO) {
-        _dataWriterDAO = dataWriterDAO;
+    public DefaultDataWriter(UpdateCoalescer updateCoalescer,
+                             WriteAdmissionController admissionController,
+                             @Named("defaultKeyGenerator") KeyGenerator defaultKeyGenerator,
+                             @Named("tableKeyGenerators") Map<String, KeyGenerator> tableKeyGenerators) {
+        _updateCoalescer = updateCoalescer;
+        _admissionController = admissionController;
+        _defaultKeyGenerator = defaultKeyGenerator;
+        _tableKeyGenerators = tableKeyGenerators;
     }
 
     @Override
     public String create(String table, String key, Map<String, Object> document) {
-        _dataWriterDAO.update(new Update(table, key, null, document, false));
+        return create(table, key, document, WritePriority.INTERACTIVE);
+    }
+
+    @Override
+    public String create(String table, String key, Map<String, Object> document, WritePriority priority) {
+        write(new Update(table, key, null, document, false), priority);
         return key;
     }
 
     @Override
     public String create(String table, Map<String, Object> document) {
-        String key = UUID.randomUUID().toString();
-        create(table, key, document);
+        return create(table, document, WritePriority.INTERACTIVE);
+    }
+
+    @Override
+    public String create(String table, Map<String, Object> document, WritePriority priority) {
+        String key = _tableKeyGenerators.getOrDefault(table, _defaultKeyGenerator).generate();
+        create(table, key, document, priority);
         return key;
     }
 
     @Override
     public String update(String table, String key, Map<String, Object> update) {
-        _dataWriterDAO.update(new Update(table, key, null, update, true));
+        return update(table, key, update, WritePriority.INTERACTIVE);
+    }
+
+    @Override
+    public String update(String table, String key, Map<String, Object> update, WritePriority priority) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        Map<FieldOperation, Map<String, Object>> operations = new EnumMap<>(FieldOperation.class);
+
+        // top level attributes such as "$inc" are field operations, everything else is a partial update
+        for (Map.Entry<String, Object> attribute : update.entrySet()) {
+            if (FieldOperation.isOperator(attribute.getKey())) {
+                FieldOperation operation = FieldOperation.fromOperator(attribute.getKey());
+                checkArgument(attribute.getValue() instanceof Map, "%s requires an object of attributes", attribute.getKey());
+                operation.validate((Map<String, Object>) attribute.getValue());
+                operations.put(operation, (Map<String, Object>) attribute.getValue());
+            } else {
+                data.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        Update partialUpdate = new Update(table, key, null, data, true, operations);
+        checkArgument(!partialUpdate.isEmpty(), "Update has no data or field operations");
+        write(partialUpdate, priority);
         return key;
     }
+
+    private void write(Update update, WritePriority priority) {
+        _admissionController.admit(update.getTable());
+        try {
+            _updateCoalescer.update(update, priority);
+        } finally {
+            _admissionController.release();
+        }
+    }
 }
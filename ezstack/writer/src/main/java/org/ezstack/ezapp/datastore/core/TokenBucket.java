@@ -0,0 +1,43 @@
+package org.ezstack.ezapp.datastore.core;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Token bucket that refills continuously at a fixed rate and holds at most one second worth of tokens, so short
+ * bursts are admitted while the sustained rate stays bounded. Acquiring never blocks.
+ */
+public class TokenBucket {
+
+    private final double _tokensPerSecond;
+    private final double _capacity;
+
+    private double _tokens;
+    private long _lastRefillNanos;
+
+    public TokenBucket(double tokensPerSecond) {
+        checkArgument(tokensPerSecond > 0, "Tokens per second must be > 0");
+        _tokensPerSecond = tokensPerSecond;
+        _capacity = Math.max(1, tokensPerSecond);
+        _tokens = _capacity;
+        _lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if one is available.
+     * @return 0 if a token was taken, otherwise how many milliseconds until the next token is available
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        _tokens = Math.min(_capacity, _tokens + (now - _lastRefillNanos) * _tokensPerSecond / TimeUnit.SECONDS.toNanos(1));
+        _lastRefillNanos = now;
+
+        if (_tokens >= 1) {
+            _tokens--;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil((1 - _tokens) * 1000 / _tokensPerSecond));
+    }
+}
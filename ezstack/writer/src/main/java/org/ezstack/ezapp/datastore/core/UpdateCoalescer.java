@@ -0,0 +1,189 @@
+package org.ezstack.ezapp.datastore.core;
+
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.AbstractService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.ezstack.ezapp.datastore.api.KeyBuilder;
+import org.ezstack.ezapp.datastore.api.Update;
+import org.ezstack.ezapp.datastore.api.WritePriority;
+import org.ezstack.ezapp.datastore.db.kafka.KafkaDataWriterDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds updates for up to a configured window before publishing them, merging every update to the same document that
+ * arrives within the window into a single {@link Update}. Writers still block until the merged update has been
+ * acknowledged by Kafka, so coalescing only trades latency for fewer records downstream.
+ *
+ * <p>A window of 0 disables coalescing and every update is published as soon as it is received.
+ */
+public class UpdateCoalescer extends AbstractService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpdateCoalescer.class);
+
+    private final KafkaDataWriterDAO _dataWriterDAO;
+    private final long _coalescingWindowInMillis;
+
+    // <hash key, update waiting to be published>
+    private final ConcurrentHashMap<HashCode, PendingUpdate> _pendingUpdates;
+
+    private ScheduledExecutorService _service;
+
+    public UpdateCoalescer(KafkaDataWriterDAO dataWriterDAO, long coalescingWindowInMillis) {
+        _dataWriterDAO = checkNotNull(dataWriterDAO, "dataWriterDAO");
+        checkArgument(coalescingWindowInMillis >= 0, "Coalescing window must be >= 0");
+
+        _coalescingWindowInMillis = coalescingWindowInMillis;
+        _pendingUpdates = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    protected void doStart() {
+        if (isCoalescing()) {
+            _service = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("update-coalescer-%d").build());
+        }
+
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            if (isCoalescing()) {
+                _service.shutdown();
+                if (!_service.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOG.error("{} is still running after 10 seconds", this.getClass().getSimpleName());
+                }
+                // anything still buffered is published right away rather than dropped
+                _pendingUpdates.keySet().forEach(this::publish);
+            }
+        } catch (Exception e) {
+            notifyFailed(e);
+            throw new RuntimeException(e);
+        }
+
+        notifyStopped();
+    }
+
+    private boolean isCoalescing() {
+        return _coalescingWindowInMillis > 0;
+    }
+
+    /**
+     * Publishes the update, returning once it (or the update it was merged into) has been acknowledged. A merged update
+     * is published on the interactive lane if any of the updates merged into it was interactive, and so is an update
+     * with field operations along with the update pending for its document, if either of them is interactive.
+     */
+    public void update(Update update, WritePriority priority) {
+        if (!isCoalescing()) {
+            _dataWriterDAO.update(update, priority);
+            return;
+        }
+
+        HashCode hashKey = KeyBuilder.hashKey(update.getTable(), update.getKey());
+
+        if (update.hasOperations()) {
+            // field operations cannot be merged, so whatever is pending is sent first, on the same lane, and is
+            // acknowledged before the update is sent, to keep the two in order
+            PendingUpdate pendingUpdate = _pendingUpdates.remove(hashKey);
+            if (pendingUpdate == null) {
+                _dataWriterDAO.update(update, priority);
+                return;
+            }
+            pendingUpdate.raisePriority(priority);
+            publish(pendingUpdate);
+            Futures.getUnchecked(pendingUpdate.getFuture());
+            _dataWriterDAO.update(update, pendingUpdate.getPriority());
+            return;
+        }
+
+        PendingUpdate newUpdate = new PendingUpdate(update, priority);
+        PendingUpdate pendingUpdate = _pendingUpdates.merge(hashKey, newUpdate, (pending, ignored) -> {
+            pending.merge(update, priority);
+            return pending;
+        });
+
+        // the window is scheduled outside of the map, and only for the update that opened it
+        if (pendingUpdate == newUpdate) {
+            try {
+                _service.schedule(() -> publish(hashKey), _coalescingWindowInMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopping, and the buffered updates may already have been flushed, so nothing would publish this one
+                publish(hashKey);
+            }
+        }
+
+        Futures.getUnchecked(pendingUpdate.getFuture());
+    }
+
+    private void publish(HashCode hashKey) {
+        // Once the pending update is removed from the map, later updates to the same document start a new window,
+        // so nothing can be merged into this one after it is sent
+        PendingUpdate pendingUpdate = _pendingUpdates.remove(hashKey);
+        if (pendingUpdate != null) {
+            publish(pendingUpdate);
+        }
+    }
+
+    private void publish(PendingUpdate pendingUpdate) {
+        try {
+            _dataWriterDAO.update(pendingUpdate.getUpdate(), pendingUpdate.getPriority(), (metadata, exception) -> {
+                if (exception != null) {
+                    pendingUpdate.getFuture().setException(exception);
+                } else {
+                    pendingUpdate.getFuture().set(null);
+                }
+            });
+        } catch (Exception e) {
+            LOG.error("Failed to publish coalesced update", e);
+            pendingUpdate.getFuture().setException(e);
+        }
+    }
+
+    private static class PendingUpdate {
+        private final SettableFuture<Void> _future;
+        private Update _update;
+        private WritePriority _priority;
+
+        PendingUpdate(Update update, WritePriority priority) {
+            _future = SettableFuture.create();
+            _update = update;
+            _priority = priority;
+        }
+
+        void merge(Update update, WritePriority priority) {
+            _update = Update.merge(_update, update);
+            raisePriority(priority);
+        }
+
+        void raisePriority(WritePriority priority) {
+            if (priority == WritePriority.INTERACTIVE) {
+                _priority = priority;
+            }
+        }
+
+        Update getUpdate() {
+            return _update;
+        }
+
+        WritePriority getPriority() {
+            return _priority;
+        }
+
+        SettableFuture<Void> getFuture() {
+            return _future;
+        }
+    }
+}
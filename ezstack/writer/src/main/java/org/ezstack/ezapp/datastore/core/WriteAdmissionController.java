@@ -0,0 +1,97 @@
+package org.ezstack.ezapp.datastore.core;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.ezstack.ezapp.datastore.api.WriteRejectedException;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides whether a write may proceed, based on a token bucket per table and a bound on the number of writes that are
+ * waiting on Kafka at once. Writes over either limit are rejected right away with a {@link WriteRejectedException},
+ * rather than queued, so an overloaded table slows down its own writers instead of everyone's.
+ *
+ * <p>A rate or bound of 0 means unlimited.
+ */
+public class WriteAdmissionController {
+
+    // when the in-flight bound is hit there is no refill rate to go by, so a short fixed delay is hinted instead
+    private static final long IN_FLIGHT_RETRY_AFTER_MILLIS = 100;
+
+    // beyond this many tables the least recently written are forgotten, so writes to many tables cannot exhaust memory
+    private static final int MAX_TABLES = 100000;
+
+    private final Semaphore _inFlightWrites;
+    private final double _defaultTableWritesPerSecond;
+    private final Map<String, Double> _tableWritesPerSecond;
+    private final LoadingCache<String, TokenBucket> _tableBuckets;
+
+    private final Meter _admittedMeter;
+    private final Meter _rejectedMeter;
+
+    public WriteAdmissionController(int maxInFlightWrites, double defaultTableWritesPerSecond,
+                                    Map<String, Double> tableWritesPerSecond, MetricRegistry metricRegistry) {
+        checkArgument(maxInFlightWrites >= 0, "Max in flight writes must be >= 0");
+        checkArgument(defaultTableWritesPerSecond >= 0, "Default table writes per second must be >= 0");
+        checkNotNull(metricRegistry, "metricRegistry");
+
+        _inFlightWrites = maxInFlightWrites > 0 ? new Semaphore(maxInFlightWrites) : null;
+        _defaultTableWritesPerSecond = defaultTableWritesPerSecond;
+        _tableWritesPerSecond = checkNotNull(tableWritesPerSecond, "tableWritesPerSecond");
+
+        // idle tables are forgotten so the number of buckets stays bounded, their buckets would have refilled anyway
+        _tableBuckets = CacheBuilder.newBuilder()
+                .maximumSize(MAX_TABLES)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .build(CacheLoader.from(table -> new TokenBucket(getWritesPerSecond(table))));
+
+        _admittedMeter = metricRegistry.meter("org.ezstack.ezapp.WriteAdmissionController.admitted");
+        _rejectedMeter = metricRegistry.meter("org.ezstack.ezapp.WriteAdmissionController.rejected");
+    }
+
+    /**
+     * Admits a write to the table, which must be followed by {@link #release()} once the write has completed.
+     * @throws WriteRejectedException if the write is over a limit
+     */
+    public void admit(String table) {
+        // the in-flight bound is checked first, since a permit can be handed back but a token cannot
+        if (_inFlightWrites != null && !_inFlightWrites.tryAcquire()) {
+            _rejectedMeter.mark();
+            throw new WriteRejectedException("Too many writes in flight", IN_FLIGHT_RETRY_AFTER_MILLIS);
+        }
+
+        TokenBucket bucket = getBucket(table);
+        if (bucket != null) {
+            long retryAfterMillis = bucket.tryAcquire();
+            if (retryAfterMillis > 0) {
+                release();
+                _rejectedMeter.mark();
+                throw new WriteRejectedException("Write rate limit exceeded for table " + table, retryAfterMillis);
+            }
+        }
+
+        _admittedMeter.mark();
+    }
+
+    public void release() {
+        if (_inFlightWrites != null) {
+            _inFlightWrites.release();
+        }
+    }
+
+    private TokenBucket getBucket(String table) {
+        return getWritesPerSecond(table) > 0 ? _tableBuckets.getUnchecked(table) : null;
+    }
+
+    private double getWritesPerSecond(String table) {
+        return _tableWritesPerSecond.getOrDefault(table, _defaultTableWritesPerSecond);
+    }
+}
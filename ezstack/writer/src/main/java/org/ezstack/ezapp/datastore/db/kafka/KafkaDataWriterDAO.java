@@ -14,15 +14,18 @@ import kafka.utils.ZkUtils;
 import kafka.utils.ZooKeeperClientWrapper;
 import org.I0Itec.zkclient.ZkClient;
 import org.I0Itec.zkclient.ZkConnection;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.errors.TopicExistsException;
-import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.utils.Utils;
 import org.apache.kafka.connect.json.JsonSerializer;
 import org.ezstack.ezapp.datastore.api.KeyBuilder;
 import org.ezstack.ezapp.datastore.api.Update;
+import org.ezstack.ezapp.datastore.api.WritePriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +33,7 @@ import java.util.Properties;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 public class KafkaDataWriterDAO extends AbstractService {
 
@@ -45,26 +49,32 @@ public class KafkaDataWriterDAO extends AbstractService {
     private static final int ZK_SESSION_TIMEOUT_IN_MS = 15 * 1000;
     private static final int ZK_CONNECTION_TIMEOUT_IN_MS = 10 * 1000;
 
-    private Producer<String, JsonNode> _producer;
+    private Producer<byte[], JsonNode> _producer;
 
     private final String _bootstrapServers;
     private final String _producerName;
     private final String _documentTopic;
+    private final String _priorityDocumentTopic;
     private final String _zookeeperHosts;
     private final int _documentTopicPartitionCount;
     private final int _documentTopicReplicationFactor;
     private final ObjectMapper _objectMapper;
 
+    private int _documentTopicPartitions;
+
     @Inject
     public KafkaDataWriterDAO(@Named("bootstrapServers") String bootstrapServers,
                               @Named("producerName") String producerName,
                               @Named("documentTopic") String documentTopic,
+                              @Named("priorityDocumentTopic") String priorityDocumentTopic,
                               @Named("zookeeperHosts") String zookeeperHosts,
                               @Named("documentTopicPartitionCount") int documentTopicPartitionCount,
                               @Named("documentTopicReplicationFactor") int documentTopicReplicationFactor) {
         _bootstrapServers = checkNotNull(bootstrapServers, "bootstrapServers");
         _producerName = checkNotNull(producerName, "producerName");
         _documentTopic = checkNotNull(documentTopic, "documentTopic");
+        _priorityDocumentTopic = checkNotNull(priorityDocumentTopic, "priorityDocumentTopic");
+        checkArgument(!documentTopic.equals(priorityDocumentTopic), "Priority document topic must differ from the document topic");
         _zookeeperHosts = checkNotNull(zookeeperHosts, "zookeeperHosts");
         checkArgument(documentTopicPartitionCount > 0, "Document topic partition count must be > 0");
         checkArgument(documentTopicReplicationFactor > 0, "Document topic replication factor must be > 0");
@@ -78,7 +88,9 @@ public class KafkaDataWriterDAO extends AbstractService {
     @Override
     protected void doStart() {
 
-        createDocumentTopic();
+        // both lanes have the same partitioning, so a document is handled by the same denormalizer task on either one
+        createDocumentTopic(_documentTopic);
+        createDocumentTopic(_priorityDocumentTopic);
 
         Properties props = new Properties();
         props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, _bootstrapServers);
@@ -89,13 +101,18 @@ public class KafkaDataWriterDAO extends AbstractService {
 
         props.put(ProducerConfig.CLIENT_ID_CONFIG, _producerName);
 
-        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
         props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
         props.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, REQUEST_TIMEOUT_MS_CONFIG);
         props.put(ProducerConfig.TRANSACTION_TIMEOUT_CONFIG, TRANSACTION_TIMEOUT_CONFIG);
 
         try {
-            _producer = new KafkaProducer<String, JsonNode>(props);
+            _producer = new KafkaProducer<byte[], JsonNode>(props);
+            _documentTopicPartitions = _producer.partitionsFor(_documentTopic).size();
+            int priorityTopicPartitions = _producer.partitionsFor(_priorityDocumentTopic).size();
+            checkState(_documentTopicPartitions == priorityTopicPartitions,
+                    "%s has %s partitions but %s has %s, a document would be handled by different denormalizer tasks",
+                    _documentTopic, _documentTopicPartitions, _priorityDocumentTopic, priorityTopicPartitions);
         } catch (Exception e) {
             notifyFailed(e);
             throw e;
@@ -116,9 +133,9 @@ public class KafkaDataWriterDAO extends AbstractService {
         notifyStopped();
     }
 
-    private void createDocumentTopic() {
+    private void createDocumentTopic(String topic) {
 
-        LOG.info("Creating topic {}", _documentTopic);
+        LOG.info("Creating topic {}", topic);
 
         ZooKeeperClientWrapper zkClientWrapper = null;
         try {
@@ -126,12 +143,12 @@ public class KafkaDataWriterDAO extends AbstractService {
             ZkUtils zkUtils = new ZkUtils(zkClientWrapper, new ZkConnection(_zookeeperHosts), false);
 
             Properties topicConfiguration = new Properties();
-            AdminUtils.createTopic(zkUtils, _documentTopic, _documentTopicPartitionCount,
+            AdminUtils.createTopic(zkUtils, topic, _documentTopicPartitionCount,
                     _documentTopicReplicationFactor, topicConfiguration, RackAwareMode.Safe$.MODULE$);
         } catch (Exception e) {
 
             if (Throwables.getRootCause(e) instanceof TopicExistsException) {
-                LOG.info("Topic {} already exists, proceeding without creation.", _documentTopic);
+                LOG.info("Topic {} already exists, proceeding without creation.", topic);
             } else {
                 notifyFailed(e);
                 throw e;
@@ -148,9 +165,30 @@ public class KafkaDataWriterDAO extends AbstractService {
         }
     }
 
-    public void update(Update update) {
-        Futures.getUnchecked(_producer.send(new ProducerRecord<String, JsonNode>(_documentTopic,
-                KeyBuilder.hashKey(update.getTable(), update.getKey()),
-                _objectMapper.valueToTree(update))));
+    public void update(Update update, WritePriority priority) {
+        Futures.getUnchecked(_producer.send(getProducerRecord(update, priority)));
+    }
+
+    /**
+     * Publishes the update without waiting for the acknowledgement. The callback is invoked once the write has been
+     * acknowledged or has failed.
+     */
+    public void update(Update update, WritePriority priority, Callback callback) {
+        _producer.send(getProducerRecord(update, priority), callback);
+    }
+
+    private ProducerRecord<byte[], JsonNode> getProducerRecord(Update update, WritePriority priority) {
+        String topic = priority == WritePriority.INTERACTIVE ? _priorityDocumentTopic : _documentTopic;
+        byte[] key = KeyBuilder.hashKeyAsBytes(update.getTable(), update.getKey());
+        JsonNode value = _objectMapper.valueToTree(update);
+
+        return new ProducerRecord<>(topic, getPartition(update), key, value);
+    }
+
+    // Documents are partitioned the way the default partitioner partitioned their old string keys, so that each one
+    // keeps landing on the denormalizer task whose store already holds it. Only the record key is the new binary key
+    private int getPartition(Update update) {
+        byte[] legacyKey = KeyBuilder.legacyHashKeyAsBytes(update.getTable(), update.getKey());
+        return Utils.toPositive(Utils.murmur2(legacyKey)) % _documentTopicPartitions;
     }
 }